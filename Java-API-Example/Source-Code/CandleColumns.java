@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Columnar store of candle history. Rather than holding a MarketDataSnapshot per candle, each field
+ * of the candle is kept in its own primitive array so that calculations over a series (indicators,
+ * resampling, reporting) walk contiguous memory without touching the API objects again.
+ *
+ * Candles are expected to be appended in time order; the arrays grow by doubling when full.
+ *
+ * @author Richard Kichenama
+ */
+public class CandleColumns
+{
+  private static final int DEFAULT_CAPACITY = 256;
+
+  private final String symbol;
+  private int size;
+  private long[] time;
+  private double[] bidOpen, bidHigh, bidLow, bidClose;
+  private double[] askOpen, askHigh, askLow, askClose;
+
+  /**
+   * Creates an empty column store for the symbol
+   *
+   * @param symbol - the symbol the candles belong to, like 'EUR/USD'
+   */
+  public CandleColumns(String symbol)
+  {
+    this(symbol, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates an empty column store for the symbol with an initial capacity
+   *
+   * @param symbol - the symbol the candles belong to, like 'EUR/USD'
+   * @param capacity - the number of candles to allocate room for up front
+   */
+  public CandleColumns(String symbol, int capacity)
+  {
+    this.symbol = symbol;
+    // never allocate an empty array, growth doubles the current length
+    capacity = Math.max(capacity, 1);
+    time = new long[capacity];
+    bidOpen = new double[capacity];
+    bidHigh = new double[capacity];
+    bidLow = new double[capacity];
+    bidClose = new double[capacity];
+    askOpen = new double[capacity];
+    askHigh = new double[capacity];
+    askLow = new double[capacity];
+    askClose = new double[capacity];
+  }
+
+  /**
+   * Append a single candle to the end of the columns
+   *
+   * @param timestamp - the open time of the candle, in milliseconds since the epoch (UTC)
+   */
+  public void add(long timestamp, double bo, double bh, double bl, double bc,
+    double ao, double ah, double al, double ac)
+  {
+    // make room if the columns are full
+    if(size == time.length) grow(size << 1);
+    time[size] = timestamp;
+    bidOpen[size] = bo;
+    bidHigh[size] = bh;
+    bidLow[size] = bl;
+    bidClose[size] = bc;
+    askOpen[size] = ao;
+    askHigh[size] = ah;
+    askLow[size] = al;
+    askClose[size] = ac;
+    size++;
+  }
+
+  /**
+   * Replace the values of the last candle, used when a candle that is still forming is updated
+   */
+  public void updateLast(double bo, double bh, double bl, double bc,
+    double ao, double ah, double al, double ac)
+  {
+    int i = size - 1;
+    bidOpen[i] = bo;
+    bidHigh[i] = bh;
+    bidLow[i] = bl;
+    bidClose[i] = bc;
+    askOpen[i] = ao;
+    askHigh[i] = ah;
+    askLow[i] = al;
+    askClose[i] = ac;
+  }
+
+  /**
+   * Remove all candles while keeping the allocated arrays
+   */
+  public void clear()
+  {
+    size = 0;
+  }
+
+  /**
+   * Resize every column to the new capacity, keeping the existing candles
+   */
+  private void grow(int capacity)
+  {
+    time = Arrays.copyOf(time, capacity);
+    bidOpen = Arrays.copyOf(bidOpen, capacity);
+    bidHigh = Arrays.copyOf(bidHigh, capacity);
+    bidLow = Arrays.copyOf(bidLow, capacity);
+    bidClose = Arrays.copyOf(bidClose, capacity);
+    askOpen = Arrays.copyOf(askOpen, capacity);
+    askHigh = Arrays.copyOf(askHigh, capacity);
+    askLow = Arrays.copyOf(askLow, capacity);
+    askClose = Arrays.copyOf(askClose, capacity);
+  }
+
+  public String getSymbol() { return symbol; }
+  public int size() { return size; }
+
+  /*
+   * The column accessors return the backing arrays directly so that batch calculations do not copy;
+   * only the first size() entries of each array are valid.
+   */
+  public long[] time() { return time; }
+  public double[] bidOpen() { return bidOpen; }
+  public double[] bidHigh() { return bidHigh; }
+  public double[] bidLow() { return bidLow; }
+  public double[] bidClose() { return bidClose; }
+  public double[] askOpen() { return askOpen; }
+  public double[] askHigh() { return askHigh; }
+  public double[] askLow() { return askLow; }
+  public double[] askClose() { return askClose; }
+}
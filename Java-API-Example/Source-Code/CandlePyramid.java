@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.fxcm.fix.FXCMTimingIntervalFactory;
+import com.fxcm.fix.IFXCMTimingInterval;
+
+/**
+ * Coarser candle series resampled locally from one stored base series, so every timeframe of a symbol
+ * comes from a single download.
+ *
+ * The base is a CandleColumns of one minute candles, or of ticks added with the bid and ask as every
+ * price of a candle. Each level of the pyramid is a multiple of the level below it and is built from
+ * that level rather than from the base, so a daily series is folded from hourly candles and not from
+ * every minute. For the first build the base is cut on the boundaries of the coarsest level and the
+ * pieces are resampled on all the cores; a candle of any level never spans two pieces, so the pieces
+ * are joined as they are.
+ *
+ * The levels are cached, and extend() folds the base candles added since into every level, updating
+ * the last candle of a level while it is still forming. An interval that was not built up front is
+ * resampled from the base the first time it is asked for, then kept up to date like the others.
+ *
+ * Candles are aligned on multiples of their interval from the epoch, shifted by a fixed offset, so
+ * that days and weeks can start at the close of the trading day rather than at midnight UTC.
+ *
+ * @author Richard Kichenama
+ */
+public class CandlePyramid
+{
+  public static final long MIN1 = 60000L;
+  public static final long MIN5 = 5 * MIN1;
+  public static final long MIN15 = 15 * MIN1;
+  public static final long MIN30 = 30 * MIN1;
+  public static final long HOUR1 = 60 * MIN1;
+  public static final long HOUR4 = 4 * HOUR1;
+  public static final long DAY1 = 24 * HOUR1;
+  public static final long WEEK1 = 7 * DAY1;
+
+  // how many pieces each thread resamples on the first build, to even out the work
+  private static final int PIECES_PER_THREAD = 4;
+
+  /**
+   * A resampled series and how far into the base it is up to date
+   */
+  private static final class Level
+  {
+    final long interval;
+    final CandleColumns candles;
+    int consumed;
+
+    Level(long interval, CandleColumns candles)
+    {
+      this.interval = interval;
+      this.candles = candles;
+    }
+  }
+
+  private final CandleColumns base;
+  private final long offset;
+  // the levels built, by interval
+  private final TreeMap<Long, Level> levels = new TreeMap<Long, Level>();
+
+  /**
+   * @param base - the one minute candles or ticks of a symbol, appended to by the owner
+   * @param offset - the milliseconds added to a time before it is aligned, 0 for days starting at
+   *   midnight UTC
+   */
+  public CandlePyramid(CandleColumns base, long offset)
+  {
+    this.base = base;
+    this.offset = offset;
+  }
+
+  /**
+   * Resample the base into levels of the intervals on the given number of threads
+   *
+   * @param intervals - the intervals in milliseconds, each a multiple of the one before it
+   * @param threads - the threads to resample on, 1 to resample on the calling thread
+   */
+  public synchronized void build(long[] intervals, int threads) throws InterruptedException
+  {
+    final long[] sorted = intervals.clone();
+    Arrays.sort(sorted);
+    for(int i = 1; i < sorted.length; i++)
+      if(sorted[i] % sorted[i - 1] != 0)
+        throw new IllegalArgumentException(sorted[i] + " ms is not a multiple of " + sorted[i - 1] + " ms");
+    if(sorted.length == 0) return;
+    final int size = base.size();
+    // cut the base on the boundaries of the coarsest candles
+    int[] cuts = cuts(sorted[sorted.length - 1], size, Math.max(threads, 1) * PIECES_PER_THREAD);
+    List<CandleColumns[]> pieces = new ArrayList<CandleColumns[]>();
+    if(threads <= 1 || cuts.length <= 2)
+    {
+      for(int p = 0; p + 1 < cuts.length; p++) pieces.add(resample(sorted, cuts[p], cuts[p + 1]));
+    }
+    else
+    {
+      // a pool for this build only, of daemon threads that never keep the process alive
+      ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+      {
+        @Override public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "fxcm-resample");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      try
+      {
+        List<Future<CandleColumns[]>> results = new ArrayList<Future<CandleColumns[]>>();
+        for(int p = 0; p + 1 < cuts.length; p++)
+        {
+          final int from = cuts[p], to = cuts[p + 1];
+          results.add(pool.submit(new Callable<CandleColumns[]>()
+          {
+            @Override public CandleColumns[] call() { return resample(sorted, from, to); }
+          }));
+        }
+        for(Future<CandleColumns[]> result : results) pieces.add(result.get());
+      }
+      catch(ExecutionException e) { throw new IllegalStateException(e.getCause()); }
+      finally { pool.shutdown(); }
+    }
+    // join the pieces of each level in time order
+    for(int l = 0; l < sorted.length; l++)
+    {
+      int count = 0;
+      for(CandleColumns[] piece : pieces) count += piece[l].size();
+      Level level = new Level(sorted[l], new CandleColumns(base.getSymbol(), count));
+      for(CandleColumns[] piece : pieces) append(level.candles, piece[l]);
+      level.consumed = size;
+      levels.put(sorted[l], level);
+    }
+  }
+
+  /**
+   * The indexes the base is cut at, on the first candle of a coarsest candle past each even share
+   */
+  private int[] cuts(long coarsest, int size, int pieces)
+  {
+    long[] time = base.time();
+    int[] cuts = new int[pieces + 1];
+    int count = 1;
+    for(int p = 1; p < pieces; p++)
+    {
+      int at = Math.max((int)((long)size * p / pieces), cuts[count - 1]);
+      if(at == 0) continue;
+      // move forward to the first candle of the next coarsest candle
+      long bucket = align(time[at - 1], coarsest);
+      while(at < size && align(time[at], coarsest) == bucket) at++;
+      if(at > cuts[count - 1] && at < size) cuts[count++] = at;
+    }
+    cuts[count++] = size;
+    return Arrays.copyOf(cuts, count);
+  }
+
+  /**
+   * Resample a piece of the base into every level, each from the level below it
+   */
+  private CandleColumns[] resample(long[] intervals, int from, int to)
+  {
+    CandleColumns[] piece = new CandleColumns[intervals.length];
+    CandleColumns source = base;
+    int start = from, end = to;
+    for(int l = 0; l < intervals.length; l++)
+    {
+      // room for one minute base candles, never more than the candles folded
+      int capacity = (int)Math.min(end - start, (to - from) * MIN1 / intervals[l] + 1);
+      piece[l] = new CandleColumns(base.getSymbol(), capacity);
+      fold(source, start, end, intervals[l], piece[l]);
+      source = piece[l];
+      start = 0;
+      end = source.size();
+    }
+    return piece;
+  }
+
+  /**
+   * Fold the candles of a source into a coarser series, merging into its last candle when it is the
+   * same period
+   */
+  private void fold(CandleColumns source, int from, int to, long interval, CandleColumns target)
+  {
+    long[] time = source.time();
+    double[] bo = source.bidOpen(), bh = source.bidHigh(), bl = source.bidLow(), bc = source.bidClose();
+    double[] ao = source.askOpen(), ah = source.askHigh(), al = source.askLow(), ac = source.askClose();
+    for(int i = from; i < to; i++)
+    {
+      long bucket = align(time[i], interval);
+      int last = target.size() - 1;
+      if(last >= 0 && target.time()[last] == bucket)
+      {
+        target.updateLast(target.bidOpen()[last], Math.max(target.bidHigh()[last], bh[i]),
+          Math.min(target.bidLow()[last], bl[i]), bc[i], target.askOpen()[last],
+          Math.max(target.askHigh()[last], ah[i]), Math.min(target.askLow()[last], al[i]), ac[i]);
+      }
+      else target.add(bucket, bo[i], bh[i], bl[i], bc[i], ao[i], ah[i], al[i], ac[i]);
+    }
+  }
+
+  /**
+   * Copy the candles of a piece to the end of a level
+   */
+  private static void append(CandleColumns target, CandleColumns piece)
+  {
+    for(int i = 0; i < piece.size(); i++)
+      target.add(piece.time()[i], piece.bidOpen()[i], piece.bidHigh()[i], piece.bidLow()[i], piece.bidClose()[i],
+        piece.askOpen()[i], piece.askHigh()[i], piece.askLow()[i], piece.askClose()[i]);
+  }
+
+  /**
+   * @return the start of the candle of the interval a time falls in
+   */
+  private long align(long time, long interval)
+  {
+    return Math.floorDiv(time + offset, interval) * interval - offset;
+  }
+
+  /**
+   * Fold the base candles added since the last build or extension into every level; only the last
+   * base candle may still be forming, it is folded again in case it was updated since
+   */
+  public synchronized void extend()
+  {
+    int size = base.size();
+    for(Level level : levels.values())
+    {
+      // a forming candle only widens and moves its close, so folding it twice is harmless
+      fold(base, Math.max(level.consumed - 1, 0), size, level.interval, level.candles);
+      level.consumed = size;
+    }
+  }
+
+  /**
+   * The candles of an interval, resampled from the base and kept the first time it is asked for
+   *
+   * @param interval - the interval in milliseconds
+   *
+   * @return the candles, up to date with the base as of the last extend()
+   */
+  public synchronized CandleColumns get(long interval)
+  {
+    Level level = levels.get(interval);
+    if(level == null)
+    {
+      level = new Level(interval, new CandleColumns(base.getSymbol()));
+      fold(base, 0, base.size(), interval, level.candles);
+      level.consumed = base.size();
+      levels.put(interval, level);
+    }
+    return level.candles;
+  }
+
+  /**
+   * The candles of one of the timing intervals of the API
+   */
+  public CandleColumns get(IFXCMTimingInterval interval)
+  {
+    return get(millis(interval));
+  }
+
+  /**
+   * @return the length of a timing interval of the API in milliseconds
+   */
+  public static long millis(IFXCMTimingInterval interval)
+  {
+    if(interval == FXCMTimingIntervalFactory.MIN1) return MIN1;
+    if(interval == FXCMTimingIntervalFactory.MIN5) return MIN5;
+    if(interval == FXCMTimingIntervalFactory.MIN15) return MIN15;
+    if(interval == FXCMTimingIntervalFactory.MIN30) return MIN30;
+    if(interval == FXCMTimingIntervalFactory.HOUR1) return HOUR1;
+    if(interval == FXCMTimingIntervalFactory.HOUR4) return HOUR4;
+    if(interval == FXCMTimingIntervalFactory.DAY1) return DAY1;
+    if(interval == FXCMTimingIntervalFactory.WEEK1) return WEEK1;
+    throw new IllegalArgumentException("No fixed length for the interval " + interval.getCode());
+  }
+
+  public CandleColumns getBase() { return base; }
+  public long getOffset() { return offset; }
+}
@@ -0,0 +1,281 @@
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.external.api.transport.FXCMLoginProperties;
+import com.fxcm.external.api.transport.IGateway;
+import com.fxcm.messaging.ISessionStatus;
+
+/**
+ * Watches the session status of a gateway and brings the session back after a drop: logs in again
+ * with an increasing delay between attempts, then requests the accounts, open positions, working
+ * orders and trading session status all at once and waits for every answer before declaring the
+ * session recovered.
+ *
+ * The owner of the session state is told through a Listener when to discard its stale state and
+ * routes the answers to the resync requests back with isResync() and received(). While the session
+ * is down, orders are either held until it recovers or rejected, depending on the OutagePolicy.
+ *
+ * @author Richard Kichenama
+ */
+public class ConnectionSupervisor
+{
+  /**
+   * What to do with an order sent while the session is down
+   */
+  public enum OutagePolicy
+  {
+    // hold the caller until the session has recovered, up to the queue timeout
+    QUEUE,
+    // refuse the order straight away
+    REJECT
+  }
+
+  /**
+   * Implemented by the owner of the session state
+   */
+  public interface Listener
+  {
+    /**
+     * The session was lost; fail anything waiting on an answer that will not come
+     */
+    void disconnected();
+
+    /**
+     * The session is back and the resync is about to be requested; discard the stale state
+     */
+    void resyncStarted();
+
+    /**
+     * Every resync request has been answered and trading can resume
+     *
+     * @param recoveryNanos - the time from the drop being noticed to the resync completing
+     */
+    void recovered(long recoveryNanos);
+  }
+
+  private static final long INITIAL_BACKOFF_MS = 250;
+  private static final long MAX_BACKOFF_MS = 30000;
+  private static final long RESYNC_TIMEOUT_MS = 30000;
+  private static final long QUEUE_TIMEOUT_MS = 60000;
+
+  private final IGateway gateway;
+  private final FXCMLoginProperties login;
+  private final Listener listener;
+  private final OutagePolicy policy;
+  private final PrintWriter output;
+  private final ExecutorService reconnector;
+
+  // the answers still expected for the current resync, by request id
+  private final ConcurrentHashMap<String, String> resyncRequests = new ConcurrentHashMap<String, String>();
+  // held while the resync requests are sent, an answer arriving before its id is known waits for it
+  private final ReentrantLock registering = new ReentrantLock();
+  private volatile boolean sending;
+  private volatile CountDownLatch resyncDone = new CountDownLatch(0);
+  // released whenever the session is usable, replaced on every drop
+  private volatile CountDownLatch sessionUp = new CountDownLatch(0);
+  private volatile boolean connected = true, running = true, recovering;
+
+  // time-to-recover metrics
+  private volatile long dropNanos, lastRecoveryNanos, maxRecoveryNanos;
+  private volatile int recoveries;
+
+  /**
+   * @param gateway - the gateway of the session to supervise, already logged in
+   * @param login - the credentials to log in again with
+   * @param listener - the owner of the session state
+   * @param policy - what to do with orders sent while the session is down
+   * @param output - where to display the progress of a recovery
+   */
+  public ConnectionSupervisor(IGateway gateway, FXCMLoginProperties login, Listener listener,
+    OutagePolicy policy, PrintWriter output)
+  {
+    this.gateway = gateway;
+    this.login = login;
+    this.listener = listener;
+    this.policy = policy;
+    this.output = output;
+    // a single daemon thread, recoveries never overlap and never keep the process alive
+    this.reconnector = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "fxcm-reconnect");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Pass on every session status received from the gateway; starts a recovery when the session has
+   * been lost. Never blocks the calling thread.
+   *
+   * @param status - the status received
+   */
+  public void statusArrived(ISessionStatus status)
+  {
+    int code = status.getStatusCode();
+    if(code != ISessionStatus.STATUSCODE_DISCONNECTED && code != ISessionStatus.STATUSCODE_ERROR &&
+      code != ISessionStatus.STATUSCODE_CRITICAL_ERROR)
+      return;
+    synchronized(this)
+    {
+      // ignore drops after stop() and further errors while a recovery is under way
+      if(!running || recovering) return;
+      recovering = true;
+      // the latch first, a sender seeing the session down never waits on the released one
+      sessionUp = new CountDownLatch(1);
+      connected = false;
+      dropNanos = System.nanoTime();
+    }
+    listener.disconnected();
+    reconnector.execute(new Runnable()
+    {
+      @Override public void run() { recover(); }
+    });
+  }
+
+  /**
+   * Log in again until successful, then resync the session state
+   */
+  private void recover()
+  {
+    long backoff = INITIAL_BACKOFF_MS;
+    while(running)
+    {
+      try
+      {
+        // log in again with the same logic as the first login
+        if(!gateway.isConnected()) gateway.login(login);
+        else gateway.relogin();
+        if(resync()) break;
+        output.println("Resync incomplete, logging in again");
+      }
+      catch(Exception e) { output.println("Reconnect failed; " + e.getMessage()); }
+      // wait before the next attempt, doubling the delay up to the maximum
+      try { Thread.sleep(backoff); }
+      catch(InterruptedException e) { return; }
+      backoff = Math.min(backoff << 1, MAX_BACKOFF_MS);
+    }
+    if(!running) return;
+    long recovery = System.nanoTime() - dropNanos;
+    lastRecoveryNanos = recovery;
+    if(recovery > maxRecoveryNanos) maxRecoveryNanos = recovery;
+    recoveries++;
+    synchronized(this)
+    {
+      connected = true;
+      recovering = false;
+      sessionUp.countDown();
+    }
+    output.println("Session recovered in " + TimeUnit.NANOSECONDS.toMillis(recovery) + "ms");
+    listener.recovered(recovery);
+  }
+
+  /**
+   * Request every part of the session state at once and wait for all the answers
+   *
+   * @return true if every request was answered within the timeout
+   */
+  private boolean resync() throws InterruptedException
+  {
+    listener.resyncStarted();
+    resyncRequests.clear();
+    // expect the accounts, positions, orders and session status
+    resyncDone = new CountDownLatch(4);
+    registering.lock();
+    sending = true;
+    try
+    {
+      resyncRequests.put(gateway.requestAccounts(), "accounts");
+      resyncRequests.put(gateway.requestOpenPositions(), "positions");
+      resyncRequests.put(gateway.requestOpenOrders(), "orders");
+      resyncRequests.put(gateway.requestTradingSessionStatus(), "session");
+    }
+    finally
+    {
+      sending = false;
+      registering.unlock();
+    }
+    return resyncDone.await(RESYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param requestId - the request id of a message received
+   * @return true if the message answers one of the requests of the current resync
+   */
+  public boolean isResync(String requestId)
+  {
+    if(requestId == null) return false;
+    if(sending)
+    {
+      // wait for the ids of the requests being sent
+      registering.lock();
+      registering.unlock();
+    }
+    return resyncRequests.containsKey(requestId);
+  }
+
+  /**
+   * Record a message answering a resync request
+   *
+   * @param requestId - the request id of the message
+   * @param last - true if this is the last message of the answer
+   */
+  public void received(String requestId, boolean last)
+  {
+    // count each request once, on its last message
+    if(last && requestId != null && resyncRequests.remove(requestId) != null) resyncDone.countDown();
+  }
+
+  /**
+   * Apply the outage policy before sending an order
+   *
+   * @return true if the order may be sent, false if it must be rejected
+   */
+  public boolean awaitSession()
+  {
+    if(connected) return true;
+    if(policy == OutagePolicy.REJECT) return false;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT_MS);
+    try
+    {
+      // the session may drop again between the release and this thread running, wait for it again then
+      while(!connected)
+      {
+        long left = deadline - System.nanoTime();
+        if(left <= 0) return false;
+        sessionUp.await(left, TimeUnit.NANOSECONDS);
+      }
+      return true;
+    }
+    catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+    return false;
+  }
+
+  /**
+   * Stop supervising, called before a deliberate logout so that it is not taken for a drop
+   */
+  public void stop()
+  {
+    synchronized(this) { running = false; }
+    reconnector.shutdownNow();
+  }
+
+  public boolean isConnected() { return connected; }
+  public OutagePolicy getPolicy() { return policy; }
+  /**
+   * @return the requests of the current resync waiting for their answer
+   */
+  public int outstanding() { return resyncRequests.size(); }
+
+  public int getRecoveries() { return recoveries; }
+  public long getLastRecoveryNanos() { return lastRecoveryNanos; }
+  public long getMaxRecoveryNanos() { return maxRecoveryNanos; }
+}
@@ -0,0 +1,448 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.external.api.transport.IGateway;
+import com.fxcm.external.api.util.MessageGenerator;
+import com.fxcm.fix.ITimeInForce;
+import com.fxcm.fix.NotDefinedException;
+import com.fxcm.fix.PositionQty;
+import com.fxcm.fix.SideFactory;
+import com.fxcm.fix.posttrade.ClosedPositionReport;
+import com.fxcm.fix.posttrade.PositionReport;
+import com.fxcm.fix.trade.ExecutionReport;
+import com.fxcm.fix.trade.OrderSingle;
+import com.fxcm.messaging.ITransportable;
+
+/**
+ * Kill switch taking every account of the session flat as fast as possible.
+ *
+ * The working orders are listed from the server and cancelled first, so that no entry, stop or limit
+ * order can open a position while the book is being closed. Once every cancel is answered, the open
+ * positions are listed, which includes any opened by an order filled before its cancel, and closed at
+ * market. Within each step the messages of every account are sent at once from a thread per account,
+ * without waiting for the answer to one before sending the next.
+ *
+ * The owner routes the answers here from the API callback thread with isFlattening() and received();
+ * the answers to the cancels and closes are matched by their request ids.
+ *
+ * @author Richard Kichenama
+ */
+public class EmergencyFlatten
+{
+  /**
+   * A cancel or a close sent, and its outcome
+   */
+  public static final class Item
+  {
+    private final String kind, id, account, symbol;
+    private volatile String outcome = "UNANSWERED";
+    private volatile boolean done;
+    private volatile long nanos;
+
+    private Item(String kind, String id, String account, String symbol)
+    {
+      this.kind = kind;
+      this.id = id;
+      this.account = account;
+      this.symbol = symbol;
+    }
+
+    /**
+     * @return 'cancel' for a working order, 'close' for a position
+     */
+    public String getKind() { return kind; }
+
+    /**
+     * @return the order id of a cancel, the position id of a close
+     */
+    public String getId() { return id; }
+    public String getAccount() { return account; }
+    public String getSymbol() { return symbol; }
+
+    /**
+     * @return the final state of the order, like CANCELLED or EXECUTED; UNANSWERED or NOT SENT if none
+     */
+    public String getOutcome() { return outcome; }
+
+    /**
+     * @return true if the position was closed, or the order is no longer working; an order filled
+     *         before its cancel opened a position that is closed with the others
+     */
+    public boolean isSucceeded()
+    {
+      if(kind.equals("close")) return outcome.equals("EXECUTED");
+      return outcome.equals("CANCELLED") || outcome.equals("EXPIRED") || outcome.equals("EXECUTED");
+    }
+
+    /**
+     * @return the time from the start of the flatten to the final answer, 0 if unanswered
+     */
+    public long getNanos() { return nanos; }
+
+    @Override public String toString()
+    {
+      return kind + " " + id + " (" + account + " " + symbol + ") " + outcome + " in "
+        + TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+  }
+
+  /**
+   * The messages of one account and their items, in the same order
+   */
+  private static final class Batch
+  {
+    final List<ITransportable> messages = new ArrayList<ITransportable>();
+    final List<Item> items = new ArrayList<Item>();
+  }
+
+  /**
+   * Everything sent by a flatten and how long it took
+   */
+  public static final class Result
+  {
+    private final List<Item> items;
+    private final long elapsedNanos;
+    private final boolean listed;
+
+    private Result(List<Item> items, long elapsedNanos, boolean listed)
+    {
+      this.items = items;
+      this.elapsedNanos = elapsedNanos;
+      this.listed = listed;
+    }
+
+    public List<Item> getItems() { return items; }
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    /**
+     * @return true if the orders and positions were listed and every cancel and close succeeded
+     */
+    public boolean isFlat()
+    {
+      if(!listed) return false;
+      for(Item item : items) if(!item.isSucceeded()) return false;
+      return true;
+    }
+
+    @Override public String toString()
+    {
+      int failed = 0;
+      for(Item item : items) if(!item.isSucceeded()) failed++;
+      return (isFlat() ? "Flat" : "NOT flat") + " after " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms, "
+        + items.size() + " orders sent, " + failed + " failed";
+    }
+  }
+
+  private final IGateway gateway;
+  private final ITimeInForce timeInForce;
+  private final PrintWriter output;
+  private final ExecutorService senders;
+
+  // the list request being answered and what it gathered
+  private final ConcurrentHashMap<String, String> listRequests = new ConcurrentHashMap<String, String>();
+  // held while a list request, cancel or close is sent and its id registered, an answer can beat the
+  // id back
+  private final ReentrantLock registering = new ReentrantLock();
+  private volatile boolean sending;
+  private volatile CountDownLatch listed = new CountDownLatch(0);
+  private final ArrayList<ExecutionReport> workingOrders = new ArrayList<ExecutionReport>();
+  private final ArrayList<PositionReport> openPositions = new ArrayList<PositionReport>();
+
+  // the cancels and closes sent and waiting for their final answer, by request id
+  private final HashMap<String, Item> pending = new HashMap<String, Item>();
+  private volatile CountDownLatch answered = new CountDownLatch(0);
+  private volatile boolean active;
+  private volatile long start;
+  private volatile OutboundThrottler throttler;
+
+  /**
+   * @param gateway - the gateway of a logged in session
+   * @param timeInForce - the time in force of the closing orders
+   * @param output - where to display the progress of the flatten
+   */
+  public EmergencyFlatten(IGateway gateway, ITimeInForce timeInForce, PrintWriter output)
+  {
+    this.gateway = gateway;
+    this.timeInForce = timeInForce;
+    this.output = output;
+    // daemon threads, one per account sending at a time, that never keep the process alive
+    this.senders = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      @Override public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "fxcm-flatten");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Send the cancels and closes under the rate limits of a throttler, as risk reducing messages
+   *
+   * @param throttler - the throttler of the session, null to send without limits
+   */
+  public void setThrottler(OutboundThrottler throttler) { this.throttler = throttler; }
+
+  /**
+   * Cancel every working order then close every open position of every account
+   *
+   * @param timeoutMillis - how long to wait for each of the four steps
+   *
+   * @return the outcome of every cancel and close
+   */
+  public Result run(long timeoutMillis) throws InterruptedException
+  {
+    start = System.nanoTime();
+    active = true;
+    List<Item> items = new ArrayList<Item>();
+    try
+    {
+      // the working orders first, cancelled before anything is closed
+      boolean complete = list("orders", timeoutMillis);
+      Map<String, Batch> cancels = new LinkedHashMap<String, Batch>();
+      for(ExecutionReport er : workingOrders)
+      {
+        Item item;
+        try { item = new Item("cancel", er.getOrderID(), er.getAccount(), er.getInstrument().getSymbol()); }
+        catch(NotDefinedException e) { item = new Item("cancel", er.getOrderID(), er.getAccount(), "?"); }
+        Batch batch = batch(cancels, er.getAccount());
+        batch.messages.add(MessageGenerator.generateOrderCancelRequest("flatten", er.getOrderID(), er.getSide(),
+          er.getAccount()));
+        batch.items.add(item);
+        items.add(item);
+      }
+      send(cancels, timeoutMillis);
+      // then the positions, listed after the cancels so that those opened meanwhile are included
+      complete &= list("positions", timeoutMillis);
+      Map<String, Batch> closes = new LinkedHashMap<String, Batch>();
+      for(PositionReport pr : openPositions)
+      {
+        try
+        {
+          PositionQty pq = pr.getPositionQty();
+          boolean isLong = pq.getLongQty() > 0;
+          String symbol = pr.getInstrument().getSymbol();
+          OrderSingle close = MessageGenerator.generateCloseMarketOrder(pr.getFXCMPosID(), pr.getAccount(),
+            isLong ? pq.getLongQty() : pq.getShortQty(), isLong ? SideFactory.SELL : SideFactory.BUY, symbol,
+            "flatten");
+          close.setTimeInForce(timeInForce);
+          Item item = new Item("close", pr.getFXCMPosID(), pr.getAccount(), symbol);
+          Batch batch = batch(closes, pr.getAccount());
+          batch.messages.add(close);
+          batch.items.add(item);
+          items.add(item);
+        }
+        catch(NotDefinedException e) { e.printStackTrace(); }
+      }
+      send(closes, timeoutMillis);
+      Result result = new Result(items, System.nanoTime() - start, complete);
+      output.println(result);
+      for(Item item : items) if(!item.isSucceeded()) output.println("  " + item);
+      return result;
+    }
+    finally
+    {
+      active = false;
+      synchronized(this)
+      {
+        pending.clear();
+      }
+    }
+  }
+
+  /**
+   * Request the live working orders or open positions and wait for the whole list
+   */
+  private boolean list(String what, long timeoutMillis) throws InterruptedException
+  {
+    workingOrders.clear();
+    openPositions.clear();
+    listRequests.clear();
+    listed = new CountDownLatch(1);
+    registering.lock();
+    sending = true;
+    try { listRequests.put(what.equals("orders") ? gateway.requestOpenOrders() : gateway.requestOpenPositions(), what); }
+    finally
+    {
+      sending = false;
+      registering.unlock();
+    }
+    return listed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send the messages of every account at once, a thread per account, and wait for every final answer
+   */
+  private void send(Map<String, Batch> batches, long timeoutMillis)
+    throws InterruptedException
+  {
+    int count = 0;
+    for(Batch batch : batches.values()) count += batch.items.size();
+    if(count == 0) return;
+    answered = new CountDownLatch(count);
+    final CountDownLatch sent = new CountDownLatch(batches.size());
+    for(final Batch batch : batches.values())
+    {
+      senders.execute(new Runnable()
+      {
+        @Override public void run()
+        {
+          for(int i = 0; i < batch.messages.size(); i++) sendOne(batch.messages.get(i), batch.items.get(i));
+          sent.countDown();
+        }
+      });
+    }
+    sent.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    answered.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send one message and register its item under the request id
+   */
+  private void sendOne(ITransportable message, Item item)
+  {
+    try
+    {
+      // the wait for its turn is not under the lock, the senders of the other accounts go on
+      OutboundThrottler limits = throttler;
+      if(limits != null) limits.acquire(message, OutboundThrottler.RISK_REDUCING);
+    }
+    catch(Exception e)
+    {
+      finish(item, "NOT SENT " + e.getMessage());
+      return;
+    }
+    registering.lock();
+    sending = true;
+    try
+    {
+      String requestId = gateway.sendMessage(message);
+      synchronized(this) { pending.put(requestId, item); }
+    }
+    catch(Exception e) { finish(item, "NOT SENT " + e.getMessage()); }
+    finally
+    {
+      sending = false;
+      registering.unlock();
+    }
+  }
+
+  /**
+   * @param requestId - the request id of a message received
+   * @return true if the message is part of a list requested by the current flatten
+   */
+  public boolean isFlattening(String requestId)
+  {
+    if(!active || requestId == null) return false;
+    if(sending)
+    {
+      // wait for the id of the request being sent
+      registering.lock();
+      registering.unlock();
+    }
+    return listRequests.containsKey(requestId);
+  }
+
+  /**
+   * @return the list requests, cancels and closes of the current flatten waiting for their answer
+   */
+  public int outstanding()
+  {
+    int count = listRequests.size();
+    synchronized(this)
+    {
+      for(Item item : pending.values()) if(!item.done) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Gather an open position listed for the current flatten; callback thread only
+   */
+  public void received(PositionReport pr)
+  {
+    if(!(pr instanceof ClosedPositionReport)) openPositions.add(pr);
+    finished(pr.getRequestID(), pr.isLastRptRequested());
+  }
+
+  /**
+   * Gather a working order listed for the current flatten, or take the answer to a cancel or close
+   * sent by it; callback thread only
+   *
+   * @return true if the report was for the flatten
+   */
+  public boolean received(ExecutionReport er)
+  {
+    if(!active) return false;
+    String requestId = er.getRequestID();
+    if(isFlattening(requestId))
+    {
+      workingOrders.add(er);
+      finished(requestId, er.isLastRptRequested());
+      return true;
+    }
+    // isFlattening() waited for the id of a cancel or close being sent, it is registered by now
+    Item item;
+    synchronized(this) { item = pending.get(requestId); }
+    if(item == null) return false;
+    int state = OrderStateTable.decode(er.getFXCMOrdStatus());
+    if(OrderStateTable.isFinal(state)) finish(item, OrderStateTable.name(state));
+    return true;
+  }
+
+  /**
+   * Record that a list request of the current flatten was answered with nothing to list
+   */
+  public void empty(String requestId)
+  {
+    finished(requestId, true);
+  }
+
+  private void finished(String requestId, boolean last)
+  {
+    if(last && requestId != null && listRequests.remove(requestId) != null) listed.countDown();
+  }
+
+  private void finish(Item item, String outcome)
+  {
+    synchronized(item)
+    {
+      if(item.done) return;
+      item.done = true;
+    }
+    item.outcome = outcome;
+    item.nanos = System.nanoTime() - start;
+    answered.countDown();
+  }
+
+  private static Batch batch(Map<String, Batch> batches, String account)
+  {
+    Batch batch = batches.get(account);
+    if(batch == null)
+    {
+      batch = new Batch();
+      batches.put(account, batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Stop the sender threads once the session is over
+   */
+  public void stop()
+  {
+    senders.shutdownNow();
+  }
+}
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.external.api.transport.IGateway;
+import com.fxcm.fix.NotDefinedException;
+import com.fxcm.fix.PositionQty;
+import com.fxcm.fix.SideFactory;
+import com.fxcm.fix.UTCTimestamp;
+import com.fxcm.fix.posttrade.ClosedPositionReport;
+import com.fxcm.fix.posttrade.PositionReport;
+import com.fxcm.fix.trade.ExecutionReport;
+
+/**
+ * Fetches the closed positions and the working orders of the session into a PositionHistoryStore.
+ *
+ * The reports answering the requests are gathered into pages on the API callback thread, which the
+ * owner routes here with isIngesting() and received(). Each full page is handed to a background
+ * thread that appends it to the store as a segment, so the callback thread never waits on the disk.
+ * An ingestion is done once the last report of both requests has been received and every page has
+ * been written.
+ *
+ * @author Richard Kichenama
+ */
+public class HistoryIngestion
+{
+  public static final int DEFAULT_PAGE_SIZE = 4096;
+
+  private final IGateway gateway;
+  private final PositionHistoryStore store;
+  private final int pageSize;
+  private final PrintWriter output;
+  private final ExecutorService writer;
+
+  // the requests still being answered, by request id
+  private final ConcurrentHashMap<String, String> requests = new ConcurrentHashMap<String, String>();
+  // held while the requests are sent and their ids registered, an answer can beat the id back
+  private final ReentrantLock registering = new ReentrantLock();
+  private volatile boolean sending;
+  private volatile CountDownLatch done = new CountDownLatch(0);
+  // filled on the callback thread only, handed to the writer once full
+  private PositionHistoryStore.Rows positions = new PositionHistoryStore.Rows();
+  private PositionHistoryStore.Rows orders = new PositionHistoryStore.Rows();
+  private volatile int added, received;
+  private volatile boolean failed, stopped;
+
+  /**
+   * @param gateway - the gateway of a logged in session
+   * @param store - the store the history is written to
+   * @param pageSize - how many closed positions are written per segment
+   * @param output - where to display the progress of the ingestion
+   */
+  public HistoryIngestion(IGateway gateway, PositionHistoryStore store, int pageSize, PrintWriter output)
+  {
+    this.gateway = gateway;
+    this.store = store;
+    this.pageSize = pageSize;
+    this.output = output;
+    // a single daemon thread, pages are written in order and never keep the process alive
+    this.writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "fxcm-history");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Request the closed positions and the working orders and wait for them to be stored
+   *
+   * @param timeoutMillis - how long to wait for the answers and the writes
+   *
+   * @return true if everything was stored within the timeout
+   */
+  public boolean run(long timeoutMillis) throws InterruptedException
+  {
+    requests.clear();
+    added = received = 0;
+    failed = false;
+    // each request counts down once its answer has been written
+    done = new CountDownLatch(2);
+    registering.lock();
+    sending = true;
+    try
+    {
+      requests.put(gateway.requestClosedPositions(), "closed");
+      requests.put(gateway.requestOpenOrders(), "orders");
+    }
+    finally
+    {
+      sending = false;
+      registering.unlock();
+    }
+    boolean complete = done.await(timeoutMillis, TimeUnit.MILLISECONDS) && !failed;
+    output.println("History ingested " + received + " closed positions, " + added + " new, "
+      + store.getWorkingCount() + " working orders" + (complete ? "" : ", incomplete"));
+    return complete;
+  }
+
+  /**
+   * @param requestId - the request id of a message received
+   * @return true if the message answers one of the requests of the current ingestion
+   */
+  public boolean isIngesting(String requestId)
+  {
+    if(requestId == null) return false;
+    if(sending)
+    {
+      // wait for the ids of the requests being sent
+      registering.lock();
+      registering.unlock();
+    }
+    return requests.containsKey(requestId);
+  }
+
+  /**
+   * Gather a closed position of the current ingestion; callback thread only
+   */
+  public void received(PositionReport pr)
+  {
+    if(stopped) return;
+    if(pr instanceof ClosedPositionReport)
+    {
+      ClosedPositionReport cpr = (ClosedPositionReport)pr;
+      try
+      {
+        PositionQty pq = cpr.getPositionQty();
+        boolean buy = pq.getLongQty() > 0;
+        positions.add(OrderStateTable.parseId(cpr.getFXCMPosID()), cpr.getAccount(),
+          cpr.getInstrument().getSymbol(), buy, buy ? pq.getLongQty() : pq.getShortQty(), cpr.getSettlPrice(),
+          cpr.getFXCMCloseSettlPrice(), cpr.getFXCMPosClosePNL(), millis(cpr.getFXCMPosOpenTime()),
+          millis(cpr.getFXCMPosCloseTime()));
+        received++;
+      }
+      catch(NotDefinedException e) { e.printStackTrace(); }
+      if(positions.size() >= pageSize) flush();
+    }
+    finished(pr.getRequestID(), pr.isLastRptRequested());
+  }
+
+  /**
+   * Gather a working order of the current ingestion; callback thread only
+   */
+  public void received(ExecutionReport er)
+  {
+    if(stopped) return;
+    try
+    {
+      orders.add(OrderStateTable.parseId(er.getOrderID()), er.getAccount(), er.getInstrument().getSymbol(),
+        er.getSide() == SideFactory.BUY, er.getOrderQty(), er.getPrice(), 0, 0, 0, 0);
+    }
+    catch(NotDefinedException e) { e.printStackTrace(); }
+    finished(er.getRequestID(), er.isLastRptRequested());
+  }
+
+  /**
+   * Record that a request of the current ingestion was answered with nothing to report
+   */
+  public void empty(String requestId)
+  {
+    finished(requestId, true);
+  }
+
+  /**
+   * Count a request once its last message has been received, writing what is left of its answer
+   */
+  private void finished(String requestId, boolean last)
+  {
+    if(!last || requestId == null || stopped) return;
+    String request = requests.remove(requestId);
+    if(request == null) return;
+    if(request.equals("closed"))
+    {
+      // the last page, partial or empty, releases the wait once written
+      flush();
+      write(new Runnable()
+      {
+        @Override public void run() { done.countDown(); }
+      });
+    }
+    else
+    {
+      final PositionHistoryStore.Rows page = orders;
+      orders = new PositionHistoryStore.Rows();
+      write(new Runnable()
+      {
+        @Override public void run()
+        {
+          try { store.replaceWorkingOrders(page); }
+          catch(IOException e) { failed = true; e.printStackTrace(); }
+          done.countDown();
+        }
+      });
+    }
+  }
+
+  /**
+   * Hand the page of closed positions gathered so far to the writer
+   */
+  private void flush()
+  {
+    if(positions.size() == 0 || stopped) return;
+    final PositionHistoryStore.Rows page = positions;
+    positions = new PositionHistoryStore.Rows();
+    write(new Runnable()
+    {
+      @Override public void run()
+      {
+        try { added += store.append(page); }
+        catch(IOException e) { failed = true; e.printStackTrace(); }
+      }
+    });
+  }
+
+  /**
+   * Hand a task to the writer, dropping it if the ingestion was stopped meanwhile
+   */
+  private void write(Runnable task)
+  {
+    try { writer.execute(task); }
+    catch(RejectedExecutionException e) { }
+  }
+
+  /**
+   * Stop the writer once the ingestions are over; the answers arriving late are ignored
+   */
+  public void stop()
+  {
+    stopped = true;
+    requests.clear();
+    // the pages are dropped with the requests, a late report goes into a page never written
+    positions = new PositionHistoryStore.Rows();
+    orders = new PositionHistoryStore.Rows();
+    writer.shutdown();
+  }
+
+  private static long millis(UTCTimestamp timestamp)
+  {
+    return timestamp == null ? 0 : timestamp.toDate().getTime();
+  }
+
+  /**
+   * @return the history requests sent and not yet answered in full
+   */
+  public int outstanding() { return requests.size(); }
+
+  public int getReceived() { return received; }
+  public int getAdded() { return added; }
+}
@@ -0,0 +1,367 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.external.api.transport.IGateway;
+import com.fxcm.fix.IFixDefs;
+import com.fxcm.fix.pretrade.MarketDataRequest;
+import com.fxcm.fix.pretrade.MarketDataRequestReject;
+import com.fxcm.fix.pretrade.MarketDataSnapshot;
+
+/**
+ * The answer to a historical market data request, delivered candle by candle as it arrives.
+ *
+ * The request is sent when the stream is subscribed to. The owner routes the snapshots and the reject
+ * answering it here with isStreaming() and received(), on the API callback thread. The candles wait
+ * in a bounded buffer and are handed to the subscriber on a thread of the stream, only as many as it
+ * has requested; the stream completes after the candle flagged as the last of the answer, and fails
+ * if the request is rejected. When the buffer is full the callback thread waits for the subscriber
+ * to catch up, which holds back the rest of the answer; a session used for a large history should
+ * carry nothing else. A subscriber that does not make room within ROOM_TIMEOUT_MS, or that throws,
+ * fails or cancels the stream so that the callback thread is never held for longer.
+ *
+ * iterator() reads the stream as a blocking iterator instead, keeping no more candles than the
+ * buffer either way.
+ *
+ * A stream answers a single request and takes a single subscriber.
+ *
+ * @author Richard Kichenama
+ */
+public class HistoryStream implements Flow.Publisher<MarketDataSnapshot>
+{
+  public static final int DEFAULT_BUFFER = 1024;
+  // the longest the callback thread waits for room in the buffer before failing the stream
+  public static final long ROOM_TIMEOUT_MS = 5000;
+
+  private final IGateway gateway;
+  private final MarketDataRequest request;
+  private final int capacity;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // signalled when a candle, demand, the end or a cancel arrives, and when the buffer has room
+  private final Condition ready = lock.newCondition(), room = lock.newCondition();
+  private final ArrayDeque<MarketDataSnapshot> buffer = new ArrayDeque<MarketDataSnapshot>();
+  private Flow.Subscriber<? super MarketDataSnapshot> subscriber;
+  private long demand;
+  private boolean complete, cancelled;
+  private Throwable failure;
+  private volatile String requestId;
+  private volatile boolean sending;
+  private volatile int delivered;
+
+  /**
+   * @param gateway - the gateway of a logged in session
+   * @param request - the historical snapshot request to send
+   * @param capacity - how many candles may wait for the subscriber
+   */
+  public HistoryStream(IGateway gateway, MarketDataRequest request, int capacity)
+  {
+    this.gateway = gateway;
+    this.request = request;
+    this.capacity = Math.max(capacity, 1);
+  }
+
+  /**
+   * Send the request and start delivering its answer to the subscriber
+   */
+  @Override public void subscribe(Flow.Subscriber<? super MarketDataSnapshot> subscriber)
+  {
+    lock.lock();
+    try
+    {
+      if(this.subscriber != null)
+      {
+        subscriber.onSubscribe(new Flow.Subscription()
+        {
+          @Override public void request(long n) { }
+          @Override public void cancel() { }
+        });
+        subscriber.onError(new IllegalStateException("A history stream takes a single subscriber"));
+        return;
+      }
+      this.subscriber = subscriber;
+    }
+    finally { lock.unlock(); }
+    subscriber.onSubscribe(new Flow.Subscription()
+    {
+      @Override public void request(long n) { demand(n); }
+      @Override public void cancel() { HistoryStream.this.cancel(); }
+    });
+    // deliver on a thread of the stream, never on the callback thread
+    Thread deliverer = new Thread(new Runnable()
+    {
+      @Override public void run() { deliver(); }
+    }, "fxcm-history-stream");
+    deliverer.setDaemon(true);
+    deliverer.start();
+    // the answer may arrive before the request id is known, it waits for the send in isStreaming()
+    lock.lock();
+    sending = true;
+    try { requestId = gateway.sendMessage(request); }
+    catch(Exception e) { fail(e); }
+    finally
+    {
+      sending = false;
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hand the candles to the subscriber as they are requested, then the end of the stream
+   */
+  private void deliver()
+  {
+    while(true)
+    {
+      MarketDataSnapshot candle;
+      Throwable error;
+      lock.lock();
+      try
+      {
+        while(!cancelled && failure == null && (buffer.isEmpty() ? !complete : demand == 0))
+          ready.awaitUninterruptibly();
+        if(cancelled) return;
+        error = failure;
+        candle = error == null ? buffer.poll() : null;
+        if(candle != null)
+        {
+          demand--;
+          room.signal();
+        }
+      }
+      finally { lock.unlock(); }
+      // the subscriber is called without the lock, it may request more from onNext
+      if(error != null) { subscriber.onError(error); return; }
+      if(candle == null) { subscriber.onComplete(); return; }
+      delivered++;
+      try { subscriber.onNext(candle); }
+      catch(RuntimeException e)
+      {
+        // a subscriber that throws has cancelled, the callback thread must not wait on it for room
+        e.printStackTrace();
+        cancel();
+        return;
+      }
+    }
+  }
+
+  private void demand(long n)
+  {
+    if(n <= 0)
+    {
+      fail(new IllegalArgumentException("A subscriber must request a positive number of candles"));
+      return;
+    }
+    lock.lock();
+    try
+    {
+      // unbounded once it would overflow
+      demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      ready.signal();
+    }
+    finally { lock.unlock(); }
+  }
+
+  private void cancel()
+  {
+    lock.lock();
+    try
+    {
+      cancelled = true;
+      buffer.clear();
+      ready.signal();
+      room.signalAll();
+    }
+    finally { lock.unlock(); }
+  }
+
+  private void fail(Throwable error)
+  {
+    lock.lock();
+    try
+    {
+      if(failure == null && !complete) failure = error;
+      buffer.clear();
+      ready.signal();
+      room.signalAll();
+    }
+    finally { lock.unlock(); }
+  }
+
+  /**
+   * @param requestId - the request id of a message received
+   * @return true if the message answers the request of this stream
+   */
+  public boolean isStreaming(String requestId)
+  {
+    if(requestId == null) return false;
+    if(sending)
+    {
+      // wait for the id of the request being sent
+      lock.lock();
+      lock.unlock();
+    }
+    return requestId.equals(this.requestId);
+  }
+
+  /**
+   * Take a candle of the answer, waiting up to ROOM_TIMEOUT_MS for room in the buffer; callback thread only
+   */
+  public void received(MarketDataSnapshot mds)
+  {
+    boolean interrupted = false;
+    lock.lock();
+    try
+    {
+      long left = TimeUnit.MILLISECONDS.toNanos(ROOM_TIMEOUT_MS);
+      while(buffer.size() >= capacity && !cancelled && failure == null)
+      {
+        if(left <= 0)
+        {
+          // the subscriber stopped taking candles, let go of the callback thread
+          failure = new IllegalStateException("No room for the history within " + ROOM_TIMEOUT_MS + "ms");
+          buffer.clear();
+          ready.signal();
+          return;
+        }
+        try { left = room.awaitNanos(left); }
+        catch(InterruptedException e) { interrupted = true; }
+      }
+      if(cancelled || failure != null || complete) return;
+      buffer.add(mds);
+      complete = mds.getFXCMContinuousFlag() == IFixDefs.FXCMCONTINUOUS_END;
+      ready.signal();
+    }
+    finally
+    {
+      lock.unlock();
+      if(interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Fail the stream with the reason the request was rejected; callback thread only
+   */
+  public void received(MarketDataRequestReject mdrr)
+  {
+    fail(new IllegalStateException("Historical data rejected; " + mdrr.getMDReqRejReason()));
+  }
+
+  /**
+   * Read the stream as a blocking iterator; subscribes to the stream, so the request is sent now
+   *
+   * hasNext() waits for the next candle or the end of the stream, and throws an IllegalStateException
+   * if the request failed.
+   */
+  public Iterator<MarketDataSnapshot> iterator()
+  {
+    return iterator(0);
+  }
+
+  /**
+   * Read the stream as a blocking iterator that gives up on a server gone quiet; hasNext() cancels the
+   * stream and throws an IllegalStateException once no candle arrived for the timeout
+   *
+   * @param timeoutMillis - the longest wait for the next candle, 0 to wait as long as it takes
+   */
+  public Iterator<MarketDataSnapshot> iterator(long timeoutMillis)
+  {
+    BlockingIterator iterator = new BlockingIterator(capacity, timeoutMillis);
+    subscribe(iterator);
+    return iterator;
+  }
+
+  /**
+   * @return the number of candles handed to the subscriber so far
+   */
+  public int getDelivered() { return delivered; }
+
+  /**
+   * A subscriber read by a blocking iterator, requesting more as the candles are taken
+   */
+  private static final class BlockingIterator implements Flow.Subscriber<MarketDataSnapshot>,
+    Iterator<MarketDataSnapshot>
+  {
+    private final int batch;
+    private final long timeoutMillis;
+    private final ArrayDeque<MarketDataSnapshot> candles = new ArrayDeque<MarketDataSnapshot>();
+    private Flow.Subscription subscription;
+    private boolean done;
+    private Throwable failure;
+    private int taken;
+
+    BlockingIterator(int batch, long timeoutMillis)
+    {
+      this.batch = batch;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override public void onSubscribe(Flow.Subscription subscription)
+    {
+      this.subscription = subscription;
+      subscription.request(batch);
+    }
+
+    @Override public synchronized void onNext(MarketDataSnapshot candle)
+    {
+      candles.add(candle);
+      notifyAll();
+    }
+
+    @Override public synchronized void onError(Throwable error)
+    {
+      failure = error;
+      done = true;
+      notifyAll();
+    }
+
+    @Override public synchronized void onComplete()
+    {
+      done = true;
+      notifyAll();
+    }
+
+    @Override public synchronized boolean hasNext()
+    {
+      boolean interrupted = false;
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while(candles.isEmpty() && !done)
+      {
+        long left = deadline - System.currentTimeMillis();
+        if(timeoutMillis > 0 && left <= 0)
+        {
+          // the stream may be waiting on room in its buffer, never on this iterator again
+          subscription.cancel();
+          failure = new IllegalStateException("No candle within " + timeoutMillis + "ms");
+          done = true;
+          break;
+        }
+        try { wait(timeoutMillis > 0 ? left : 0); }
+        catch(InterruptedException e) { interrupted = true; }
+      }
+      if(interrupted) Thread.currentThread().interrupt();
+      if(!candles.isEmpty()) return true;
+      if(failure != null) throw new IllegalStateException(failure.getMessage(), failure);
+      return false;
+    }
+
+    @Override public MarketDataSnapshot next()
+    {
+      MarketDataSnapshot candle;
+      synchronized(this)
+      {
+        if(!hasNext()) throw new NoSuchElementException();
+        candle = candles.poll();
+        // ask for the next batch once half of this one has been taken
+        if(++taken < batch / 2 + 1) return candle;
+        taken = 0;
+      }
+      subscription.request(batch / 2 + 1);
+      return candle;
+    }
+  }
+}
@@ -0,0 +1,456 @@
+/**
+ * Library of technical indicators for strategies built on the examples.
+ *
+ * Every indicator is available in two forms:
+ *  - an incremental object that is fed one value (bar or tick) at a time and updates in constant time
+ *    without allocating; all buffers are created in the constructor
+ *  - a static batch function that computes the whole series over the columns of a CandleColumns
+ *    store (or any primitive array), writing into a caller supplied output array; on the Vector API
+ *    of VectorIndicators when the JVM runs with --add-modules jdk.incubator.vector -Dfxcm.vector=true
+ *
+ * Values produced before an indicator has seen a full period are reported as Double.NaN, check
+ * isReady() on the incremental forms.
+ *
+ * @author Richard Kichenama
+ */
+public final class Indicators
+{
+  // the batch forms run on the Vector API with -Dfxcm.vector=true, once its incubator module is added
+  static final boolean VECTOR = Boolean.getBoolean("fxcm.vector")
+    && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  private Indicators() { }
+
+  /**
+   * Simple moving average over the last period values
+   */
+  public static final class SimpleMovingAverage
+  {
+    private final double[] window;
+    private int count, next;
+    private double sum;
+
+    public SimpleMovingAverage(int period)
+    {
+      window = new double[period];
+    }
+
+    /**
+     * Add a value and return the updated average
+     */
+    public double update(double value)
+    {
+      // remove the value falling out of the window once it is full
+      if(count == window.length) sum -= window[next];
+      else count++;
+      window[next] = value;
+      sum += value;
+      if(++next == window.length) next = 0;
+      return value();
+    }
+
+    public double value() { return isReady() ? sum / window.length : Double.NaN; }
+    public boolean isReady() { return count == window.length; }
+    public void reset() { count = next = 0; sum = 0; }
+  }
+
+  /**
+   * Exponential moving average, seeded with the simple average of the first period values
+   */
+  public static final class ExponentialMovingAverage
+  {
+    private final int period;
+    private final double alpha;
+    private int count;
+    private double ema;
+
+    public ExponentialMovingAverage(int period)
+    {
+      this.period = period;
+      this.alpha = 2.0 / (period + 1);
+    }
+
+    /**
+     * Add a value and return the updated average
+     */
+    public double update(double value)
+    {
+      // until the period is reached accumulate the simple average used as seed
+      if(count < period)
+      {
+        ema = (ema * count + value) / (count + 1);
+        count++;
+      }
+      else
+        ema += alpha * (value - ema);
+      return value();
+    }
+
+    public double value() { return isReady() ? ema : Double.NaN; }
+    public boolean isReady() { return count >= period; }
+    public void reset() { count = 0; ema = 0; }
+  }
+
+  /**
+   * Average true range with Wilder smoothing
+   */
+  public static final class AverageTrueRange
+  {
+    private final int period;
+    private int count;
+    private double atr, previousClose = Double.NaN;
+
+    public AverageTrueRange(int period)
+    {
+      this.period = period;
+    }
+
+    /**
+     * Add a bar and return the updated average true range
+     */
+    public double update(double high, double low, double close)
+    {
+      double tr = trueRange(high, low, previousClose);
+      previousClose = close;
+      // seed with the simple average of the first period ranges, then smooth
+      if(count < period)
+      {
+        atr = (atr * count + tr) / (count + 1);
+        count++;
+      }
+      else
+        atr += (tr - atr) / period;
+      return value();
+    }
+
+    public double value() { return isReady() ? atr : Double.NaN; }
+    public boolean isReady() { return count >= period; }
+    public void reset() { count = 0; atr = 0; previousClose = Double.NaN; }
+  }
+
+  /**
+   * Bollinger bands; a simple moving average with bands a number of standard deviations either side
+   */
+  public static final class BollingerBands
+  {
+    private final double[] window;
+    private final double width;
+    private int count, next;
+    private double sum, sumOfSquares;
+
+    /**
+     * @param period - the number of values in the average
+     * @param width - the number of standard deviations between the middle and the outer bands
+     */
+    public BollingerBands(int period, double width)
+    {
+      this.window = new double[period];
+      this.width = width;
+    }
+
+    /**
+     * Add a value and return the updated middle band
+     */
+    public double update(double value)
+    {
+      if(count == window.length)
+      {
+        double old = window[next];
+        sum -= old;
+        sumOfSquares -= old * old;
+      }
+      else count++;
+      window[next] = value;
+      sum += value;
+      sumOfSquares += value * value;
+      if(++next == window.length) next = 0;
+      return middle();
+    }
+
+    public double middle() { return isReady() ? sum / window.length : Double.NaN; }
+    public double upper() { return middle() + width * deviation(); }
+    public double lower() { return middle() - width * deviation(); }
+
+    /**
+     * The population standard deviation of the window
+     */
+    public double deviation()
+    {
+      if(!isReady()) return Double.NaN;
+      double mean = sum / window.length;
+      // clamp at zero, the running sums can leave a tiny negative residue
+      return Math.sqrt(Math.max(0, sumOfSquares / window.length - mean * mean));
+    }
+
+    public boolean isReady() { return count == window.length; }
+    public void reset() { count = next = 0; sum = sumOfSquares = 0; }
+  }
+
+  /**
+   * Relative strength index with Wilder smoothing
+   */
+  public static final class RelativeStrengthIndex
+  {
+    private final int period;
+    private int count;
+    private double averageGain, averageLoss, previous = Double.NaN;
+
+    public RelativeStrengthIndex(int period)
+    {
+      this.period = period;
+    }
+
+    /**
+     * Add a value and return the updated index, between 0 and 100
+     */
+    public double update(double value)
+    {
+      // the first value only establishes the reference for the next change
+      if(Double.isNaN(previous)) { previous = value; return Double.NaN; }
+      double change = value - previous;
+      previous = value;
+      double gain = change > 0 ? change : 0;
+      double loss = change < 0 ? -change : 0;
+      if(count < period)
+      {
+        averageGain = (averageGain * count + gain) / (count + 1);
+        averageLoss = (averageLoss * count + loss) / (count + 1);
+        count++;
+      }
+      else
+      {
+        averageGain += (gain - averageGain) / period;
+        averageLoss += (loss - averageLoss) / period;
+      }
+      return value();
+    }
+
+    public double value() { return isReady() ? rsi(averageGain, averageLoss) : Double.NaN; }
+    public boolean isReady() { return count >= period; }
+    public void reset() { count = 0; averageGain = averageLoss = 0; previous = Double.NaN; }
+  }
+
+  /**
+   * Minimum and maximum over the last period values, kept with monotonic queues so each update is
+   * amortized constant time
+   */
+  public static final class RollingExtremes
+  {
+    private final int period;
+    private final double[] minValues, maxValues;
+    private final long[] minIndex, maxIndex;
+    private int minHead, minTail, maxHead, maxTail;
+    private long seen;
+
+    public RollingExtremes(int period)
+    {
+      this.period = period;
+      // a queue can never hold more than period entries
+      minValues = new double[period];
+      maxValues = new double[period];
+      minIndex = new long[period];
+      maxIndex = new long[period];
+    }
+
+    /**
+     * Add a value to the window
+     */
+    public void update(double value)
+    {
+      long expired = seen - period;
+      // drop the entries that left the window from the front of each queue
+      while(minHead != minTail && minIndex[minHead % period] <= expired) minHead++;
+      while(maxHead != maxTail && maxIndex[maxHead % period] <= expired) maxHead++;
+      // drop the entries that can no longer be the extreme from the back of each queue
+      while(minHead != minTail && minValues[(minTail - 1) % period] >= value) minTail--;
+      while(maxHead != maxTail && maxValues[(maxTail - 1) % period] <= value) maxTail--;
+      minValues[minTail % period] = value;
+      minIndex[minTail++ % period] = seen;
+      maxValues[maxTail % period] = value;
+      maxIndex[maxTail++ % period] = seen;
+      seen++;
+      // keep the counters small, shifting both ends by the same multiple of the period
+      if(minHead >= period) { minHead -= period; minTail -= period; }
+      if(maxHead >= period) { maxHead -= period; maxTail -= period; }
+    }
+
+    public double min() { return minHead == minTail ? Double.NaN : minValues[minHead % period]; }
+    public double max() { return maxHead == maxTail ? Double.NaN : maxValues[maxHead % period]; }
+    public boolean isReady() { return seen >= period; }
+    public void reset() { minHead = minTail = maxHead = maxTail = 0; seen = 0; }
+  }
+
+  /*
+   * Batch forms. Each function reads the first length values of its inputs and writes length values
+   * to out. The running sums and the smoothing carry a value from one element to the next, which keeps
+   * the JIT from vectorizing these loops; they stay scalar, with the independent work such as the true
+   * ranges split out into loops of their own. The window sums and the per element arithmetic are
+   * vectorized explicitly by VectorIndicators when VECTOR is set.
+   */
+
+  /**
+   * Simple moving average of the series
+   */
+  public static void sma(double[] in, int length, int period, double[] out)
+  {
+    if(VECTOR)
+    {
+      VectorIndicators.sma(in, length, period, out);
+      return;
+    }
+    double sum = 0;
+    for(int i = 0; i < length; i++)
+    {
+      sum += in[i];
+      if(i >= period) sum -= in[i - period];
+      out[i] = i >= period - 1 ? sum / period : Double.NaN;
+    }
+  }
+
+  /**
+   * Exponential moving average of the series, seeded with the simple average of the first period
+   */
+  public static void ema(double[] in, int length, int period, double[] out)
+  {
+    double alpha = 2.0 / (period + 1), ema = 0;
+    for(int i = 0; i < length; i++)
+    {
+      if(i < period) ema = (ema * i + in[i]) / (i + 1);
+      else ema += alpha * (in[i] - ema);
+      out[i] = i >= period - 1 ? ema : Double.NaN;
+    }
+  }
+
+  /**
+   * Average true range of the series
+   */
+  public static void atr(double[] high, double[] low, double[] close, int length, int period, double[] out)
+  {
+    if(length == 0) return;
+    // the true ranges are independent of each other, compute them in one pass first
+    out[0] = high[0] - low[0];
+    if(VECTOR) VectorIndicators.trueRanges(high, low, close, length, out);
+    else for(int i = 1; i < length; i++)
+      out[i] = Math.max(high[i], close[i - 1]) - Math.min(low[i], close[i - 1]);
+    // then smooth them in place
+    double atr = 0;
+    for(int i = 0; i < length; i++)
+    {
+      if(i < period) atr = (atr * i + out[i]) / (i + 1);
+      else atr += (out[i] - atr) / period;
+      out[i] = i >= period - 1 ? atr : Double.NaN;
+    }
+  }
+
+  /**
+   * Bollinger bands of the series, any of the outputs may be null if not required
+   */
+  public static void bollinger(double[] in, int length, int period, double width,
+    double[] middle, double[] upper, double[] lower)
+  {
+    if(VECTOR)
+    {
+      VectorIndicators.bollinger(in, length, period, width, middle, upper, lower);
+      return;
+    }
+    double sum = 0, sumOfSquares = 0;
+    for(int i = 0; i < length; i++)
+    {
+      double v = in[i];
+      sum += v;
+      sumOfSquares += v * v;
+      if(i >= period)
+      {
+        double old = in[i - period];
+        sum -= old;
+        sumOfSquares -= old * old;
+      }
+      double mean = Double.NaN, band = Double.NaN;
+      if(i >= period - 1)
+      {
+        mean = sum / period;
+        band = width * Math.sqrt(Math.max(0, sumOfSquares / period - mean * mean));
+      }
+      if(middle != null) middle[i] = mean;
+      if(upper != null) upper[i] = mean + band;
+      if(lower != null) lower[i] = mean - band;
+    }
+  }
+
+  /**
+   * Relative strength index of the series
+   */
+  public static void rsi(double[] in, int length, int period, double[] out)
+  {
+    if(VECTOR)
+    {
+      VectorIndicators.rsi(in, length, period, out);
+      return;
+    }
+    if(length == 0) return;
+    out[0] = Double.NaN;
+    double gain = 0, loss = 0;
+    for(int i = 1; i < length; i++)
+    {
+      double change = in[i] - in[i - 1];
+      double g = change > 0 ? change : 0, l = change < 0 ? -change : 0;
+      int n = i - 1;
+      if(n < period)
+      {
+        gain = (gain * n + g) / (n + 1);
+        loss = (loss * n + l) / (n + 1);
+      }
+      else
+      {
+        gain += (g - gain) / period;
+        loss += (l - loss) / period;
+      }
+      out[i] = i >= period ? rsi(gain, loss) : Double.NaN;
+    }
+  }
+
+  /**
+   * Rolling minimum and maximum of the series, either output may be null if not required
+   */
+  public static void extremes(double[] in, int length, int period, double[] min, double[] max)
+  {
+    RollingExtremes window = new RollingExtremes(period);
+    for(int i = 0; i < length; i++)
+    {
+      window.update(in[i]);
+      if(min != null) min[i] = window.isReady() ? window.min() : Double.NaN;
+      if(max != null) max[i] = window.isReady() ? window.max() : Double.NaN;
+    }
+  }
+
+  /**
+   * Mid prices of a candle store, the average of the bid and ask close of each candle
+   */
+  public static double[] midClose(CandleColumns candles, double[] out)
+  {
+    double[] bid = candles.bidClose(), ask = candles.askClose();
+    int length = candles.size();
+    if(out == null || out.length < length) out = new double[length];
+    if(VECTOR) VectorIndicators.midClose(bid, ask, length, out);
+    else for(int i = 0; i < length; i++) out[i] = (bid[i] + ask[i]) * 0.5;
+    return out;
+  }
+
+  /**
+   * The true range of a bar given the previous close, the high low range if there is no previous close
+   */
+  static double trueRange(double high, double low, double previousClose)
+  {
+    if(Double.isNaN(previousClose)) return high - low;
+    return Math.max(high, previousClose) - Math.min(low, previousClose);
+  }
+
+  /**
+   * Convert the smoothed gain and loss into the index
+   */
+  static double rsi(double gain, double loss)
+  {
+    if(loss == 0) return gain == 0 ? 50 : 100;
+    return 100 - 100 / (1 + gain / loss);
+  }
+}
@@ -3,13 +3,10 @@ import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 import com.fxcm.external.api.transport.FXCMLoginProperties;
 import com.fxcm.external.api.transport.GatewayFactory;
@@ -17,6 +14,7 @@ import com.fxcm.external.api.transport.IGateway;
 import com.fxcm.external.api.transport.listeners.IGenericMessageListener;
 import com.fxcm.external.api.transport.listeners.IStatusMessageListener;
 import com.fxcm.fix.FXCMTimingIntervalFactory;
+import com.fxcm.fix.IFXCMTimingInterval;
 import com.fxcm.fix.IFixDefs;
 import com.fxcm.fix.NotDefinedException;
 import com.fxcm.fix.SubscriptionRequestTypeFactory;
@@ -41,6 +39,8 @@ public class JavaFixHistoryMiner
 {
   private static final String server = "http://www.fxcorporate.com/Hosts.jsp";
   private static final String TEST_CURRENCY = "EUR/USD";
+  // the longest wait for the next candle of a history stream before giving up on it
+  private static final long CANDLE_TIMEOUT_MS = 30000;
 
   private FXCMLoginProperties login;
   private IGateway gateway;
@@ -48,7 +48,14 @@ public class JavaFixHistoryMiner
   private boolean requestComplete;
 
   private ArrayList<CollateralReport> accounts = new ArrayList<CollateralReport>();
-  private HashMap<UTCDate, MarketDataSnapshot> historicalRates = new HashMap<UTCDate, MarketDataSnapshot>();
+  // the instruments of the session, to request their history
+  private TradingSessionStatus tradingSession;
+  // the history request being answered, if any
+  private volatile HistoryStream stream;
+  // the one minute candles taken from the stream so far
+  private final CandleColumns history = new CandleColumns(TEST_CURRENCY);
+  // the coarser timeframes resampled from the one minute candles downloaded, once asked for
+  private CandlePyramid pyramid;
  
   private static PrintWriter output = new PrintWriter((OutputStream)System.out, true);
   public PrintWriter getOutput() { return output; }
@@ -285,40 +292,48 @@ public class JavaFixHistoryMiner
     // check to see if there is a request from main application for a session update
     if(currentRequest.equals(tss.getRequestID()))
     {
+      // keep the session to request the history of its instruments
+      tradingSession = tss;
       // set that the request is complete for any waiting thread
       requestComplete = true;
-      // attempt to set up the historical market data request
-      try
-      {
-        // create a new market data request
-        MarketDataRequest mdr = new MarketDataRequest();
-        // set the subscription type to ask for only a snapshot of the history
-        mdr.setSubscriptionRequestType(SubscriptionRequestTypeFactory.SNAPSHOT);
-        // request the response to be formated FXCM style
-        mdr.setResponseFormat(IFixDefs.MSGTYPE_FXCMRESPONSE);
-        // set the intervale of the data candles
-        mdr.setFXCMTimingInterval(FXCMTimingIntervalFactory.MIN15);
-        // set the type set for the data candles
-        mdr.setMDEntryTypeSet(MarketDataRequest.MDENTRYTYPESET_ALL);
-        // configure the start and end dates
-        Date now = new Date();
-        Calendar calendar = (Calendar)Calendar.getInstance().clone();
-        calendar.setTime(now);
-        calendar.add(Calendar.DAY_OF_MONTH, -1);
-        Date beforeNow = calendar.getTime();
-        // set the dates and times for the market data request
-        mdr.setFXCMStartDate(new UTCDate(beforeNow));
-        mdr.setFXCMStartTime(new UTCTimeOnly(beforeNow));
-        mdr.setFXCMEndDate(new UTCDate(now));
-        mdr.setFXCMEndTime(new UTCTimeOnly(now));
-        // set the instrument on which the we want the historical data
-        mdr.addRelatedSymbol(tss.getSecurity(TEST_CURRENCY));
-        // send the request
-        sendRequest(mdr);
-      }
-      catch(Exception e) { e.printStackTrace(); }
     }
   }
+
+  /**
+   * Set up a historical market data request, sent once its stream is subscribed to or iterated
+   *
+   * @param symbol - the symbol of the history, like 'EUR/USD'
+   * @param interval - the interval of the candles
+   * @param from - the time of the first candle
+   * @param to - the time of the last candle
+   *
+   * @return the stream the candles of the answer are delivered through as they arrive
+   */
+  public HistoryStream requestHistory(String symbol, IFXCMTimingInterval interval, Date from, Date to)
+    throws NotDefinedException
+  {
+    // create a new market data request
+    MarketDataRequest mdr = new MarketDataRequest();
+    // set the subscription type to ask for only a snapshot of the history
+    mdr.setSubscriptionRequestType(SubscriptionRequestTypeFactory.SNAPSHOT);
+    // request the response to be formated FXCM style
+    mdr.setResponseFormat(IFixDefs.MSGTYPE_FXCMRESPONSE);
+    // set the intervale of the data candles
+    mdr.setFXCMTimingInterval(interval);
+    // set the type set for the data candles
+    mdr.setMDEntryTypeSet(MarketDataRequest.MDENTRYTYPESET_ALL);
+    // set the dates and times for the market data request
+    mdr.setFXCMStartDate(new UTCDate(from));
+    mdr.setFXCMStartTime(new UTCTimeOnly(from));
+    mdr.setFXCMEndDate(new UTCDate(to));
+    mdr.setFXCMEndTime(new UTCTimeOnly(to));
+    // set the instrument on which the we want the historical data
+    mdr.addRelatedSymbol(tradingSession.getSecurity(symbol));
+    // the answer is routed to the stream from now on
+    HistoryStream request = new HistoryStream(gateway, mdr, HistoryStream.DEFAULT_BUFFER);
+    stream = request;
+    return request;
+  }
  
   /**
    * Separate function to handle the rejection of a market data historical snapshot
@@ -327,10 +342,11 @@ public class JavaFixHistoryMiner
    */
   public void messageArrived(MarketDataRequestReject mdrr)
   {
-    // display note consisting of the reason the request was rejected
-    output.println("Historical data rejected; " + mdrr.getMDReqRejReason());
-    // set the state of the request to be complete
-    requestComplete = true;
+    // fail the stream of the request, whoever reads it gets the reason
+    HistoryStream request = stream;
+    if(request != null && request.isStreaming(mdrr.getRequestID())) request.received(mdrr);
+    // otherwise display note consisting of the reason the request was rejected
+    else output.println("Historical data rejected; " + mdrr.getMDReqRejReason());
   }
 
   /**
@@ -343,59 +359,104 @@ public class JavaFixHistoryMiner
    */
   public void messageArrived(MarketDataSnapshot mds)
   {
-    // if the market data snapshot is part of the answer to a specific request
-    try
-    {
-      if(mds.getRequestID() != null && mds.getRequestID().equals(currentRequest))
-      {
-        // add that snapshot to the historicalRates table
-        synchronized(historicalRates) { historicalRates.put(mds.getDate(), mds); }
-        // set the request to be complete only if the continuous flaf is at the end
-        requestComplete = (mds.getFXCMContinuousFlag() == IFixDefs.FXCMCONTINUOUS_END);
-      }
-    }
-    catch (Exception e)
-    {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    // if the market data snapshot is part of the answer to the history request, hand it to its stream
+    HistoryStream request = stream;
+    if(request != null && request.isStreaming(mds.getRequestID())) request.received(mds);
   }
 
   /**
    * Display the historical rates captured
    */
-  public void displayHistory()
+  public void displayHistory() throws InterruptedException
   {
     // give the table a header
     output.println("Rate 15 minute candle History for " + TEST_CURRENCY);
     // give the table column headings
     output.println("Date\t   Time\t\tOBid\tCBid\tHBid\tLBid");
-    // get the keys for the historicalRates table into a sorted list
-    SortedSet<UTCDate> candle = new TreeSet<UTCDate>(historicalRates.keySet());
+    // the 15 minute candles resampled from the one minute candles
+    CandleColumns candles = getPyramid().get(CandlePyramid.MIN15);
     // define a format for the dates
     SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss z");
     // make the date formatter above convert from GMT to EST
     sdf.setTimeZone(TimeZone.getTimeZone("EST"));
-    // go through the keys of the historicalRates table
-    for(int i = 0; i < candle.size(); i++)
+    // go through the candles in time order
+    for(int i = 0; i < candles.size(); i++)
     {
-      // create a single instance of the snapshot
-      MarketDataSnapshot candleData;
-      synchronized(historicalRates) { candleData = historicalRates.get(candle.toArray()[i]); }
-      // convert the key to a Date
-      Date candleDate = ((UTCDate)candle.toArray()[i]).toDate();
-      // print out the historicalRate table data
+      // print out the candle data
       output.println(
-        sdf.format(candleDate) + "\t" +    // the date and time formatted and converted to EST
-        candleData.getBidOpen() + "\t" +   // the open bid for the candle
-        candleData.getBidClose() + "\t" +  // the close bid for the candle
-        candleData.getBidHigh() + "\t" +   // the high bid for the candle
-        candleData.getBidLow());           // the low bid for the candle
+        sdf.format(new Date(candles.time()[i])) + "\t" + // the date and time formatted and converted to EST
+        candles.bidOpen()[i] + "\t" +                   // the open bid for the candle
+        candles.bidClose()[i] + "\t" +                  // the close bid for the candle
+        candles.bidHigh()[i] + "\t" +                   // the high bid for the candle
+        candles.bidLow()[i]);                           // the low bid for the candle
     }
     // repeat the table column headings
     output.println("Date\t   Time\t\tOBid\tCBid\tHBid\tLBid");
   }
 
+  /**
+   * Copy the candles of a history stream into the columnar arrays as they arrive, so that indicators
+   * and other calculations can be run over the series in batch; waits for the end of the stream, or
+   * fails with an IllegalStateException once the server sends nothing for CANDLE_TIMEOUT_MS.
+   *
+   * The columns stay in time order: a candle of the time of the last one replaces it, as a candle
+   * still forming would, and an older one is skipped. The pyramid, if built, is extended after.
+   *
+   * @return the number of candles added to the columns
+   */
+  public int collectHistory(HistoryStream candles)
+  {
+    int count = 0;
+    for(Iterator<MarketDataSnapshot> it = candles.iterator(CANDLE_TIMEOUT_MS); it.hasNext(); )
+    {
+      MarketDataSnapshot candle = it.next();
+      long time = candle.getDate().toDate().getTime();
+      int last = history.size() - 1;
+      if(last >= 0 && time < history.time()[last]) continue;
+      // copy every price of the candle into its column
+      if(last >= 0 && time == history.time()[last])
+        history.updateLast(candle.getBidOpen(), candle.getBidHigh(), candle.getBidLow(), candle.getBidClose(),
+          candle.getAskOpen(), candle.getAskHigh(), candle.getAskLow(), candle.getAskClose());
+      else
+      {
+        history.add(time, candle.getBidOpen(), candle.getBidHigh(), candle.getBidLow(), candle.getBidClose(),
+          candle.getAskOpen(), candle.getAskHigh(), candle.getAskLow(), candle.getAskClose());
+        count++;
+      }
+    }
+    // fold what was collected into the timeframes already resampled
+    synchronized(this)
+    {
+      if(pyramid != null) pyramid.extend();
+    }
+    return count;
+  }
+
+  /**
+   * @return the candles collected from the history streams, in the order they arrived
+   */
+  public CandleColumns getHistoryColumns()
+  {
+    return history;
+  }
+
+  /**
+   * The timeframes of the captured history, resampled from its one minute candles on all the cores the
+   * first time they are asked for; further timeframes are resampled and kept on demand
+   *
+   * @return the pyramid of the 15 minute, hourly and daily candles
+   */
+  public synchronized CandlePyramid getPyramid() throws InterruptedException
+  {
+    if(pyramid == null)
+    {
+      pyramid = new CandlePyramid(getHistoryColumns(), 0);
+      pyramid.build(new long[] { CandlePyramid.MIN15, CandlePyramid.HOUR1, CandlePyramid.DAY1 },
+        Runtime.getRuntime().availableProcessors());
+    }
+    return pyramid;
+  }
+
   public static void main(String[] args)
   {
     try
@@ -406,15 +467,12 @@ public class JavaFixHistoryMiner
       miner.login();
       // retrieve the trader accounts to ensure login process is complete
       miner.retrieveAccounts();
-      // display nore that the history display is delayed
-      // partially for theatrics, partially to ensure all the rates are collected
-      output.println("Displaying history in");
-      // wait ~ 2.5 seconds
-      for(int i = 5; i > 0; i--)
-      {
-        output.println(i + "...");
-        Thread.sleep(500);
-      }
+      // stream the one minute candles of the last day, every coarser one is resampled locally
+      Date now = new Date();
+      Date dayAgo = new Date(now.getTime() - 86400000L);
+      HistoryStream candles = miner.requestHistory(TEST_CURRENCY, FXCMTimingIntervalFactory.MIN1, dayAgo, now);
+      // take the candles as they arrive, until the last one
+      output.println("Received " + miner.collectHistory(candles) + " candles");
       // display the collected rates
       miner.displayHistory();
       // log out of the api
@@ -1,8 +1,14 @@
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.LongSupplier;
 import com.fxcm.external.api.transport.FXCMLoginProperties;
 import com.fxcm.external.api.transport.GatewayFactory;
 import com.fxcm.external.api.transport.IGateway;
@@ -11,6 +17,7 @@ import com.fxcm.external.api.transport.listeners.IStatusMessageListener;
 import com.fxcm.external.api.util.MessageGenerator;
 import com.fxcm.fix.ContingencyTypeFactory;
 import com.fxcm.fix.FXCMOrdStatusFactory;
+import com.fxcm.fix.IFXCMOrdStatus;
 import com.fxcm.fix.IFixDefs;
 import com.fxcm.fix.ISide;
 import com.fxcm.fix.ITimeInForce;
@@ -21,6 +28,8 @@ import com.fxcm.fix.PositionQty;
 import com.fxcm.fix.SideFactory;
 import com.fxcm.fix.TimeInForceFactory;
 import com.fxcm.fix.TradingSecurity;
+import com.fxcm.fix.UTCDate;
+import com.fxcm.fix.posttrade.ClosedPositionReport;
 import com.fxcm.fix.posttrade.CollateralReport;
 import com.fxcm.fix.posttrade.PositionReport;
 import com.fxcm.fix.posttrade.RequestForPositionsAck;
@@ -50,8 +59,33 @@ public class JavaFixTrader
   
   private FXCMLoginProperties login;
   private IGateway gateway;
-  private String currentRequest, currentResult;
-  private boolean requestComplete;
+  private volatile String currentRequest = "", currentResult;
+  private volatile boolean requestComplete;
+  
+  // session metadata loaded from disk to start trading before the live session is retrieved
+  private static final File SNAPSHOT_FILE = new File("session.snapshot");
+  // spread and time between rates of every symbol, merged across sessions
+  private static final File QUOTE_STATS_FILE = new File("quote.stats");
+  // how long to wait for the closed positions and working orders to be fetched
+  private static final long HISTORY_TIMEOUT_MS = 120000;
+  // how long the kill switch waits for each list and each round of cancels or closes
+  private static final long FLATTEN_TIMEOUT_MS = 5000;
+  // how long the strategies are given to stop at logout
+  private static final long STRATEGY_STOP_MS = 2000;
+  private SessionSnapshot snapshot;
+  private String sessionRefresh, accountRefresh;
+  private boolean sessionRefreshed, accountsRefreshed;
+  private volatile boolean liveSession;
+  private final JitWarmup warmup = new JitWarmup();
+  private JavaFixTrader warmupTrader;
+  
+  // reconnects and resyncs the session after a drop when supervision is enabled
+  private volatile ConnectionSupervisor supervisor;
+  private ConnectionSupervisor.OutagePolicy outagePolicy;
+  private HashMap<String, PositionReport> resyncTickets = new HashMap<String, PositionReport>();
+  // set when a resync starts; the state of the lost session is cleared by the thread handling the
+  // messages, before the first message it handles after that
+  private volatile boolean staleSession;
   
   private ArrayList<CollateralReport> accounts = new ArrayList<CollateralReport>();
   private ArrayList<TradingSecurity> instruments = new ArrayList<TradingSecurity>();
@@ -59,6 +93,38 @@ public class JavaFixTrader
   private ArrayList<String> closed = new ArrayList<String>();
   private HashMap<String, PositionReport> tickets = new HashMap<String, PositionReport>();
   private HashMap<String, MarketDataSnapshot> dealing = new HashMap<String, MarketDataSnapshot>();
+  // state of every working and recently finished order, updated on the callback thread only
+  private final OrderStateTable orderTable = new OrderStateTable(65536);
+  // throughput and queue health, read by JMX and the metrics endpoint
+  private final RuntimeMetrics metrics = new RuntimeMetrics();
+  // stage timings from a dealing rate arriving to the order being sent, off until sampling is set
+  private final LatencyTracer tracer = new LatencyTracer();
+  // unrealized profit and margin of the open positions, revalued on every dealing rate
+  private final PnlEngine pnl = new PnlEngine("USD");
+  // spread percentiles and staleness of every symbol
+  private final QuoteAnalytics quotes = new QuoteAnalytics();
+  // the crosses and baskets derived from the dealing rates, published as dealing rates of their own
+  private final SyntheticRates synthetics = new SyntheticRates(new SyntheticRates.Listener()
+  {
+    @Override public void quoted(MarketDataSnapshot quote)
+    {
+      try { dealt(quote.getInstrument().getSymbol(), quote); }
+      catch(NotDefinedException e) { e.printStackTrace(); }
+    }
+  });
+  // the closed positions and working orders being fetched into the local history store, if any
+  private volatile HistoryIngestion history;
+  private PositionHistoryStore historyStore;
+  // the kill switch cancelling every working order and closing every position, once used
+  private volatile EmergencyFlatten flatten;
+  // the thread owning the session state when the event loop mode is on, null otherwise
+  private volatile SessionEventLoop eventLoop;
+  // the outbound rate limits, null to send without any
+  private volatile OutboundThrottler throttler;
+  // the strategies sharing the session and its dealing rates, once one is added
+  private volatile StrategyHost strategies;
+  // the dealing rates republished for the other processes of the machine, if any
+  private volatile QuoteRing ring;
   private boolean opening = true;
   
   private static PrintWriter output = new PrintWriter((OutputStream)System.out, true);
@@ -82,6 +148,10 @@ public class JavaFixTrader
       this.login = new FXCMLoginProperties(username, password, terminal, server);
     else
       this.login = new FXCMLoginProperties(username, password, terminal, server, file);
+    // register the hot paths for an optional warm-up
+    registerWarmup();
+    // register the sizes of the request and order state with the metrics
+    registerGauges();
   }
 
   /**
@@ -143,12 +213,35 @@ public class JavaFixTrader
         // attempt to re-login to the api
         gateway.relogin();
       }
-      // set the state of the request to be incomplete
-      requestComplete = false;
+      // the rates and the MBean of the metrics are kept from the first login on, exported or not
+      metrics.start();
+      // once logged in, start supervising the session if requested
+      if(outagePolicy != null && supervisor == null)
+        supervisor = new ConnectionSupervisor(gateway, this.login, createResyncListener(), outagePolicy, output);
+      // if a snapshot of the session was loaded, trading can start on it straight away
+      if(snapshot != null)
+      {
+        // refresh the instruments and accounts in the background and reconcile when both arrive
+        onLoop(new Callable<Void>()
+        {
+          @Override public Void call()
+          {
+            liveSession = sessionRefreshed = accountsRefreshed = false;
+            accounts.clear();
+            sessionRefresh = gateway.requestTradingSessionStatus();
+            accountRefresh = gateway.requestAccounts();
+            return null;
+          }
+        });
+        return true;
+      }
       // request the current trading session status
-      currentRequest = gateway.requestTradingSessionStatus();
+      startRequest(new Callable<String>()
+      {
+        @Override public String call() { return gateway.requestTradingSessionStatus(); }
+      });
       // wait until the request is complete
-      while(!requestComplete) {}
+      while(!requestComplete) Thread.onSpinWait();
       // return that this process was successful
       return true;
     }
@@ -157,6 +250,436 @@ public class JavaFixTrader
     return false;
   }
 
+  /**
+   * Enable automatic reconnection for the next login; after a drop the session is logged in again
+   * and the accounts, tracked positions, working orders and dealing rates are requested again
+   * 
+   * @param policy - whether orders sent while the session is down wait for it or are rejected
+   */
+  public void supervise(ConnectionSupervisor.OutagePolicy policy)
+  {
+    outagePolicy = policy;
+  }
+
+  public ConnectionSupervisor getSupervisor() { return supervisor; }
+
+  public OrderStateTable getOrderTable() { return orderTable; }
+
+  public RuntimeMetrics getMetrics() { return metrics; }
+
+  public LatencyTracer getTracer() { return tracer; }
+
+  public PnlEngine getPnl() { return pnl; }
+
+  public QuoteAnalytics getQuoteAnalytics() { return quotes; }
+
+  public SyntheticRates getSynthetics() { return synthetics; }
+
+  public PositionHistoryStore getHistoryStore() { return historyStore; }
+
+  /**
+   * Fetch the closed positions and working orders of the session into the local history store, so
+   * that the reports on them run without the server
+   * 
+   * @param directory - the directory of the store
+   * 
+   * @return true if the whole history was stored, false if it timed out
+   */
+  public boolean ingestHistory(File directory) throws IOException, InterruptedException
+  {
+    if(gateway == null) this.login();
+    if(historyStore == null) historyStore = PositionHistoryStore.open(directory);
+    HistoryIngestion ingestion = new HistoryIngestion(gateway, historyStore, HistoryIngestion.DEFAULT_PAGE_SIZE, output);
+    history = ingestion;
+    try { return ingestion.run(HISTORY_TIMEOUT_MS); }
+    finally
+    {
+      // late answers are no longer routed to the ingestion
+      history = null;
+      ingestion.stop();
+    }
+  }
+
+  /**
+   * Register the state sizes that show whether the session keeps up
+   */
+  private void registerGauges()
+  {
+    metrics.gauge("fxcm_outstanding_requests", "Requests sent and waiting for their answer", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        // the request of the caller and every correlation map of the components running
+        long count = requestComplete ? 0 : 1;
+        EmergencyFlatten flatten = JavaFixTrader.this.flatten;
+        HistoryIngestion history = JavaFixTrader.this.history;
+        ConnectionSupervisor supervisor = JavaFixTrader.this.supervisor;
+        StrategyHost strategies = JavaFixTrader.this.strategies;
+        if(flatten != null) count += flatten.outstanding();
+        if(history != null) count += history.outstanding();
+        if(supervisor != null) count += supervisor.outstanding();
+        if(strategies != null) count += strategies.outstanding();
+        return count;
+      }
+    });
+    metrics.counter("fxcm_session_recoveries_total", "Sessions brought back after a drop", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        ConnectionSupervisor watch = supervisor;
+        return watch == null ? 0 : watch.getRecoveries();
+      }
+    });
+    metrics.gauge("fxcm_last_recovery_nanos", "Time from the last drop to the session state resynced", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        ConnectionSupervisor watch = supervisor;
+        return watch == null ? 0 : watch.getLastRecoveryNanos();
+      }
+    });
+    metrics.gauge("fxcm_max_recovery_nanos", "Longest time from a drop to the session state resynced", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        ConnectionSupervisor watch = supervisor;
+        return watch == null ? 0 : watch.getMaxRecoveryNanos();
+      }
+    });
+    metrics.gauge("fxcm_order_table_size", "Orders held in the order state table", new LongSupplier()
+    {
+      @Override public long getAsLong() { return orderTable.size(); }
+    });
+    metrics.gauge("fxcm_working_orders", "Orders that are not in a final state", new LongSupplier()
+    {
+      @Override public long getAsLong() { return orderTable.getWorkingCount(); }
+    });
+    metrics.gauge("fxcm_tracked_positions", "Positions tracked for closing", new LongSupplier()
+    {
+      @Override public long getAsLong() { return tickets.size(); }
+    });
+    metrics.gauge("fxcm_valued_positions", "Open positions revalued on every dealing rate", new LongSupplier()
+    {
+      @Override public long getAsLong() { return pnl.getPositionCount(); }
+    });
+    metrics.gauge("fxcm_stale_symbols", "Symbols without a dealing rate for longer than usual", new LongSupplier()
+    {
+      @Override public long getAsLong() { return quotes.getStaleSymbols(System.nanoTime()).size(); }
+    });
+    metrics.gauge("fxcm_throttled_waiting", "Messages waiting for their turn under the outbound rate limits", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        OutboundThrottler limits = throttler;
+        return limits == null ? 0 : limits.getWaiting();
+      }
+    });
+    metrics.gauge("fxcm_throttle_risk_p99_nanos", "99th percentile wait of cancels and closes for their turn", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        OutboundThrottler limits = throttler;
+        return limits == null ? 0 : limits.getQueueDelay(OutboundThrottler.RISK_REDUCING).getValueAt(0.99);
+      }
+    });
+    metrics.gauge("fxcm_throttle_new_p99_nanos", "99th percentile wait of new orders for their turn", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        OutboundThrottler limits = throttler;
+        return limits == null ? 0 : limits.getQueueDelay(OutboundThrottler.NEW_ORDER).getValueAt(0.99);
+      }
+    });
+    metrics.gauge("fxcm_strategies", "Strategies running over the session", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        StrategyHost host = strategies;
+        return host == null ? 0 : host.size();
+      }
+    });
+    metrics.gauge("fxcm_strategy_backlog", "Symbols with a dealing rate waiting for a strategy", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        StrategyHost host = strategies;
+        return host == null ? 0 : host.getBacklog();
+      }
+    });
+    metrics.gauge("fxcm_ring_published", "Dealing rates republished into the quote ring file", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        QuoteRing quoteRing = ring;
+        return quoteRing == null ? 0 : quoteRing.getPublished();
+      }
+    });
+    metrics.gauge("fxcm_event_loop_backlog", "Messages and commands waiting for the session event loop", new LongSupplier()
+    {
+      @Override public long getAsLong()
+      {
+        SessionEventLoop loop = eventLoop;
+        return loop == null ? 0 : loop.getBacklog();
+      }
+    });
+    metrics.gauge("fxcm_tick_to_trade_p50_nanos", "Median traced time from tick to order sent", new LongSupplier()
+    {
+      @Override public long getAsLong() { return tracer.getTickToTrade().getValueAt(0.5); }
+    });
+    metrics.gauge("fxcm_tick_to_trade_p99_nanos", "99th percentile traced time from tick to order sent", new LongSupplier()
+    {
+      @Override public long getAsLong() { return tracer.getTickToTrade().getValueAt(0.99); }
+    });
+  }
+
+  /**
+   * Create the listener through which the supervisor has the session state resynced
+   */
+  private ConnectionSupervisor.Listener createResyncListener()
+  {
+    return new ConnectionSupervisor.Listener()
+    {
+      @Override public void disconnected()
+      {
+        // the answer to a waiting request is lost with the session, release the waiting thread
+        currentResult = "NONE";
+        requestComplete = true;
+      }
+
+      @Override public void resyncStarted()
+      {
+        // not cleared here on the reconnector thread, the order table and the P&L are only ever
+        // written by the thread handling the messages; the resync answers are sent after this
+        staleSession = true;
+      }
+
+      @Override public void recovered(long recoveryNanos)
+      {
+        onLoop(new Callable<Void>()
+        {
+          @Override public Void call()
+          {
+            // only the tracked positions that are still open are kept
+            tickets.clear();
+            tickets.putAll(resyncTickets);
+            return null;
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Load the session snapshot saved by a previous run, so that the next login does not wait for the
+   * trading session status and the accounts before returning
+   * 
+   * @param file - the snapshot file
+   * 
+   * @return true if a snapshot was loaded, false if there is none
+   */
+  public boolean loadSnapshot(File file)
+  {
+    snapshot = SessionSnapshot.load(file);
+    if(snapshot != null)
+      output.println("Loaded session snapshot of " + snapshot.getAccountCount() + " accounts and " +
+        snapshot.getInstrumentCount() + " instruments");
+    return snapshot != null;
+  }
+
+  /**
+   * Save the live session metadata for the next run to start from
+   * 
+   * @param file - the snapshot file
+   */
+  public void saveSnapshot(File file)
+  {
+    // only the live session is worth saving, never write back a snapshot that was not confirmed
+    if(snapshot != null ? !liveSession : accounts.isEmpty() || instruments.isEmpty()) return;
+    SessionSnapshot live = SessionSnapshot.capture(accounts, instruments);
+    if(live != null && live.save(file)) output.println("Saved session snapshot");
+  }
+
+  /**
+   * The session metadata to trade on; the live session once it has been retrieved, otherwise the
+   * snapshot loaded at startup
+   */
+  private SessionSnapshot currentSession()
+  {
+    if(snapshot == null || liveSession) return onLoop(new Callable<SessionSnapshot>()
+    {
+      @Override public SessionSnapshot call() { return SessionSnapshot.capture(accounts, instruments); }
+    });
+    return snapshot;
+  }
+
+  /**
+   * The id of the first account under login, from the live session or the snapshot
+   */
+  private String firstAccount()
+  {
+    if(snapshot == null || liveSession) return onLoop(new Callable<String>()
+    {
+      @Override public String call() { return accounts.get(0).getAccount(); }
+    });
+    return snapshot.getAccount(0);
+  }
+
+  /**
+   * Called on the callback thread once the background refresh after a warm start has retrieved both
+   * the instruments and the accounts; reports what changed since the snapshot and switches to the
+   * live session
+   */
+  private void reconcileSnapshot()
+  {
+    SessionSnapshot live = SessionSnapshot.capture(accounts, instruments);
+    if(live == null) return;
+    List<String> changes = snapshot.difference(live);
+    // display the differences found between the snapshot and the server
+    output.println("Session refreshed, " + changes.size() + " changes since snapshot");
+    for(String change : changes) output.println("  " + change);
+    snapshot = live;
+    liveSession = true;
+  }
+
+  /**
+   * Register the hot paths of the trader with the warm-up
+   */
+  private void registerWarmup()
+  {
+    // the indicators a strategy feeds on every tick
+    final Indicators.ExponentialMovingAverage ema = new Indicators.ExponentialMovingAverage(20);
+    final Indicators.BollingerBands bands = new Indicators.BollingerBands(20, 2);
+    final Indicators.RelativeStrengthIndex rsi = new Indicators.RelativeStrengthIndex(14);
+    final Indicators.RollingExtremes range = new Indicators.RollingExtremes(50);
+    warmup.register("indicators", new Runnable()
+    {
+      private int tick;
+      @Override public void run()
+      {
+        // a saw tooth of rates around 1.1 so every branch of the indicators is taken
+        double rate = 1.1 + ((tick++ & 63) - 32) * 0.00003;
+        ema.update(rate);
+        bands.update(rate);
+        rsi.update(rate);
+        range.update(rate);
+      }
+    });
+    // a dealing rate through the message handler: metrics, quote analytics, valuation, synthetics
+    final WarmupRate[] rates = { new WarmupRate("EUR/USD"), new WarmupRate("GBP/USD"), new WarmupRate("USD/JPY") };
+    warmup.register("dealing rates", new Runnable()
+    {
+      private int tick;
+      @Override public void run()
+      {
+        WarmupRate mds = rates[tick % rates.length];
+        double move = ((tick++ & 63) - 32) * 0.00003;
+        if(mds == rates[2]) mds.set(150 + move * 100, 150.02 + move * 100);
+        else mds.set(1.1 + move, 1.1002 + move);
+        warmupTrader().messageArrived((ITransportable)mds);
+      }
+    });
+    // an execution report through the message handler: the order table and the request routing
+    warmup.register("execution reports", new Runnable()
+    {
+      private long order;
+      @Override public void run()
+      {
+        // walk each synthetic order from waiting to executed
+        long id = 1 + (order++ >> 2);
+        warmupTrader().messageArrived((ITransportable)new WarmupReport(Long.toString(id),
+          (order & 3) == 0 ? FXCMOrdStatusFactory.EXECUTED : FXCMOrdStatusFactory.WAITING));
+      }
+    });
+  }
+
+  /**
+   * The trader whose handlers take the synthetic messages of the warm-up; never logged in, so nothing
+   * it does reaches the session, the state of this trader or the output
+   */
+  private JavaFixTrader warmupTrader()
+  {
+    if(warmupTrader == null)
+    {
+      JavaFixTrader scratch = new JavaFixTrader("warmup", "warmup", "warmup");
+      // the execution reports answer a request of its own, which is not displayed
+      scratch.currentRequest = WarmupReport.REQUEST;
+      scratch.synthetics.defineRatio("EUR/GBP", "EUR/USD", "GBP/USD", 0.0001);
+      scratch.synthetics.defineProduct("EUR/JPY", "EUR/USD", "USD/JPY", 0.01);
+      for(int p = 1; p <= 32; p++) scratch.pnl.openPosition(p, "warmup", "EUR/USD", (p & 1) == 0, 10000, 1.1);
+      warmupTrader = scratch;
+    }
+    return warmupTrader;
+  }
+
+  /**
+   * A made up dealing rate of the warm-up, moved before each pass
+   */
+  private static final class WarmupRate extends MarketDataSnapshot
+  {
+    private final Instrument instrument;
+    private final UTCDate date = new UTCDate(new Date());
+    private double bid, ask;
+
+    WarmupRate(final String symbol)
+    {
+      instrument = new Instrument()
+      {
+        @Override public String getSymbol() { return symbol; }
+      };
+    }
+
+    void set(double bid, double ask)
+    {
+      this.bid = bid;
+      this.ask = ask;
+    }
+
+    @Override public Instrument getInstrument() { return instrument; }
+    @Override public UTCDate getDate() { return date; }
+    @Override public double getBidOpen() { return bid; }
+    @Override public double getBidHigh() { return bid; }
+    @Override public double getBidLow() { return bid; }
+    @Override public double getBidClose() { return bid; }
+    @Override public double getAskOpen() { return ask; }
+    @Override public double getAskHigh() { return ask; }
+    @Override public double getAskLow() { return ask; }
+    @Override public double getAskClose() { return ask; }
+  }
+
+  /**
+   * A made up execution report of the warm-up
+   */
+  private static final class WarmupReport extends ExecutionReport
+  {
+    static final String REQUEST = "warmup";
+    private final String orderId;
+    private final IFXCMOrdStatus status;
+
+    WarmupReport(String orderId, IFXCMOrdStatus status)
+    {
+      this.orderId = orderId;
+      this.status = status;
+    }
+
+    @Override public String getRequestID() { return REQUEST; }
+    @Override public String getOrderID() { return orderId; }
+    @Override public IFXCMOrdStatus getFXCMOrdStatus() { return status; }
+    @Override public double getOrderQty() { return 10000; }
+    @Override public double getPrice() { return 1.1; }
+  }
+
+  /**
+   * Push synthetic data through the hot paths so that they are compiled before the market opens
+   * 
+   * @param iterations - the number of passes through each path
+   */
+  public void warmUp(int iterations)
+  {
+    warmup.run(iterations, output);
+  }
+
+  public JitWarmup getWarmup() { return warmup; }
+
   /**
    * Attempt to logout, assuming that the supplied listeners reference self
    */
@@ -173,12 +696,33 @@ public class JavaFixTrader
    */
   public void logout(IGenericMessageListener genericMessageListener, IStatusMessageListener statusMessageListener)
   {
+    // stop supervising first, so the disconnection is not taken for a drop
+    if(supervisor != null) supervisor.stop();
+    supervisor = null;
+    if(flatten != null) flatten.stop();
+    // let the strategies finish what they were doing before the session goes
+    if(strategies != null)
+    {
+      try { strategies.stop(STRATEGY_STOP_MS); }
+      catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
     // attempt to logout of the api
     gateway.logout();
     // remove the generic message listener, stop listening to updates
     gateway.removeGenericMessageListener(genericMessageListener);
     // remove the status message listener, stop listening to status changes
     gateway.removeStatusMessageListener(statusMessageListener);
+    // nothing more arrives for the event loop
+    if(eventLoop != null) eventLoop.stop();
+    eventLoop = null;
+    // the readers of the ring keep the file, they get no more rates
+    QuoteRing quoteRing = ring;
+    ring = null;
+    if(quoteRing != null)
+    {
+      try { quoteRing.close(); }
+      catch(IOException e) { e.printStackTrace(); }
+    }
   }
   
   /**
@@ -188,31 +732,126 @@ public class JavaFixTrader
   {
     // if the gateway is null then attempt to login
     if(gateway == null) this.login();
-    // set the state of the request to be incomplete
-    requestComplete = false;
     // request the refresh of all collateral reports
-    currentRequest = gateway.requestAccounts();
+    startRequest(new Callable<String>()
+    {
+      @Override public String call() { return gateway.requestAccounts(); }
+    });
     // wait until all the reqports have been processed
-    while(!requestComplete) {}
+    while(!requestComplete) Thread.onSpinWait();
     // display the number of accounts processed
     output.println("Count of Accounts: " + accounts.size());
   }
 
   /**
-   * Send a fully formed order to the API and wait for the response.
+   * Send a request whose answer the calling thread waits for, marking it incomplete; on the event loop
+   * when there is one, so that its id is known there before any answer to it is processed
+   * 
+   * @param request - sends the request and returns its request id
+   */
+  private void startRequest(final Callable<String> request)
+  {
+    onLoop(new Callable<Void>()
+    {
+      @Override public Void call() throws Exception
+      {
+        // set the completion status of the request to false
+        requestComplete = false;
+        currentRequest = request.call();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Run a task on the session state; on the event loop when there is one, in place otherwise
+   */
+  private <T> T onLoop(Callable<T> task)
+  {
+    try { return eventLoop == null || eventLoop.inLoop() ? task.call() : eventLoop.call(task); }
+    catch(RuntimeException e) { throw e; }
+    catch(Exception e) { throw new IllegalStateException(e); }
+  }
+
+  /**
+   * Move every change to the session state onto one dedicated thread, fed through a lock-free queue by
+   * the API callback thread and by the threads calling this trader; to be called before login. The
+   * requests of the trader are sent and registered on the loop; the supervisor, the history, the kill
+   * switch and the strategies send from their own threads and register their request ids under their
+   * own locks before an answer is matched
+   * 
+   * @param spin - true for the loop to spin when idle, keeping a CPU busy for the lowest latency; only
+   *        worth it with a core to spare for the loop
+   */
+  public void useEventLoop(boolean spin)
+  {
+    if(eventLoop != null) return;
+    eventLoop = new SessionEventLoop("fxcm-session", this, 65536, spin);
+    eventLoop.start();
+  }
+
+  public SessionEventLoop getEventLoop() { return eventLoop; }
+
+  /**
+   * Limit the rate of the messages sent, letting cancels and closes go before amends and amends before
+   * new orders when the limit is reached
+   * 
+   * @param sessionRate - the messages per second allowed for the session, a little under the server limit
+   * @param accountRate - the messages per second allowed for each account
+   */
+  public void throttle(double sessionRate, double accountRate)
+  {
+    // bursts of a quarter of a second, so that no second ever goes much over the rate
+    throttler = new OutboundThrottler(sessionRate, Math.max(1, sessionRate / 4), accountRate,
+      Math.max(1, accountRate / 4));
+  }
+
+  public OutboundThrottler getThrottler() { return throttler; }
+
+  /**
+   * Send a fully formed order to the API and wait for the response, with the priority of its type
    *  
    *  @return the market order number of placed trade, NONE if the trade did not execute, null on error 
    */
   public String sendRequest(ITransportable order)
+  {
+    return sendRequest(order, OutboundThrottler.classify(order));
+  }
+
+  /**
+   * Send a fully formed order to the API and wait for the response.
+   *
+   * @param priority - OutboundThrottler.RISK_REDUCING for an order closing a position, AMEND or NEW_ORDER
+   */
+  public String sendRequest(final ITransportable order, int priority)
   {
     try
     {
-      // set the completion status of the requst to false
-      requestComplete = false;
+      // a synthetic rate can only be dealt through its legs
+      if(onSynthetic(order))
+      {
+        output.println("Synthetic symbol, order rejected");
+        return "NONE";
+      }
+      // while the session is down, wait for it to recover or reject according to the policy
+      if(supervisor != null && !supervisor.awaitSession())
+      {
+        output.println("Session down, order rejected");
+        return "NONE";
+      }
+      // wait for the turn of the order under the outbound rate limits, unless superseded
+      OutboundThrottler limits = throttler;
+      if(limits != null && !limits.acquire(order, priority)) return "NONE";
       // send the request message to the api
-      currentRequest = gateway.sendMessage(order);
+      startRequest(new Callable<String>()
+      {
+        @Override public String call() throws Exception { return gateway.sendMessage(order); }
+      });
+      // the order is with the gateway, completing its latency trace if one is open
+      tracer.sent();
+      metrics.orderSent();
       // wait until the api answers on this particular request
-      while(!requestComplete) {}
+      while(!requestComplete) Thread.onSpinWait();
       // if there is a value to return, it will be passed by currentResult
       return currentResult;
     }
@@ -221,6 +860,97 @@ public class JavaFixTrader
     return null;
   }
 
+  /**
+   * Send an order to the API without waiting for its answer, which arrives as streaming updates
+   *
+   * @param priority - OutboundThrottler.RISK_REDUCING for an order closing a position, AMEND or NEW_ORDER
+   *
+   * @return the request id of the order, null if it was not sent
+   */
+  public String submit(ITransportable order, int priority)
+  {
+    try { return admit(order, priority) ? dispatch(order) : null; }
+    catch(Exception e) { e.printStackTrace(); }
+    return null;
+  }
+
+  /**
+   * Wait for the turn of an order to be sent by submit()
+   *
+   * @return true to send the order now, false if it is rejected or superseded
+   */
+  private boolean admit(ITransportable order, int priority) throws Exception
+  {
+    if(onSynthetic(order)) return false;
+    // while the session is down, wait for it to recover or reject according to the policy
+    if(supervisor != null && !supervisor.awaitSession()) return false;
+    // wait for the turn of the order under the outbound rate limits, unless superseded
+    OutboundThrottler limits = throttler;
+    return limits == null || limits.acquire(order, priority);
+  }
+
+  /**
+   * Send an order admitted by admit() without waiting for its answer
+   *
+   * @return the request id of the order
+   */
+  private String dispatch(ITransportable order) throws Exception
+  {
+    String requestId = gateway.sendMessage(order);
+    metrics.orderSent();
+    return requestId;
+  }
+
+  /**
+   * @return true if the order is on a synthetic symbol, which the server does not deal
+   */
+  private boolean onSynthetic(ITransportable order) throws NotDefinedException
+  {
+    if(!(order instanceof OrderSingle)) return false;
+    Instrument instrument = ((OrderSingle)order).getInstrument();
+    return instrument != null && synthetics.isSynthetic(instrument.getSymbol());
+  }
+
+  /**
+   * Republish every dealing rate, from the server or synthetic, into a memory mapped ring file read by
+   * the other processes of the machine with a QuoteRingReader
+   *
+   * @param file - the ring file, replaced if it exists
+   */
+  public void publishQuotes(File file) throws IOException
+  {
+    ring = new QuoteRing(file, QuoteRing.DEFAULT_CAPACITY);
+  }
+
+  public QuoteRing getQuoteRing() { return ring; }
+
+  /**
+   * The host of the strategies running over this session, created the first time it is asked for
+   */
+  public synchronized StrategyHost getStrategies()
+  {
+    if(strategies == null) strategies = new StrategyHost(new StrategyHost.Session()
+    {
+      @Override public boolean admit(ITransportable order, int priority)
+      {
+        try { return JavaFixTrader.this.admit(order, priority); }
+        catch(Exception e) { e.printStackTrace(); }
+        return false;
+      }
+
+      @Override public String send(ITransportable order)
+      {
+        try { return dispatch(order); }
+        catch(Exception e) { e.printStackTrace(); }
+        return null;
+      }
+
+      @Override public String getAccount() { return firstAccount(); }
+      @Override public MarketDataSnapshot getRate(String symbol) { return rate(symbol); }
+    }, output);
+    return strategies;
+  }
+
   /**
    * Simple function to check what the multiplier would be from the instruments min quantity to
    * a contract size
@@ -230,7 +960,16 @@ public class JavaFixTrader
    */
   private int contractMultiplier(Instrument security)
   {
-    if(security.isForex())
+    return contractMultiplier(security.isForex());
+  }
+
+  /**
+   * @param forex - whether the security is forex
+   * @return 10000 for forex, 1 otherwise
+   */
+  private int contractMultiplier(boolean forex)
+  {
+    if(forex)
       return 10000;
     return 1;
   }
@@ -244,31 +983,37 @@ public class JavaFixTrader
     
     try
     {
-      opening = true;
+      setOpening(true);
+      // take the instruments and accounts from the live session, or the snapshot until it arrives
+      SessionSnapshot session = currentSession();
       // assign an identifier for the first account
-      CollateralReport account = accounts.get(0);
+      String account = firstAccount();
       // for each security on the instruments list
-      for(int i = 0; i < instruments.size(); i++)
+      for(int i = 0; i < session.getInstrumentCount(); i++)
       {
-        // assign an identifier for the single instrument
-        TradingSecurity instrument = instruments.get(i);
+        // the decision to trade the symbol is made
+        tracer.decision(session.getSymbol(i));
         // create the market order
-        OrderSingle market = MessageGenerator.generateMarketOrder(account.getAccount(), // first account
-          instrument.getFXCMMinQuantity() * contractMultiplier(instrument), // the min amt * to get contract size
+        OrderSingle market = MessageGenerator.generateMarketOrder(account, // first account
+          session.getMinQuantity(i) * contractMultiplier(session.isForex(i)), // the min amt * to get contract size
           TO_OPEN, // open direction
-          instrument.getSymbol(), // the symbol of the currency to place the order on
-          account.getAccount()); // set the custom text of the order to be the account id
+          session.getSymbol(i), // the symbol of the currency to place the order on
+          account); // set the custom text of the order to be the account id
         // set the time in force to the application constant
         market.setTimeInForce(TIME_IN_FORCE);
+        tracer.orderBuilt();
         // send the market order and wait on the response, expecting an order id
-        String order = this.sendRequest(market);
+        final String order = this.sendRequest(market);
         // if the order executed, it would have an order id of something other than NONE
         if(!order.equals("NONE"))
         {
           // add the order number to the opened/placed orders list
-          orders.add(order);
+          onLoop(new Callable<Boolean>()
+          {
+            @Override public Boolean call() { return orders.add(order); }
+          });
           // display note that an order has been successfully placed
-          output.println("  " + order + " placed on " + instrument.getSymbol());
+          output.println("  " + order + " placed on " + session.getSymbol(i));
         }
       }
       // display the total number of orders requested that have successfully been placed
@@ -277,6 +1022,35 @@ public class JavaFixTrader
     catch(Exception e) { e.printStackTrace(); }
   }
 
+  /**
+   * Kill switch; cancel every working order then close every open position on every account of the
+   * login, whether placed by this application or not
+   * 
+   * @return the outcome of every cancel and close and the time taken
+   */
+  public EmergencyFlatten.Result flattenAll() throws InterruptedException
+  {
+    if(gateway == null) this.login();
+    if(flatten == null) flatten = new EmergencyFlatten(gateway, TIME_IN_FORCE, output);
+    flatten.setThrottler(throttler);
+    return flatten.run(FLATTEN_TIMEOUT_MS);
+  }
+
+  /**
+   * Set whether the positions reported from now on are tracked for closing
+   */
+  private void setOpening(final boolean tracking)
+  {
+    onLoop(new Callable<Void>()
+    {
+      @Override public Void call()
+      {
+        opening = tracking;
+        return null;
+      }
+    });
+  }
+
   /**
    * Attempt, for each order placed and resulting position, to close said position by market order
    */
@@ -284,40 +1058,49 @@ public class JavaFixTrader
   {
     try
     {
-      opening = false;
+      setOpening(false);
+      // take the tracked tickets from the session state
+      final List<PositionReport> tracked = onLoop(new Callable<List<PositionReport>>()
+      {
+        @Override public List<PositionReport> call() { return new ArrayList<PositionReport>(tickets.values()); }
+      });
       // display the amount of tickets tracked; the number of positions opened during application run
-      output.println("Tracked Tickets: " + tickets.size());
+      output.println("Tracked Tickets: " + tracked.size());
       // for the first account under login
-      CollateralReport account = accounts.get(0);
+      String account = firstAccount();
       // go through all the tracked tickets
-      for(int t = 0; t < tickets.size(); t++)
+      for(int t = 0; t < tracked.size(); t++)
       {
-        // retrieve the order placed from the top of the list
-        String openOrder = (String)tickets.keySet().toArray()[t];
         // retrieve the position that was tracked
-        PositionReport pr = tickets.get(openOrder);
+        PositionReport pr = tracked.get(t);
         // if it has, the pr would not be null
         if(pr != null)
         {
           //set up an order like the open position except in the opposite direction
           
+          // the decision to close the position is made
+          tracer.decision(pr.getInstrument().getSymbol());
           // get the position contract size
           PositionQty pq = pr.getPositionQty();
           // create the order
-          OrderSingle market = MessageGenerator.generateMarketOrder(account.getAccount(), // first account
+          OrderSingle market = MessageGenerator.generateMarketOrder(account, // first account
             pq.getQty(), // same quantity
             TO_CLOSE, // opposite direction
             pr.getInstrument().getSymbol(), // same symbol
-            account.getAccount()); // set the custom text for the order to be the account id
+            account); // set the custom text for the order to be the account id
           // set the time in force to the application constant
           market.setTimeInForce(TIME_IN_FORCE);
+          tracer.orderBuilt();
           // send the market order and wait on the response, expecting an order id
-          String orderID = this.sendRequest(market);
+          final String orderID = this.sendRequest(market, OutboundThrottler.RISK_REDUCING);
           // if the order executed, it would have an order id of something other than NONE
           if(!orderID.equals("NONE"))
           {
             // add the order id to the closed positions list
-            closed.add(orderID);
+            onLoop(new Callable<Boolean>()
+            {
+              @Override public Boolean call() { return closed.add(orderID); }
+            });
           }
         }
       }
@@ -327,6 +1110,20 @@ public class JavaFixTrader
     catch(Exception e) { e.printStackTrace(); }
   }
     
+  /**
+   * Forget everything held about a lost session, it is all requested again by the resync; on the
+   * thread handling the messages only
+   */
+  private void clearSession()
+  {
+    staleSession = false;
+    accounts.clear();
+    orderTable.clear();
+    pnl.clearPositions();
+    resyncTickets.clear();
+    synchronized(dealing) { dealing.clear(); }
+  }
+
   /**
    * Implementing IGenericMessageListener to capture and process messages sent back from API
    * 
@@ -334,20 +1131,34 @@ public class JavaFixTrader
    */
   @Override public void messageArrived(ITransportable message)
   {
-    // decide which child function to send an cast instance of the message
-
-    // if it is a an instance of MarketDataSnapshot, capture it in the dealing table
-    if(message instanceof MarketDataSnapshot) messageArrived((MarketDataSnapshot)message);
-    // if the message is an instance of CollateralReport, cast it and send to child function
-    else if(message instanceof CollateralReport) messageArrived((CollateralReport)message);
-    // if the message is an instance of ExecutionReport, cast it and send to child function
-    else if(message instanceof ExecutionReport) messageArrived((ExecutionReport)message);
-    // if the message is an instance of RequestForPositionsAck, cast it and send to child function
-    else if(message instanceof RequestForPositionsAck) messageArrived((RequestForPositionsAck)message);
-    // if the message is an instance of PositionReport, cast it and send to child function
-    else if(message instanceof PositionReport) messageArrived((PositionReport)message);
-    // if the message is an instance of TradingSessionStatus, cast it and send to child function
-    else if(message instanceof TradingSessionStatus) messageArrived((TradingSessionStatus)message);
+    // in the event loop mode the message is processed on the loop thread, in order with the commands
+    if(eventLoop != null && !eventLoop.inLoop())
+    {
+      eventLoop.offer(message);
+      return;
+    }
+    // measure how long the callback thread is kept busy, by type of message
+    long start = System.nanoTime();
+    metrics.messageReceived(message);
+    try
+    {
+      if(staleSession) clearSession();
+      // decide which child function to send an cast instance of the message
+  
+      // if it is a an instance of MarketDataSnapshot, capture it in the dealing table
+      if(message instanceof MarketDataSnapshot) messageArrived((MarketDataSnapshot)message);
+      // if the message is an instance of CollateralReport, cast it and send to child function
+      else if(message instanceof CollateralReport) messageArrived((CollateralReport)message);
+      // if the message is an instance of ExecutionReport, cast it and send to child function
+      else if(message instanceof ExecutionReport) messageArrived((ExecutionReport)message);
+      // if the message is an instance of RequestForPositionsAck, cast it and send to child function
+      else if(message instanceof RequestForPositionsAck) messageArrived((RequestForPositionsAck)message);
+      // if the message is an instance of PositionReport, cast it and send to child function
+      else if(message instanceof PositionReport) messageArrived((PositionReport)message);
+      // if the message is an instance of TradingSessionStatus, cast it and send to child function
+      else if(message instanceof TradingSessionStatus) messageArrived((TradingSessionStatus)message);
+    }
+    finally { metrics.callbackBusy(System.nanoTime() - start); }
   }
 
   /**
@@ -357,17 +1168,46 @@ public class JavaFixTrader
    */
   public void messageArrived(MarketDataSnapshot mds)
   {
-    // synchronize access to the dealing rates
-    synchronized (dealing)
+    // find the symbol the rate is for
+    String symbol;
+    try { symbol = mds.getInstrument().getSymbol(); }
+    catch (NotDefinedException e) { e.printStackTrace(); return; }
+    // stamp the arrival for tick to trade tracing and count the tick for the symbol
+    tracer.tickArrived(symbol);
+    metrics.tickReceived(symbol);
+    dealt(symbol, mds);
+    // recompute and publish the synthetics depending on the symbol only
+    synthetics.quote(symbol, mds.getBidClose(), mds.getAskClose(), mds.getDate());
+  }
+
+  /**
+   * Take in a dealing rate, from the server or synthetic
+   */
+  private void dealt(String symbol, MarketDataSnapshot mds)
+  {
+    double bid = mds.getBidClose(), ask = mds.getAskClose();
+    // count the spread and the time since the previous rate of the symbol
+    quotes.quote(symbol, bid, ask, System.nanoTime());
+    // revalue the open positions in the symbol
+    pnl.quote(symbol, bid, ask);
+    // hand the rate to the strategies subscribed to the symbol
+    StrategyHost host = strategies;
+    if(host != null) host.quote(symbol, mds);
+    // and to the other processes reading the ring file
+    QuoteRing quoteRing = ring;
+    if(quoteRing != null) quoteRing.publish(symbol, mds);
+    // the event loop owns the dealing rates, no other thread touches them
+    if(eventLoop != null) dealing.put(symbol, mds);
+    // otherwise synchronize access to the dealing rates
+    else synchronized (dealing)
     {
-      // try to place the market data snapshot into the table with the key being the Symbol
+      // place the market data snapshot into the table with the key being the Symbol
       /**
        * Since dealing is a HashMap and the rate datais indexed by the symbol, the new update
        * will overwrite the old, keeping the reference as the most updated information during
        * application run
        */
-      try { dealing.put((mds).getInstrument().getSymbol(), mds); }
-      catch (NotDefinedException e) { e.printStackTrace(); }
+      dealing.put(symbol, mds);
     }
   }
   
@@ -378,6 +1218,8 @@ public class JavaFixTrader
    */
   public void messageArrived(CollateralReport cr)
   {
+    // every report carries the latest balance and margin of its account
+    pnl.setBalance(cr.getAccount(), cr.getCashOutstanding(), cr.getFXCMUsedMargin());
     // if this report is the result of a direct request by a waiting process
     if(currentRequest.equals(cr.getRequestID()) && !accounts.contains(cr))
     {
@@ -387,6 +1229,24 @@ public class JavaFixTrader
       // requested
       requestComplete = cr.isLastRptRequested();
     }
+    // if this report is part of a resync after a reconnection
+    else if(supervisor != null && supervisor.isResync(cr.getRequestID()))
+    {
+      if(!accounts.contains(cr)) accounts.add(cr);
+      supervisor.received(cr.getRequestID(), cr.isLastRptRequested());
+    }
+    // if this report is part of the background refresh after a warm start
+    else if(accountRefresh != null && accountRefresh.equals(cr.getRequestID()) && !accounts.contains(cr))
+    {
+      // add the trading account to the account list
+      accounts.add(cr);
+      // once the last report arrived, reconcile if the instruments are already in
+      if(cr.isLastRptRequested())
+      {
+        accountsRefreshed = true;
+        if(sessionRefreshed) reconcileSnapshot();
+      }
+    }
   }
 
   /**
@@ -396,34 +1256,55 @@ public class JavaFixTrader
    */
   public void messageArrived(ExecutionReport er)
   {
+    // read once, an ingestion that timed out is dropped by the thread that ran it
+    HistoryIngestion history = this.history;
+    // record the new state of the order in the order table, decoding the status once
+    int state = orderTable.apply(er);
+    // if this report lists a working order for the kill switch or answers one of its cancels or closes
+    if(flatten != null && flatten.received(er)) return;
     // check to see if there is a process waiting for a response
     if(currentRequest.equals(er.getRequestID()))
     {
-      // if the order status is negative
-      if(er.getFXCMOrdStatus() == FXCMOrdStatusFactory.CANCELLED ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.PENDING_CANCEL ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.PENDING_CANCEL_CALCULATED ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.EXPIRED ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.REJECTED ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.REQUOTED ||
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.PEDNING_CALCULATED || 
-        er.getFXCMOrdStatus() == FXCMOrdStatusFactory.DEALER_INTERVENTION)
-      {
-        // set the return value to no result
-        currentResult = "NONE";
-        // display notification that there was a problem with the order on the instrument
-        try { output.println("Unable to place order on " + er.getInstrument().getSymbol() + "\n\t" + er.getFXCMErrorDetails()); }
-        // if there was an error displaying the above, then notify on inability to place order
-        catch (Exception e) { output.println("Unable to place order"); }
-      }
-      else
+      switch(state)
       {
-        // set the return value to the order id
-        currentResult = er.getOrderID();
+        // if the order status is negative
+        case OrderStateTable.CANCELLED:
+        case OrderStateTable.PENDING_CANCEL:
+        case OrderStateTable.EXPIRED:
+        case OrderStateTable.REJECTED:
+        case OrderStateTable.REQUOTED:
+        case OrderStateTable.CALCULATED:
+        case OrderStateTable.DEALER_INTERVENTION:
+          // set the return value to no result
+          currentResult = "NONE";
+          metrics.orderRejected();
+          // display notification that there was a problem with the order on the instrument
+          try { output.println("Unable to place order on " + er.getInstrument().getSymbol() + "\n\t" + er.getFXCMErrorDetails()); }
+          // if there was an error displaying the above, then notify on inability to place order
+          catch (Exception e) { output.println("Unable to place order"); }
+          break;
+        default:
+          // set the return value to the order id
+          currentResult = er.getOrderID();
       }
       // set the sate of the request to be complete
       requestComplete = true;
     }
+    // if this report is a working order listed for the history store
+    else if(history != null && history.isIngesting(er.getRequestID()))
+    {
+      history.received(er);
+    }
+    // if this report is a working order listed by a resync after a reconnection, it is in the table
+    else if(supervisor != null && supervisor.isResync(er.getRequestID()))
+    {
+      supervisor.received(er.getRequestID(), er.isLastRptRequested());
+    }
+    // if this report is on an order of one of the strategies, it goes to that strategy only
+    else if(strategies != null && strategies.received(er, state == OrderStateTable.REJECTED))
+    {
+      if(state == OrderStateTable.REJECTED) metrics.orderRejected();
+    }
     else
     // this is not a direct request but a streaming update from the api
     {
@@ -432,15 +1313,16 @@ public class JavaFixTrader
       try { output.print("    " + er.getOrderID() + " (" + er.getInstrument().getSymbol() + ") reports "); }
       // ignore any problems and continue
       catch (Exception e) { }
-      // add the status as text to the output line
-      if(er.getFXCMOrdStatus() == FXCMOrdStatusFactory.WAITING) output.println("WAITING");
-      // add the status as text to the output line
-      if(er.getFXCMOrdStatus() == FXCMOrdStatusFactory.EXECUTING) output.println("EXECUTING");
-      // add the status as text to the output line
-      if(er.getFXCMOrdStatus() == FXCMOrdStatusFactory.INPROCESS) output.println("INPROCESS");
-      // add the status as executed and details of the position affected
-      if(er.getFXCMOrdStatus() == FXCMOrdStatusFactory.EXECUTED) output.println("EXECUTED on " + er.getFXCMPosID() +
-        " at " + er.getPrice() + " for " + er.getOrderQty());
+      switch(state)
+      {
+        // add the status as executed and details of the position affected
+        case OrderStateTable.EXECUTED:
+          output.println("EXECUTED on " + er.getFXCMPosID() + " at " + er.getPrice() + " for " + er.getOrderQty());
+          break;
+        // add the status as text to the output line
+        default:
+          output.println(OrderStateTable.name(state));
+      }
     }
   }
 
@@ -451,12 +1333,28 @@ public class JavaFixTrader
    */
   public void messageArrived(RequestForPositionsAck rfpa)
   {
+    HistoryIngestion history = this.history;
     // if there is a halted thread execution waiting for a response
     if(currentRequest.equals(rfpa.getRequestID()))
     {
       // indicate that this request is complete
       requestComplete = true;
-    }    
+    }
+    // a kill switch list with nothing in it is answered by the acknowledgement alone
+    else if(flatten != null && flatten.isFlattening(rfpa.getRequestID()) && rfpa.getTotalNumPosReports() == 0)
+    {
+      flatten.empty(rfpa.getRequestID());
+    }
+    // a history request with nothing to report is answered by the acknowledgement alone
+    else if(history != null && history.isIngesting(rfpa.getRequestID()) && rfpa.getTotalNumPosReports() == 0)
+    {
+      history.empty(rfpa.getRequestID());
+    }
+    // a resync request with nothing to report is answered by the acknowledgement alone
+    else if(supervisor != null && supervisor.isResync(rfpa.getRequestID()) && rfpa.getTotalNumPosReports() == 0)
+    {
+      supervisor.received(rfpa.getRequestID(), true);
+    }
   }
 
   /**
@@ -466,11 +1364,56 @@ public class JavaFixTrader
    */
   public void messageArrived(PositionReport pr)
   {
+    HistoryIngestion history = this.history;
+    // keep the valuation of the open positions in step with every report
+    value(pr);
+    // if this report is an open position listed for the kill switch
+    if(flatten != null && flatten.isFlattening(pr.getRequestID()))
+    {
+      flatten.received(pr);
+      return;
+    }
+    // if this report is a closed position listed for the history store
+    if(history != null && history.isIngesting(pr.getRequestID()))
+    {
+      history.received(pr);
+      return;
+    }
+    // if this report is an open position listed by a resync after a reconnection
+    if(supervisor != null && supervisor.isResync(pr.getRequestID()))
+    {
+      // keep it if it was opened by one of the orders placed
+      if(orders.contains(pr.getOrderID())) resyncTickets.put(pr.getOrderID(), pr);
+      supervisor.received(pr.getRequestID(), pr.isLastRptRequested());
+      return;
+    }
+    // if this report is on a position of one of the strategies, it goes to that strategy only
+    if(strategies != null && strategies.received(pr)) return;
     // add the position report to the tickets list, key being the order id
     if(opening) tickets.put(pr.getOrderID(), pr);
     output.println("      " + pr.getOrderID() + " now tracked as position " + pr.getFXCMPosID());
   }
 
+  /**
+   * Add an open position to the profit and margin engine, or remove a closed one
+   */
+  private void value(PositionReport pr)
+  {
+    long id = OrderStateTable.parseId(pr.getFXCMPosID());
+    if(id == 0) return;
+    if(pr instanceof ClosedPositionReport) pnl.closePosition(id);
+    else
+    {
+      try
+      {
+        PositionQty pq = pr.getPositionQty();
+        pnl.openPosition(id, pr.getAccount(), pr.getInstrument().getSymbol(), pq.getLongQty() > 0,
+          pq.getLongQty() > 0 ? pq.getLongQty() : pq.getShortQty(), pr.getSettlPrice());
+      }
+      catch(NotDefinedException e) { e.printStackTrace(); }
+    }
+  }
+
   /**
    * Separate function to handle the trading session status updates and pull the trading instruments
    * 
@@ -479,7 +1422,9 @@ public class JavaFixTrader
   public void messageArrived(TradingSessionStatus tss)
   {
     // check to see if there is a request from main application for a session update
-    if(currentRequest.equals(tss.getRequestID()))
+    boolean refresh = tss.getRequestID() != null && tss.getRequestID().equals(sessionRefresh);
+    boolean resync = supervisor != null && supervisor.isResync(tss.getRequestID());
+    if(currentRequest.equals(tss.getRequestID()) || refresh || resync)
     {
       // it is a requested update, so we draw information from it
       try
@@ -499,8 +1444,16 @@ public class JavaFixTrader
       {
         e.printStackTrace();
       }
+      // a resync counts the session status as answered
+      if(resync) supervisor.received(tss.getRequestID(), true);
+      // a background refresh reconciles once the accounts are in as well
+      else if(refresh)
+      {
+        sessionRefreshed = true;
+        if(accountsRefreshed) reconcileSnapshot();
+      }
       // set that the request is complete for any waiting thread
-      requestComplete = true;
+      else requestComplete = true;
     }
   }
   
@@ -527,6 +1480,8 @@ public class JavaFixTrader
       // display error message
       output.println(status.getStatusMessage());
     }
+    // let the supervisor decide whether the session has to be recovered
+    if(supervisor != null) supervisor.statusArrived(status);
   }
   
   public static void main(String[] args)
@@ -538,23 +1493,90 @@ public class JavaFixTrader
       {
   	    // create a new instance of the example class
         JavaFixTrader jt = new JavaFixTrader(args);
+        // reconnect automatically if the session drops, holding orders until it is back
+        jt.supervise(ConnectionSupervisor.OutagePolicy.QUEUE);
+        // read the options following the credentials
+        boolean warmup = false;
+        int metricsPort = -1;
+        File historyDirectory = null;
+        boolean flattenAll = false;
+        ArrayList<String> strategyClasses = new ArrayList<String>();
+        for(int i = 3; i < args.length; i++)
+        {
+          if(args[i].equals("warmup")) warmup = true;
+          else if(args[i].startsWith("metrics=")) metricsPort = Integer.parseInt(args[i].substring(8));
+          else if(args[i].startsWith("trace=")) jt.getTracer().setSampling(Integer.parseInt(args[i].substring(6)));
+          else if(args[i].startsWith("history=")) historyDirectory = new File(args[i].substring(8));
+          else if(args[i].equals("flatten")) flattenAll = true;
+          else if(args[i].startsWith("loop")) jt.useEventLoop(args[i].equals("loop=spin"));
+          else if(args[i].startsWith("throttle="))
+          {
+            double rate = Double.parseDouble(args[i].substring(9));
+            jt.throttle(rate, rate);
+          }
+          else if(args[i].startsWith("strategy=")) strategyClasses.add(args[i].substring(9));
+          else if(args[i].startsWith("ring=")) jt.publishQuotes(new File(args[i].substring(5)));
+          else if(args[i].startsWith("cross="))
+          {
+            // the cross, the symbol it is the ratio of, the symbol it is divided by and its pip size
+            String[] cross = args[i].substring(6).split(",");
+            jt.getSynthetics().defineRatio(cross[0], cross[1], cross[2], Double.parseDouble(cross[3]));
+          }
+        }
+        // optionally serve the runtime metrics to a local collector
+        if(metricsPort > 0) jt.getMetrics().startHttp(metricsPort);
+        // optionally compile the hot paths before any message arrives
+        if(warmup)
+        {
+          output.println("Warming up");
+          jt.warmUp(JitWarmup.DEFAULT_ITERATIONS);
+        }
+        // start from the session saved by the previous run if there is one
+        boolean warmStart = jt.loadSnapshot(SNAPSHOT_FILE);
+        // carry the quote quality of the previous sessions over
+        jt.getQuoteAnalytics().merge(QUOTE_STATS_FILE);
         // attempt to login
         output.println("Logging in");
         // trigger the collection of the dealing rates as well as login
         jt.login();
         // gather the collateral reports into accounts map
         // also gain a list of all the instruments as TradingSecuritys
-        jt.retrieveAccounts();
+        // a warm start already has both, the live session is refreshed in the background
+        if(!warmStart) jt.retrieveAccounts();
+        // optionally bring the local trading history up to date and report the last week from it
+        if(historyDirectory != null && jt.ingestHistory(historyDirectory))
+        {
+          long now = System.currentTimeMillis(), weekAgo = now - 7 * 86400000L;
+          for(PositionHistoryStore.Aggregate line : jt.getHistoryStore().profitByDayAndSymbol(weekAgo, now))
+            output.println("  " + line);
+          for(PositionHistoryStore.Aggregate line : jt.getHistoryStore().volumeByAccount(weekAgo, now))
+            output.println("  " + line);
+        }
+        // start the strategies over this session, each named after its class
+        for(String className : strategyClasses)
+        {
+          StrategyHost.Strategy strategy =
+            (StrategyHost.Strategy)Class.forName(className).getDeclaredConstructor().newInstance();
+          jt.getStrategies().add(className.substring(className.lastIndexOf('.') + 1), strategy);
+        }
         // generate the market orders to open a position on each instrument
         jt.generateBatchOrders();
         // wait 5 seconds after notifying
   	    output.println("Waiting...");
         Thread.sleep(5000);
         // generate market orders to close a position for each instrument
-  	    jt.updateOrder();
+        // or take every account flat, whatever placed the orders and positions
+        if(flattenAll) jt.flattenAll();
+        else jt.updateOrder();
+  	    // report what each strategy used
+  	    if(!strategyClasses.isEmpty())
+  	      for(StrategyHost.Usage usage : jt.getStrategies().getUsage()) output.println("  " + usage);
+  	    // keep the session metadata for a warm start next time
+  	    jt.saveSnapshot(SNAPSHOT_FILE);
   	    // processing of the base example done, attempt to log out
   	    output.println("Logging out");
   	    jt.logout();
+  	    jt.getQuoteAnalytics().save(QUOTE_STATS_FILE);
   	    // end application
   	    output.println("Done");
   	    System.exit(0);
@@ -563,25 +1585,37 @@ public class JavaFixTrader
 	  }
 	  else
 	    // otherwise deplay a notice
-	    output.println("USAGE: <username> <password> <terminal>");
+	    output.println("USAGE: <username> <password> <terminal> [warmup] [metrics=<port>] [trace=<every n orders>] [history=<directory>] [flatten] [loop[=spin]] [throttle=<messages per second>] [cross=<symbol>,<numerator>,<denominator>,<pip size>] [strategy=<class name>]... [ring=<file>]");
 	}
 
+  /**
+   * @return the latest dealing rate of a symbol, null if none has arrived
+   */
+  private MarketDataSnapshot rate(final String symbol)
+  {
+    // attempt to gain access to the dealing rates table and return the most updated market data snapshot
+    if(eventLoop != null) return onLoop(new Callable<MarketDataSnapshot>()
+    {
+      @Override public MarketDataSnapshot call() { return dealing.get(symbol); }
+    });
+    synchronized (dealing) { return dealing.get(symbol); }
+  }
+
   /**
    * Place an entry order with stop and limit attached relative to the current dealing rate
    */
-  public String stopBracketOrder(String currency, int entryDistance, int stopDistance, int limitDistance)
+  public String stopBracketOrder(final String currency, int entryDistance, int stopDistance, int limitDistance)
   {
+    if(synthetics.isSynthetic(currency))
+      throw new IllegalArgumentException("A synthetic symbol is dealt through its legs: " + currency);
     // create an order list
     OrderList ol = new OrderList();
     // set the contingency for the order list to ELS, signaling that the orders are linked as Entry, stop, and limit
     ol.setContingencyType(ContingencyTypeFactory.ELS);
     // get the most current rate data
-    // create a new market data snapshot and set it to null
-    MarketDataSnapshot quote = null;
-    // attempt to gain access to the dealing rates table and assign the object above to the most updated
-    // market data snapshot
-    synchronized (dealing)
-    { quote = dealing.get(currency); }
+    MarketDataSnapshot quote = rate(currency);
+    // the decision to trade on this rate is made
+    tracer.decision(currency);
     // calculate the rates using the instruments point size to ensure proper decimal placing
     // the entry orders trigger rate will be below the current Bid (for Entry Stop Sell) 
     double entryRate = quote.getBidClose() - (entryDistance * quote.getInstrument().getFXCMSymPointSize());
@@ -595,7 +1629,7 @@ public class JavaFixTrader
     OrderSingle myOrder = MessageGenerator.generateStopLimitEntry(
       entryRate,                          // trigger rate
       OrdTypeFactory.STOP,                // type of entry order
-      accounts.get(0).getAccount(),       // account to place the order on
+      firstAccount(),                     // account to place the order on
       lotSize,                            // the amount of contracts for the order 
       SideFactory.SELL,                   // direction for the order
       currency,                           // the currency to place the order on
@@ -609,7 +1643,7 @@ public class JavaFixTrader
       stopRate,                           // trigger rate
       null,                               // the order this stop is attached to does not yet have a postion id
       OrdTypeFactory.STOP,                // type of linked conditional order
-      accounts.get(0).getAccount(),       // account to place the order on
+      firstAccount(),                     // account to place the order on
       lotSize,                            // the amount of contracts for the order 
       SideFactory.BUY,                    // direction for the order at execution, opposite of entry order
       currency,                           // the currency to place the order on
@@ -623,7 +1657,7 @@ public class JavaFixTrader
       limitRate,                          // trigger rate 
       null,                               // the order this limit is attached to does not yet have a postion id
       OrdTypeFactory.LIMIT,               // type of linked conditional order
-      accounts.get(0).getAccount(),       // account to place the order on
+      firstAccount(),                     // account to place the order on
       lotSize,                            // the amount of contracts for the order 
       SideFactory.BUY,                    // direction for the order at execution, opposite of entry order
       currency,                           // the currency to place the order on
@@ -632,6 +1666,7 @@ public class JavaFixTrader
     limit.setClOrdLinkID(IFixDefs.CLORDLINKID_CONTINGENT);
     // add the order to the list
     ol.addOrder(limit);
+    tracer.orderBuilt();
     // send the order to the API and recieve the order id of the primary entry order
     String els = sendRequest(ol);
     // return to the caller of this function the entry order id
@@ -0,0 +1,51 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Runs registered hot paths repeatedly on synthetic data before the market opens, so that the JIT
+ * has compiled them by the time the first real ticks arrive instead of interpreting them.
+ *
+ * Each component registers a task that drives its own per message code with made up values on
+ * scratch state; the tasks must never touch the live session.
+ *
+ * @author Richard Kichenama
+ */
+public class JitWarmup
+{
+  // comfortably above the invocation and back-edge thresholds of the server compiler
+  public static final int DEFAULT_ITERATIONS = 20000;
+
+  private final ArrayList<String> names = new ArrayList<String>();
+  private final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+  /**
+   * Register a hot path to be warmed up
+   *
+   * @param name - a short description of the path, used for the report
+   * @param task - a single synthetic pass through the path
+   */
+  public void register(String name, Runnable task)
+  {
+    names.add(name);
+    tasks.add(task);
+  }
+
+  /**
+   * Run every registered task the given number of times, reporting how long each took
+   *
+   * @param iterations - the number of passes through each task
+   * @param output - where to display the report, may be null
+   */
+  public void run(int iterations, PrintWriter output)
+  {
+    for(int t = 0; t < tasks.size(); t++)
+    {
+      Runnable task = tasks.get(t);
+      long start = System.nanoTime();
+      for(int i = 0; i < iterations; i++) task.run();
+      long elapsed = System.nanoTime() - start;
+      if(output != null)
+        output.println("  warmed " + names.get(t) + " in " + (elapsed / 1000000) + "ms");
+    }
+  }
+}
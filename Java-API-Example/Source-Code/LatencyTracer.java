@@ -0,0 +1,153 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Traces how long the process takes to react to a dealing rate. A nanosecond time is taken at each
+ * stage of the reaction:
+ *  - tickArrived(), when a MarketDataSnapshot enters messageArrived
+ *  - decision(), when the strategy decides to trade on the latest rate of a symbol
+ *  - orderBuilt(), once the order has been built through MessageGenerator
+ *  - sent(), when gateway.sendMessage returns
+ *
+ * The decision, build and send of one order must happen on the same thread, they are tracked per
+ * thread. Every completed trace is recorded in an in-process histogram per stage and emitted as a
+ * TickToTradeEvent when that event is enabled in a Flight Recorder recording.
+ *
+ * Tracing is off until setSampling() is called; when off every stage costs a single volatile read.
+ * When on, only every n-th decision of each thread is traced.
+ *
+ * @author Richard Kichenama
+ */
+public class LatencyTracer
+{
+  /**
+   * The time of the latest dealing rate of a symbol
+   */
+  private static final class TickStamp
+  {
+    volatile long nanos;
+  }
+
+  /**
+   * The stages of the reaction being traced on a thread
+   */
+  private static final class Trace
+  {
+    long decisions;
+    boolean active;
+    String symbol;
+    long tick, decision, built;
+  }
+
+  private volatile int sampleEvery;
+  private final ConcurrentHashMap<String, TickStamp> ticks = new ConcurrentHashMap<String, TickStamp>();
+  private final ThreadLocal<Trace> traces = new ThreadLocal<Trace>()
+  {
+    @Override protected Trace initialValue() { return new Trace(); }
+  };
+
+  private final LogHistogram tickToDecision = new LogHistogram();
+  private final LogHistogram decisionToOrder = new LogHistogram();
+  private final LogHistogram orderToSent = new LogHistogram();
+  private final LogHistogram tickToTrade = new LogHistogram();
+
+  /**
+   * Turn tracing on or off
+   *
+   * @param every - trace one decision in every this many per thread, 1 to trace them all, 0 to stop
+   */
+  public void setSampling(int every)
+  {
+    sampleEvery = Math.max(every, 0);
+  }
+
+  public boolean isEnabled() { return sampleEvery > 0; }
+
+  /**
+   * A dealing rate for the symbol entered messageArrived
+   */
+  public void tickArrived(String symbol)
+  {
+    if(sampleEvery == 0) return;
+    TickStamp stamp = ticks.get(symbol);
+    if(stamp == null)
+    {
+      TickStamp created = new TickStamp();
+      stamp = ticks.putIfAbsent(symbol, created);
+      if(stamp == null) stamp = created;
+    }
+    stamp.nanos = System.nanoTime();
+  }
+
+  /**
+   * The strategy on this thread decided to trade on the latest rate of the symbol
+   */
+  public void decision(String symbol)
+  {
+    int every = sampleEvery;
+    if(every == 0) return;
+    Trace trace = traces.get();
+    // only every n-th decision is traced, and only if a rate of the symbol was seen
+    TickStamp stamp = ticks.get(symbol);
+    trace.active = ++trace.decisions % every == 0 && stamp != null;
+    if(!trace.active) return;
+    trace.symbol = symbol;
+    trace.tick = stamp.nanos;
+    trace.decision = System.nanoTime();
+    trace.built = 0;
+  }
+
+  /**
+   * The order decided on this thread has been built
+   */
+  public void orderBuilt()
+  {
+    if(sampleEvery == 0) return;
+    Trace trace = traces.get();
+    if(trace.active) trace.built = System.nanoTime();
+  }
+
+  /**
+   * The gateway returned from sending the order decided on this thread, which completes the trace
+   */
+  public void sent()
+  {
+    if(sampleEvery == 0) return;
+    Trace trace = traces.get();
+    if(!trace.active) return;
+    long now = System.nanoTime();
+    trace.active = false;
+    // an order sent without orderBuilt() being called is counted as built when the decision was made
+    long built = trace.built == 0 ? trace.decision : trace.built;
+    tickToDecision.record(trace.decision - trace.tick);
+    decisionToOrder.record(built - trace.decision);
+    orderToSent.record(now - built);
+    tickToTrade.record(now - trace.tick);
+    // emit the event only when a recording asks for it
+    TickToTradeEvent event = new TickToTradeEvent();
+    if(event.shouldCommit())
+    {
+      event.symbol = trace.symbol;
+      event.tickToDecision = trace.decision - trace.tick;
+      event.decisionToOrder = built - trace.decision;
+      event.orderToSent = now - built;
+      event.tickToTrade = now - trace.tick;
+      event.commit();
+    }
+  }
+
+  /**
+   * Forget every trace recorded in the histograms
+   */
+  public void reset()
+  {
+    tickToDecision.reset();
+    decisionToOrder.reset();
+    orderToSent.reset();
+    tickToTrade.reset();
+  }
+
+  public LogHistogram getTickToDecision() { return tickToDecision; }
+  public LogHistogram getDecisionToOrder() { return decisionToOrder; }
+  public LogHistogram getOrderToSent() { return orderToSent; }
+  public LogHistogram getTickToTrade() { return tickToTrade; }
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of non-negative long values, like latencies in nanoseconds.
+ *
+ * Values below 16 are counted exactly; above, each power of two is split into 8 buckets, so any
+ * value is reported within 12.5% of its true value whatever its magnitude. Recording is a couple of
+ * shifts and one atomic increment, never allocates, and may be done from any number of threads.
+ * Histograms merge by adding their buckets.
+ *
+ * @author Richard Kichenama
+ */
+public class LogHistogram
+{
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int LINEAR = 2 * SUB_BUCKETS;
+  // the linear range, then 8 buckets for each power of two from 2^4 to 2^62
+  private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Count a value, negative values are counted as zero
+   */
+  public void record(long value)
+  {
+    if(value < 0) value = 0;
+    counts.incrementAndGet(bucket(value));
+    total.incrementAndGet();
+    // raise the maximum, retrying only if another thread raised it at the same time
+    long current = max.get();
+    while(value > current && !max.compareAndSet(current, value)) current = max.get();
+  }
+
+  /**
+   * The bucket of a value
+   */
+  static int bucket(long value)
+  {
+    if(value < LINEAR) return (int)value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * The smallest value counted in a bucket
+   */
+  static long lowest(int bucket)
+  {
+    if(bucket < LINEAR) return bucket;
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+    long sub = (bucket - LINEAR) % SUB_BUCKETS;
+    return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+  }
+
+  /**
+   * The value below which the given fraction of the values fall
+   *
+   * @param quantile - between 0 and 1, like 0.99
+   * @return the middle of the bucket holding the quantile, 0 if nothing was recorded
+   */
+  public long getValueAt(double quantile)
+  {
+    long count = total.get();
+    if(count == 0) return 0;
+    long rank = Math.max(1, (long)Math.ceil(quantile * count));
+    long seen = 0;
+    for(int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts.get(i);
+      if(seen >= rank)
+      {
+        // report the middle of the bucket, never above the largest value recorded
+        long low = lowest(i), high = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+        return Math.min(low + (high - low) / 2, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Add the counts of another histogram to this one
+   */
+  public void merge(LogHistogram other)
+  {
+    for(int i = 0; i < BUCKETS; i++)
+    {
+      long count = other.counts.get(i);
+      if(count != 0) counts.addAndGet(i, count);
+    }
+    total.addAndGet(other.total.get());
+    long otherMax = other.max.get(), current = max.get();
+    while(otherMax > current && !max.compareAndSet(current, otherMax)) current = max.get();
+  }
+
+  /**
+   * Forget every value recorded
+   */
+  public void reset()
+  {
+    for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    total.set(0);
+    max.set(0);
+  }
+
+  public long getCount() { return total.get(); }
+  public long getMax() { return max.get(); }
+}
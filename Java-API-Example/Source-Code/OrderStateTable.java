@@ -0,0 +1,483 @@
+import java.lang.invoke.VarHandle;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fxcm.fix.FXCMOrdStatusFactory;
+import com.fxcm.fix.trade.ExecutionReport;
+
+/**
+ * Lifecycle of every order of the session, kept in preallocated primitive arrays indexed by order id.
+ *
+ * The table has a single writer, the API callback thread, which applies each ExecutionReport as it
+ * arrives. Any other thread may query it at any time without locking; each record is guarded by a
+ * sequence number that the writer makes odd while it updates the record, and readers retry until
+ * they have read the record between two equal even sequence numbers.
+ *
+ * Orders that reach a final state stay queryable until they fall out of the last capacity / 4
+ * finished orders, or sooner if the room is needed for new orders; then their record is reused.
+ *
+ * @author Richard Kichenama
+ */
+public class OrderStateTable
+{
+  /*
+   * Order states; the FXCM order status of an execution report is decoded to one of these once
+   */
+  public static final int UNKNOWN = 0;
+  public static final int WAITING = 1;
+  public static final int INPROCESS = 2;
+  public static final int EXECUTING = 3;
+  public static final int CALCULATED = 4;
+  public static final int PENDING_CANCEL = 5;
+  public static final int REQUOTED = 6;
+  public static final int DEALER_INTERVENTION = 7;
+  public static final int EXECUTED = 8;
+  public static final int CANCELLED = 9;
+  public static final int EXPIRED = 10;
+  public static final int REJECTED = 11;
+
+  private static final String[] NAMES = { "UNKNOWN", "WAITING", "INPROCESS", "EXECUTING", "CALCULATED",
+    "PENDING_CANCEL", "REQUOTED", "DEALER_INTERVENTION", "EXECUTED", "CANCELLED", "EXPIRED", "REJECTED" };
+
+  // the status constants of the factory are singletons, so they are looked up by identity
+  private static final IdentityHashMap<Object, Integer> STATUS = new IdentityHashMap<Object, Integer>();
+  static
+  {
+    STATUS.put(FXCMOrdStatusFactory.WAITING, WAITING);
+    STATUS.put(FXCMOrdStatusFactory.INPROCESS, INPROCESS);
+    STATUS.put(FXCMOrdStatusFactory.EXECUTING, EXECUTING);
+    STATUS.put(FXCMOrdStatusFactory.PEDNING_CALCULATED, CALCULATED);
+    STATUS.put(FXCMOrdStatusFactory.PENDING_CANCEL, PENDING_CANCEL);
+    STATUS.put(FXCMOrdStatusFactory.PENDING_CANCEL_CALCULATED, PENDING_CANCEL);
+    STATUS.put(FXCMOrdStatusFactory.REQUOTED, REQUOTED);
+    STATUS.put(FXCMOrdStatusFactory.DEALER_INTERVENTION, DEALER_INTERVENTION);
+    STATUS.put(FXCMOrdStatusFactory.EXECUTED, EXECUTED);
+    STATUS.put(FXCMOrdStatusFactory.CANCELLED, CANCELLED);
+    STATUS.put(FXCMOrdStatusFactory.EXPIRED, EXPIRED);
+    STATUS.put(FXCMOrdStatusFactory.REJECTED, REJECTED);
+  }
+
+  /**
+   * Notified on the writer thread whenever the state of an order changes
+   */
+  public interface Listener
+  {
+    void stateChanged(long orderId, int previous, int state);
+  }
+
+  // key value that is never an order id
+  private static final long EMPTY = 0;
+
+  private final int capacity, mask;
+  private final AtomicLongArray keys;
+  private final AtomicLongArray sequence;
+  private final byte[] state;
+  private final double[] filled;
+  private final double[] price;
+  private final long[] position;
+  private int live, used;
+  // odd while a removal is moving records, so a reader that missed an order knows to look again
+  private final AtomicLong moves = new AtomicLong();
+
+  // ring of the ids of finished orders, oldest first
+  private final long[] finished;
+  private int finishedHead, finishedCount;
+
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * Creates a table able to hold at least the given number of orders
+   *
+   * @param capacity - the number of orders, working and recently finished, to allocate room for
+   */
+  public OrderStateTable(int capacity)
+  {
+    this.capacity = Math.max(capacity, 8);
+    // at least twice the capacity rounded to a power of two keeps the probe sequences short
+    int size = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+    mask = size - 1;
+    keys = new AtomicLongArray(size);
+    sequence = new AtomicLongArray(size);
+    state = new byte[size];
+    filled = new double[size];
+    price = new double[size];
+    position = new long[size];
+    finished = new long[Math.max(this.capacity / 4, 1)];
+  }
+
+  /**
+   * Decode the FXCM order status of an execution report
+   *
+   * @param status - the value of getFXCMOrdStatus()
+   * @return one of the state constants, UNKNOWN if not recognised
+   */
+  public static int decode(Object status)
+  {
+    Integer code = STATUS.get(status);
+    return code == null ? UNKNOWN : code;
+  }
+
+  /**
+   * @return true if the state is final, the order will not change again
+   */
+  public static boolean isFinal(int state)
+  {
+    switch(state)
+    {
+      case EXECUTED:
+      case CANCELLED:
+      case EXPIRED:
+      case REJECTED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return the name of the state constant
+   */
+  public static String name(int state)
+  {
+    return state >= 0 && state < NAMES.length ? NAMES[state] : NAMES[UNKNOWN];
+  }
+
+  /**
+   * Parse an FXCM order or position id, which are numeric
+   *
+   * @return the id as a number, 0 if there is none or it is not numeric
+   */
+  public static long parseId(String id)
+  {
+    if(id == null || id.length() == 0 || id.length() > 18) return 0;
+    long value = 0;
+    for(int i = 0; i < id.length(); i++)
+    {
+      char c = id.charAt(i);
+      if(c < '0' || c > '9') return 0;
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Apply an execution report to the table; writer thread only
+   *
+   * @param er - the execution report
+   * @return the decoded state of the report
+   */
+  public int apply(ExecutionReport er)
+  {
+    int decoded = decode(er.getFXCMOrdStatus());
+    double quantity = er.getCumQty(), average = er.getAvgPx();
+    // a market order may report its execution without the cumulative fields
+    if(decoded == EXECUTED && quantity == 0)
+    {
+      quantity = er.getOrderQty();
+      average = er.getPrice();
+    }
+    update(parseId(er.getOrderID()), decoded, quantity, average, parseId(er.getFXCMPosID()));
+    return decoded;
+  }
+
+  /**
+   * Record the state of an order; writer thread only
+   *
+   * @param orderId - the order id, ignored if not positive
+   * @param newState - one of the state constants
+   * @param filledQuantity - the quantity filled so far
+   * @param averagePrice - the average price of the filled quantity
+   * @param positionId - the id of the position opened or closed, 0 if none yet
+   */
+  public void update(long orderId, int newState, double filledQuantity, double averagePrice, long positionId)
+  {
+    if(orderId <= 0) return;
+    int slot = probe(orderId);
+    int previous = UNKNOWN;
+    if(slot < 0)
+    {
+      slot = insert(orderId);
+      if(slot < 0) return;
+    }
+    else previous = state[slot];
+    // make the record odd while it changes, readers retry until it is even again
+    long seq = sequence.get(slot);
+    sequence.set(slot, seq + 1);
+    VarHandle.storeStoreFence();
+    state[slot] = (byte)newState;
+    filled[slot] = filledQuantity;
+    price[slot] = averagePrice;
+    // keep the position once known, later reports may leave it out
+    if(positionId != 0) position[slot] = positionId;
+    sequence.lazySet(slot, seq + 2);
+    if(previous != newState)
+    {
+      if(isFinal(newState) && !isFinal(previous)) finish(orderId);
+      else if(isFinal(previous) && !isFinal(newState)) live++;
+      for(Listener listener : listeners) listener.stateChanged(orderId, previous, newState);
+    }
+  }
+
+  /**
+   * @return the state of the order, UNKNOWN if it is not in the table
+   */
+  public int getState(long orderId)
+  {
+    return (int)read(orderId, 0);
+  }
+
+  /**
+   * @return the quantity filled so far, 0 if the order is not in the table
+   */
+  public double getFilledQuantity(long orderId)
+  {
+    return Double.longBitsToDouble(read(orderId, 1));
+  }
+
+  /**
+   * @return the average price of the filled quantity, 0 if the order is not in the table
+   */
+  public double getAveragePrice(long orderId)
+  {
+    return Double.longBitsToDouble(read(orderId, 2));
+  }
+
+  /**
+   * @return the position id of the order, 0 if not known
+   */
+  public long getPositionId(long orderId)
+  {
+    return read(orderId, 3);
+  }
+
+  /**
+   * Read the whole record of an order consistently
+   *
+   * @param orderId - the order id
+   * @param record - filled with the state, filled quantity, average price and position id
+   * @return true if the order is in the table
+   */
+  public boolean get(long orderId, OrderRecord record)
+  {
+    while(true)
+    {
+      int slot = find(orderId);
+      if(slot < 0) return false;
+      long seq = sequence.get(slot);
+      if((seq & 1) == 0)
+      {
+        int s = state[slot];
+        double f = filled[slot], p = price[slot];
+        long pos = position[slot];
+        VarHandle.loadLoadFence();
+        // valid if the record did not change and still belongs to the order, otherwise look again
+        if(sequence.get(slot) == seq && keys.get(slot) == orderId)
+        {
+          record.orderId = orderId;
+          record.state = s;
+          record.filledQuantity = f;
+          record.averagePrice = p;
+          record.positionId = pos;
+          return true;
+        }
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Read a single field of a record consistently, returning doubles as their bits
+   */
+  private long read(long orderId, int field)
+  {
+    while(true)
+    {
+      int slot = find(orderId);
+      if(slot < 0) return 0;
+      long seq = sequence.get(slot);
+      if((seq & 1) == 0)
+      {
+        long value;
+        switch(field)
+        {
+          case 0: value = state[slot]; break;
+          case 1: value = Double.doubleToRawLongBits(filled[slot]); break;
+          case 2: value = Double.doubleToRawLongBits(price[slot]); break;
+          default: value = position[slot]; break;
+        }
+        VarHandle.loadLoadFence();
+        if(sequence.get(slot) == seq && keys.get(slot) == orderId) return value;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * @return the number of orders in the table that are not in a final state
+   */
+  public int getWorkingCount()
+  {
+    return live;
+  }
+
+  /**
+   * @return the number of orders in the table, working and finished
+   */
+  public int size()
+  {
+    return used;
+  }
+
+  public void addListener(Listener listener) { listeners.add(listener); }
+  public void removeListener(Listener listener) { listeners.remove(listener); }
+
+  /**
+   * Forget every order; only while no execution reports are being applied, like during a resync
+   */
+  public void clear()
+  {
+    moves.incrementAndGet();
+    for(int i = 0; i <= mask; i++) keys.set(i, EMPTY);
+    live = used = finishedHead = finishedCount = 0;
+    moves.incrementAndGet();
+  }
+
+  /**
+   * Find the slot of an order from any thread, looking again if records moved during the search
+   *
+   * @return the slot, -1 if the order is not in the table
+   */
+  private int find(long orderId)
+  {
+    while(true)
+    {
+      long before = moves.get();
+      int slot = probe(orderId);
+      if(slot >= 0 || ((before & 1) == 0 && moves.get() == before)) return slot;
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Find the slot of an order by linear probing
+   *
+   * @return the slot, -1 if the order is not in the table
+   */
+  private int probe(long orderId)
+  {
+    int slot = hash(orderId);
+    for(int probes = 0; probes <= mask; probes++)
+    {
+      long key = keys.get(slot);
+      if(key == orderId) return slot;
+      if(key == EMPTY) return -1;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Claim a slot for a new order; writer thread only
+   *
+   * @return the slot, -1 if the table is full of working orders
+   */
+  private int insert(long orderId)
+  {
+    // make room by dropping the oldest finished orders, never let the table fill past three quarters
+    while(used >= capacity && finishedCount > 0) evictOldest();
+    if(used >= (mask + 1) - ((mask + 1) >> 2)) return -1;
+    int slot = hash(orderId);
+    while(keys.get(slot) != EMPTY) slot = (slot + 1) & mask;
+    // reset the record before the key makes it visible to readers
+    long seq = sequence.get(slot);
+    sequence.set(slot, seq + 1);
+    VarHandle.storeStoreFence();
+    state[slot] = UNKNOWN;
+    filled[slot] = 0;
+    price[slot] = 0;
+    position[slot] = 0;
+    sequence.lazySet(slot, seq + 2);
+    keys.set(slot, orderId);
+    used++;
+    live++;
+    return slot;
+  }
+
+  /**
+   * Remember an order that is now final, evicting the oldest finished order if the ring is full
+   */
+  private void finish(long orderId)
+  {
+    live--;
+    if(finishedCount == finished.length) evictOldest();
+    finished[(finishedHead + finishedCount++) % finished.length] = orderId;
+  }
+
+  /**
+   * Remove the oldest finished order from the table
+   */
+  private void evictOldest()
+  {
+    long orderId = finished[finishedHead];
+    finishedHead = (finishedHead + 1) % finished.length;
+    finishedCount--;
+    int slot = probe(orderId);
+    // an order that came back to life after finishing is kept
+    if(slot >= 0 && isFinal(state[slot])) remove(slot);
+  }
+
+  /**
+   * Empty a slot, shifting back the records after it that would no longer be found past the gap
+   */
+  private void remove(int slot)
+  {
+    moves.incrementAndGet();
+    int hole = slot;
+    for(int next = (slot + 1) & mask; ; next = (next + 1) & mask)
+    {
+      long key = keys.get(next);
+      if(key == EMPTY) break;
+      int home = hash(key);
+      // leave the record where it is if its home is after the hole, cyclically
+      boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+      if(stays) continue;
+      // copy the record into the hole, then the key, so a reader never sees the key without it
+      long seq = sequence.get(hole);
+      sequence.set(hole, seq + 1);
+      VarHandle.storeStoreFence();
+      state[hole] = state[next];
+      filled[hole] = filled[next];
+      price[hole] = price[next];
+      position[hole] = position[next];
+      sequence.lazySet(hole, seq + 2);
+      keys.set(hole, key);
+      hole = next;
+    }
+    keys.set(hole, EMPTY);
+    used--;
+    moves.incrementAndGet();
+  }
+
+  /**
+   * Spread the order ids, which are mostly sequential, over the table
+   */
+  private int hash(long orderId)
+  {
+    long h = orderId * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * A consistent copy of the record of an order, reusable between calls to get()
+   */
+  public static final class OrderRecord
+  {
+    public long orderId;
+    public int state;
+    public double filledQuantity;
+    public double averagePrice;
+    public long positionId;
+  }
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.fix.trade.OrderCancelReplaceRequest;
+import com.fxcm.fix.trade.OrderCancelRequest;
+import com.fxcm.fix.trade.OrderSingle;
+import com.fxcm.messaging.ITransportable;
+
+/**
+ * Keeps the rate of the messages sent to the gateway under the limits of the server, letting the
+ * messages that reduce risk through first.
+ *
+ * A thread about to send a message calls acquire() with the priority of the message and its account,
+ * and sends once it returns true. The rate is limited by a token bucket for the whole session and one
+ * per account; each message takes a token from both. When tokens are short, the waiting message of
+ * the highest priority whose account has a token goes first; cancels and closes before amends, amends
+ * before new orders, in the order they arrived within a priority. While a cancel or close waits for a
+ * token of its own account, one token of the session is kept for it, so that the amends and new
+ * orders of the other accounts cannot spend every token before its account refills. An amend waiting for its turn is
+ * superseded by a later amend of the same order, and is not sent at all.
+ *
+ * The time each message waited is recorded per priority.
+ *
+ * @author Richard Kichenama
+ */
+public class OutboundThrottler
+{
+  // the priorities, the lowest number goes first
+  public static final int RISK_REDUCING = 0;
+  public static final int AMEND = 1;
+  public static final int NEW_ORDER = 2;
+  private static final String[] NAMES = { "risk reducing", "amend", "new order" };
+
+  /**
+   * Tokens refilled at a constant rate up to a burst
+   */
+  private static final class TokenBucket
+  {
+    final double perNano, burst;
+    double tokens;
+    long refilled;
+
+    TokenBucket(double perSecond, double burst, long now)
+    {
+      this.perNano = perSecond / 1e9;
+      this.burst = Math.max(burst, 1);
+      this.tokens = this.burst;
+      this.refilled = now;
+    }
+
+    double available(long now)
+    {
+      tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+      refilled = now;
+      return tokens;
+    }
+
+    /**
+     * @return the time until a whole token is available
+     */
+    long untilToken(long now) { return untilTokens(now, 1); }
+
+    /**
+     * @return the time until the given number of tokens is available
+     */
+    long untilTokens(long now, double count)
+    {
+      double missing = count - available(now);
+      return missing <= 0 ? 0 : (long)Math.ceil(missing / perNano);
+    }
+  }
+
+  /**
+   * A thread waiting for its turn to send
+   */
+  private static final class Waiter
+  {
+    final int priority;
+    final String account, amends;
+    final long since;
+    boolean superseded;
+
+    Waiter(int priority, String account, String amends, long since)
+    {
+      this.priority = priority;
+      this.account = account;
+      this.amends = amends;
+      this.since = since;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final TokenBucket session;
+  private final double accountRate, accountBurst;
+  private final HashMap<String, TokenBucket> accounts = new HashMap<String, TokenBucket>();
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<Waiter>[] waiting = new ArrayDeque[] { new ArrayDeque<Waiter>(),
+    new ArrayDeque<Waiter>(), new ArrayDeque<Waiter>() };
+  // the amend waiting for each order, to supersede
+  private final HashMap<String, Waiter> amending = new HashMap<String, Waiter>();
+  // the first cancel or close waiting for a token of its account, set by next()
+  private Waiter held;
+  private final LogHistogram[] delays = { new LogHistogram(), new LogHistogram(), new LogHistogram() };
+  private volatile int waiters;
+  private volatile long superseded;
+
+  /**
+   * @param sessionRate - the messages per second allowed for the whole session
+   * @param sessionBurst - the messages that may be sent at once after a quiet period
+   * @param accountRate - the messages per second allowed for each account
+   * @param accountBurst - the messages that may be sent at once for each account
+   */
+  public OutboundThrottler(double sessionRate, double sessionBurst, double accountRate, double accountBurst)
+  {
+    this.session = new TokenBucket(sessionRate, sessionBurst, System.nanoTime());
+    this.accountRate = accountRate;
+    this.accountBurst = accountBurst;
+  }
+
+  /**
+   * Set a different limit for one account
+   */
+  public void setAccountLimit(String account, double rate, double burst)
+  {
+    lock.lock();
+    try { accounts.put(account, new TokenBucket(rate, burst, System.nanoTime())); }
+    finally { lock.unlock(); }
+  }
+
+  /**
+   * The priority of a message; cancels and orders closing a position are risk reducing, replaces are
+   * amends, anything else is taken for a new order unless the caller knows better
+   */
+  public static int classify(ITransportable message)
+  {
+    if(message instanceof OrderCancelRequest) return RISK_REDUCING;
+    if(message instanceof OrderSingle)
+    {
+      String position = ((OrderSingle)message).getFXCMPosID();
+      if(position != null && position.length() > 0) return RISK_REDUCING;
+    }
+    if(message instanceof OrderCancelReplaceRequest) return AMEND;
+    return NEW_ORDER;
+  }
+
+  /**
+   * @return the account of a message, null if it has none the throttler can see
+   */
+  public static String account(ITransportable message)
+  {
+    if(message instanceof OrderSingle) return ((OrderSingle)message).getAccount();
+    if(message instanceof OrderCancelRequest) return ((OrderCancelRequest)message).getAccount();
+    if(message instanceof OrderCancelReplaceRequest) return ((OrderCancelReplaceRequest)message).getAccount();
+    return null;
+  }
+
+  /**
+   * Wait for the turn of a message to be sent, taking its account and the order it amends from it
+   *
+   * @return true to send the message now, false if it was superseded by a later amend of the order
+   */
+  public boolean acquire(ITransportable message, int priority) throws InterruptedException
+  {
+    String amends = message instanceof OrderCancelReplaceRequest ? ((OrderCancelReplaceRequest)message).getOrderID() : null;
+    return acquire(priority, account(message), amends);
+  }
+
+  /**
+   * Wait for the turn of a message to be sent
+   *
+   * @param priority - RISK_REDUCING, AMEND or NEW_ORDER
+   * @param account - the account of the message, null to apply the session limit only
+   * @param amends - for an amend, the id of the order it changes; null otherwise
+   *
+   * @return true to send the message now, false if it was superseded by a later amend of the order
+   */
+  public boolean acquire(int priority, String account, String amends) throws InterruptedException
+  {
+    long since = System.nanoTime();
+    Waiter waiter = new Waiter(priority, account, priority == AMEND ? amends : null, since);
+    lock.lock();
+    try
+    {
+      // a later amend replaces the one waiting for the same order
+      if(waiter.amends != null)
+      {
+        Waiter previous = amending.put(waiter.amends, waiter);
+        if(previous != null)
+        {
+          previous.superseded = true;
+          waiting[AMEND].remove(previous);
+          superseded++;
+          changed.signalAll();
+        }
+      }
+      waiting[priority].add(waiter);
+      waiters++;
+      try
+      {
+        while(true)
+        {
+          if(waiter.superseded) return false;
+          long now = System.nanoTime();
+          Waiter next = next(now);
+          // the lower priorities leave one token of the session to a cancel or close held back
+          int needed = held != null && next != null && next.priority != RISK_REDUCING ? 2 : 1;
+          if(next == waiter && session.available(now) >= needed)
+          {
+            // take the tokens and leave the queue
+            session.tokens -= 1;
+            if(account != null) bucket(account, now).tokens -= 1;
+            delays[priority].record(now - since);
+            return true;
+          }
+          // wait for the next token of the session, or for the queue to change
+          long wait = next == null ? TimeUnit.MILLISECONDS.toNanos(1) : Math.max(session.untilTokens(now, needed),
+            next.account == null ? 0 : bucket(next.account, now).untilToken(now));
+          // or for the account of the held cancel or close to refill, when it goes first then
+          if(needed > 1) wait = Math.min(wait, bucket(held.account, now).untilToken(now));
+          if(next != null && next != waiter && wait == 0) changed.signalAll();
+          changed.awaitNanos(Math.max(wait, 1000));
+        }
+      }
+      finally
+      {
+        if(!waiter.superseded) waiting[priority].remove(waiter);
+        if(waiter.amends != null && amending.get(waiter.amends) == waiter) amending.remove(waiter.amends);
+        waiters--;
+        changed.signalAll();
+      }
+    }
+    finally { lock.unlock(); }
+  }
+
+  /**
+   * The waiting message to send next; the first by priority then arrival whose account has a token.
+   * Also notes the first cancel or close passed over for want of a token of its account
+   */
+  private Waiter next(long now)
+  {
+    held = null;
+    for(ArrayDeque<Waiter> queue : waiting)
+    {
+      Iterator<Waiter> it = queue.iterator();
+      while(it.hasNext())
+      {
+        Waiter waiter = it.next();
+        if(waiter.account == null || bucket(waiter.account, now).available(now) >= 1) return waiter;
+        if(held == null && waiter.priority == RISK_REDUCING) held = waiter;
+      }
+    }
+    return null;
+  }
+
+  private TokenBucket bucket(String account, long now)
+  {
+    TokenBucket bucket = accounts.get(account);
+    if(bucket == null)
+    {
+      bucket = new TokenBucket(accountRate, accountBurst, now);
+      accounts.put(account, bucket);
+    }
+    return bucket;
+  }
+
+  /**
+   * @param priority - RISK_REDUCING, AMEND or NEW_ORDER
+   * @return the time the messages of the priority waited for their turn, in nanoseconds
+   */
+  public LogHistogram getQueueDelay(int priority) { return delays[priority]; }
+
+  public static String name(int priority) { return NAMES[priority]; }
+
+  /**
+   * @return the number of threads waiting for their turn
+   */
+  public int getWaiting() { return waiters; }
+
+  /**
+   * @return the number of amends superseded before being sent
+   */
+  public long getSuperseded() { return superseded; }
+}
@@ -0,0 +1,477 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live mark-to-market of the open positions of a session.
+ *
+ * The unrealized profit of each position is kept in the quote currency of its symbol. A dealing rate
+ * only revalues the positions in its own symbol and adds the change to running totals per symbol and
+ * per account and currency, so the cost of a tick is proportional to the positions in that symbol.
+ * The totals are converted to the reporting currency through the latest rates when a snapshot is
+ * taken, so a move in a conversion rate costs nothing on the tick path either.
+ *
+ * The engine has a single writer, the API callback thread; snapshot() may be called from any thread
+ * and always sees the state between two updates, never in the middle of one.
+ *
+ * @author Richard Kichenama
+ */
+public class PnlEngine
+{
+  private final String reportingCurrency;
+
+  // guards the whole state, odd while the writer is changing it
+  private final AtomicLong version = new AtomicLong();
+
+  // symbols, by index
+  private final HashMap<String, Integer> symbolIndex = new HashMap<String, Integer>();
+  private String[] symbols = new String[64];
+  private int[] quoteCurrency = new int[64];
+  private double[] bid = new double[64], ask = new double[64];
+  private double[] symbolProfit = new double[64];
+  private int[][] symbolPositions = new int[64][];
+  private int[] symbolPositionCount = new int[64];
+  private int symbolCount;
+
+  // currencies, by index
+  private final HashMap<String, Integer> currencyIndex = new HashMap<String, Integer>();
+  private String[] currencies = new String[16];
+  private int currencyCount;
+
+  // accounts, by index, with the profit per account and currency in accountProfit[account][currency]
+  private final HashMap<String, Integer> accountIndex = new HashMap<String, Integer>();
+  private String[] accounts = new String[8];
+  private double[] balance = new double[8], usedMargin = new double[8];
+  private double[][] accountProfit = new double[8][];
+  private int accountCount;
+
+  // positions, by index, with free slots reused
+  private final HashMap<Long, Integer> positionIndex = new HashMap<Long, Integer>();
+  private long[] positionId = new long[256];
+  private int[] positionAccount = new int[256], positionSymbol = new int[256], positionSlot = new int[256];
+  private double[] positionSize = new double[256], openPrice = new double[256], profit = new double[256];
+  private int[] freePositions = new int[256];
+  private int positionCount, freeCount;
+
+  /**
+   * @param reportingCurrency - the currency the account totals are reported in, like 'USD'
+   */
+  public PnlEngine(String reportingCurrency)
+  {
+    this.reportingCurrency = reportingCurrency;
+    currency(reportingCurrency);
+  }
+
+  /**
+   * Revalue the positions of a symbol with its latest rate; writer thread only
+   *
+   * @param symbol - the symbol of the rate
+   * @param bidPrice - the price a long position closes at
+   * @param askPrice - the price a short position closes at
+   */
+  public void quote(String symbol, double bidPrice, double askPrice)
+  {
+    Integer index = symbolIndex.get(symbol);
+    begin();
+    int s = index == null ? symbol(symbol) : index;
+    bid[s] = bidPrice;
+    ask[s] = askPrice;
+    // only the positions in this symbol change value
+    int[] list = symbolPositions[s];
+    int count = symbolPositionCount[s];
+    if(count > 0)
+    {
+      double[] totals = null;
+      int lastAccount = -1, ccy = quoteCurrency[s];
+      double symbolChange = 0;
+      for(int i = 0; i < count; i++)
+      {
+        int p = list[i];
+        double change = mark(p, bidPrice, askPrice) - profit[p];
+        profit[p] += change;
+        symbolChange += change;
+        // positions of the same account tend to follow each other, save the lookup
+        if(positionAccount[p] != lastAccount)
+        {
+          lastAccount = positionAccount[p];
+          totals = accountProfit[lastAccount];
+        }
+        totals[ccy] += change;
+      }
+      symbolProfit[s] += symbolChange;
+    }
+    end();
+  }
+
+  /**
+   * The unrealized profit of a position at the given rates, in the quote currency
+   */
+  private double mark(int p, double bidPrice, double askPrice)
+  {
+    double size = positionSize[p];
+    // long positions close on the bid, short positions on the ask; no rate yet means no profit
+    double close = size > 0 ? bidPrice : askPrice;
+    return close == 0 ? 0 : size * (close - openPrice[p]);
+  }
+
+  /**
+   * Add or replace an open position; writer thread only
+   *
+   * @param id - the position id
+   * @param account - the account holding the position
+   * @param symbol - the symbol of the position
+   * @param buy - true for a long position, false for a short one
+   * @param quantity - the size of the position in units of the base currency
+   * @param price - the rate the position was opened at
+   */
+  public void openPosition(long id, String account, String symbol, boolean buy, double quantity, double price)
+  {
+    begin();
+    Integer existing = positionIndex.get(id);
+    if(existing != null) remove(existing);
+    int p = freeCount > 0 ? freePositions[--freeCount] : positionCount++;
+    if(p == positionId.length) growPositions();
+    int s = symbol(symbol), a = account(account);
+    positionId[p] = id;
+    positionAccount[p] = a;
+    positionSymbol[p] = s;
+    positionSize[p] = buy ? quantity : -quantity;
+    openPrice[p] = price;
+    profit[p] = mark(p, bid[s], ask[s]);
+    // add it to the list of the symbol, remembering where for the removal
+    if(symbolPositionCount[s] == symbolPositions[s].length)
+      symbolPositions[s] = Arrays.copyOf(symbolPositions[s], symbolPositions[s].length << 1);
+    positionSlot[p] = symbolPositionCount[s];
+    symbolPositions[s][symbolPositionCount[s]++] = p;
+    symbolProfit[s] += profit[p];
+    accountProfit[a][quoteCurrency[s]] += profit[p];
+    positionIndex.put(id, p);
+    end();
+  }
+
+  /**
+   * Remove a position that has been closed; writer thread only
+   */
+  public void closePosition(long id)
+  {
+    Integer p = positionIndex.get(id);
+    if(p == null) return;
+    begin();
+    remove(p);
+    end();
+  }
+
+  /**
+   * Take a position out of the totals and its symbol list, freeing its slot
+   */
+  private void remove(int p)
+  {
+    int s = positionSymbol[p];
+    symbolProfit[s] -= profit[p];
+    accountProfit[positionAccount[p]][quoteCurrency[s]] -= profit[p];
+    // move the last position of the symbol into the gap
+    int last = symbolPositions[s][--symbolPositionCount[s]];
+    symbolPositions[s][positionSlot[p]] = last;
+    positionSlot[last] = positionSlot[p];
+    positionIndex.remove(positionId[p]);
+    freePositions[freeCount++] = p;
+  }
+
+  /**
+   * Record the balance and used margin of an account from its collateral report; writer thread only
+   */
+  public void setBalance(String account, double cash, double margin)
+  {
+    begin();
+    int a = account(account);
+    balance[a] = cash;
+    usedMargin[a] = margin;
+    end();
+  }
+
+  /**
+   * Set the currency the profit of a symbol is in, for symbols that are not named 'BASE/QUOTE'
+   */
+  public void setQuoteCurrency(String symbol, String currency)
+  {
+    begin();
+    int s = symbol(symbol), ccy = currency(currency);
+    // move the profit already counted to the new currency
+    if(ccy != quoteCurrency[s])
+    {
+      for(int i = 0; i < symbolPositionCount[s]; i++)
+      {
+        int p = symbolPositions[s][i];
+        accountProfit[positionAccount[p]][quoteCurrency[s]] -= profit[p];
+        accountProfit[positionAccount[p]][ccy] += profit[p];
+      }
+      quoteCurrency[s] = ccy;
+    }
+    end();
+  }
+
+  /**
+   * Forget every position, keeping the rates and balances; only while no messages are being
+   * processed, like during a resync
+   */
+  public void clearPositions()
+  {
+    begin();
+    positionIndex.clear();
+    positionCount = freeCount = 0;
+    Arrays.fill(symbolProfit, 0);
+    Arrays.fill(symbolPositionCount, 0);
+    for(int a = 0; a < accountCount; a++) Arrays.fill(accountProfit[a], 0);
+    end();
+  }
+
+  /**
+   * Take a consistent view of the profit and margin of every account and symbol
+   */
+  public Snapshot snapshot()
+  {
+    while(true)
+    {
+      long start = version.get();
+      if((start & 1) == 0)
+      {
+        Snapshot snapshot = new Snapshot(reportingCurrency);
+        // copy the raw state; it may be torn, in which case the version check discards it
+        int sc = symbolCount, cc = currencyCount, ac = accountCount;
+        String[] sym = symbols, ccyNames = currencies, acc = accounts;
+        int[] quoteCcy = quoteCurrency;
+        double[] bids = bid, asks = ask, symProfit = symbolProfit, cash = balance, margin = usedMargin;
+        double[][] accProfit = accountProfit;
+        try
+        {
+          sym = Arrays.copyOf(sym, sc);
+          ccyNames = Arrays.copyOf(ccyNames, cc);
+          acc = Arrays.copyOf(acc, ac);
+          quoteCcy = Arrays.copyOf(quoteCcy, sc);
+          bids = Arrays.copyOf(bids, sc);
+          asks = Arrays.copyOf(asks, sc);
+          symProfit = Arrays.copyOf(symProfit, sc);
+          cash = Arrays.copyOf(cash, ac);
+          margin = Arrays.copyOf(margin, ac);
+          double[][] copy = new double[ac][];
+          for(int a = 0; a < ac; a++) copy[a] = Arrays.copyOf(accProfit[a], cc);
+          accProfit = copy;
+        }
+        catch(RuntimeException e) { continue; }
+        VarHandle.loadLoadFence();
+        if(version.get() == start)
+        {
+          // consistent; convert into the reporting currency outside of the loop
+          double[] rates = conversionRates(sym, ccyNames, bids, asks);
+          for(int s = 0; s < sym.length; s++)
+            snapshot.symbols.put(sym[s], new double[] { symProfit[s], symProfit[s] * rates[quoteCcy[s]] });
+          for(int a = 0; a < acc.length; a++)
+          {
+            double unrealized = 0;
+            for(int c = 0; c < ccyNames.length; c++)
+              if(accProfit[a][c] != 0) unrealized += accProfit[a][c] * rates[c];
+            snapshot.accounts.put(acc[a], new double[] { cash[a], unrealized, margin[a] });
+            snapshot.total += unrealized;
+          }
+          return snapshot;
+        }
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * The rate converting each currency into the reporting currency, NaN where there is no rate
+   */
+  private double[] conversionRates(String[] sym, String[] ccyNames, double[] bids, double[] asks)
+  {
+    HashMap<String, Integer> bySymbol = new HashMap<String, Integer>();
+    for(int s = 0; s < sym.length; s++) bySymbol.put(sym[s], s);
+    double[] rates = new double[ccyNames.length];
+    for(int c = 0; c < ccyNames.length; c++)
+      rates[c] = convert(ccyNames[c], reportingCurrency, bySymbol, bids, asks);
+    return rates;
+  }
+
+  /**
+   * The mid rate converting one currency into another, directly or through the US dollar
+   */
+  private static double convert(String from, String to, HashMap<String, Integer> bySymbol, double[] bids,
+    double[] asks)
+  {
+    if(from.equals(to)) return 1;
+    Integer direct = bySymbol.get(from + "/" + to);
+    if(direct != null && bids[direct] > 0) return (bids[direct] + asks[direct]) / 2;
+    Integer inverse = bySymbol.get(to + "/" + from);
+    if(inverse != null && bids[inverse] > 0) return 2 / (bids[inverse] + asks[inverse]);
+    if(!from.equals("USD") && !to.equals("USD"))
+      return convert(from, "USD", bySymbol, bids, asks) * convert("USD", to, bySymbol, bids, asks);
+    return Double.NaN;
+  }
+
+  /**
+   * The index of a symbol, adding it the first time it is seen
+   */
+  private int symbol(String symbol)
+  {
+    Integer index = symbolIndex.get(symbol);
+    if(index != null) return index;
+    int s = symbolCount;
+    if(s == symbols.length)
+    {
+      int size = s << 1;
+      symbols = Arrays.copyOf(symbols, size);
+      quoteCurrency = Arrays.copyOf(quoteCurrency, size);
+      bid = Arrays.copyOf(bid, size);
+      ask = Arrays.copyOf(ask, size);
+      symbolProfit = Arrays.copyOf(symbolProfit, size);
+      symbolPositions = Arrays.copyOf(symbolPositions, size);
+      symbolPositionCount = Arrays.copyOf(symbolPositionCount, size);
+    }
+    symbols[s] = symbol;
+    // the quote currency of 'EUR/USD' is USD, anything else is taken to be in the reporting currency
+    int slash = symbol.indexOf('/');
+    quoteCurrency[s] = currency(slash < 0 ? reportingCurrency : symbol.substring(slash + 1));
+    symbolPositions[s] = new int[16];
+    symbolIndex.put(symbol, s);
+    symbolCount++;
+    return s;
+  }
+
+  /**
+   * The index of a currency, adding it the first time it is seen
+   */
+  private int currency(String currency)
+  {
+    Integer index = currencyIndex.get(currency);
+    if(index != null) return index;
+    int c = currencyCount;
+    if(c == currencies.length)
+    {
+      currencies = Arrays.copyOf(currencies, c << 1);
+      for(int a = 0; a < accountCount; a++) accountProfit[a] = Arrays.copyOf(accountProfit[a], c << 1);
+    }
+    currencies[c] = currency;
+    currencyIndex.put(currency, c);
+    currencyCount++;
+    return c;
+  }
+
+  /**
+   * The index of an account, adding it the first time it is seen
+   */
+  private int account(String account)
+  {
+    Integer index = accountIndex.get(account);
+    if(index != null) return index;
+    int a = accountCount;
+    if(a == accounts.length)
+    {
+      int size = a << 1;
+      accounts = Arrays.copyOf(accounts, size);
+      balance = Arrays.copyOf(balance, size);
+      usedMargin = Arrays.copyOf(usedMargin, size);
+      accountProfit = Arrays.copyOf(accountProfit, size);
+    }
+    accounts[a] = account;
+    accountProfit[a] = new double[currencies.length];
+    accountIndex.put(account, a);
+    accountCount++;
+    return a;
+  }
+
+  private void growPositions()
+  {
+    int size = positionId.length << 1;
+    positionId = Arrays.copyOf(positionId, size);
+    positionAccount = Arrays.copyOf(positionAccount, size);
+    positionSymbol = Arrays.copyOf(positionSymbol, size);
+    positionSlot = Arrays.copyOf(positionSlot, size);
+    positionSize = Arrays.copyOf(positionSize, size);
+    openPrice = Arrays.copyOf(openPrice, size);
+    profit = Arrays.copyOf(profit, size);
+    freePositions = Arrays.copyOf(freePositions, size);
+  }
+
+  /*
+   * The writer makes the version odd for the length of every change
+   */
+  private void begin()
+  {
+    version.set(version.get() + 1);
+    VarHandle.storeStoreFence();
+  }
+
+  private void end()
+  {
+    version.lazySet(version.get() + 1);
+  }
+
+  public int getPositionCount() { return positionIndex.size(); }
+
+  /**
+   * Consistent view of the engine at one point in time
+   */
+  public static final class Snapshot
+  {
+    private final String currency;
+    private final TreeMap<String, double[]> accounts = new TreeMap<String, double[]>();
+    private final TreeMap<String, double[]> symbols = new TreeMap<String, double[]>();
+    private double total;
+
+    private Snapshot(String currency) { this.currency = currency; }
+
+    /**
+     * @return the currency of the account figures and of getTotalUnrealized()
+     */
+    public String getCurrency() { return currency; }
+
+    /**
+     * @return the unrealized profit of every open position, NaN if a conversion rate is missing
+     */
+    public double getTotalUnrealized() { return total; }
+
+    /**
+     * @return the account ids in the snapshot
+     */
+    public Iterable<String> getAccounts() { return accounts.keySet(); }
+
+    /**
+     * @return the symbols in the snapshot
+     */
+    public Iterable<String> getSymbols() { return symbols.keySet(); }
+
+    public double getBalance(String account) { return field(accounts, account, 0); }
+    public double getUnrealized(String account) { return field(accounts, account, 1); }
+    public double getUsedMargin(String account) { return field(accounts, account, 2); }
+
+    /**
+     * @return the balance plus the unrealized profit of the account
+     */
+    public double getEquity(String account) { return getBalance(account) + getUnrealized(account); }
+
+    /**
+     * @return the equity of the account not tied up as margin
+     */
+    public double getUsableMargin(String account) { return getEquity(account) - getUsedMargin(account); }
+
+    /**
+     * @return the unrealized profit of the symbol in its quote currency
+     */
+    public double getSymbolUnrealized(String symbol) { return field(symbols, symbol, 0); }
+
+    /**
+     * @return the unrealized profit of the symbol in the reporting currency
+     */
+    public double getSymbolUnrealizedConverted(String symbol) { return field(symbols, symbol, 1); }
+
+    private static double field(Map<String, double[]> values, String key, int index)
+    {
+      double[] value = values.get(key);
+      return value == null ? 0 : value[index];
+    }
+  }
+}
@@ -0,0 +1,679 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Local store of closed positions and working orders, so that reports over the trading history run
+ * against the disk instead of the server.
+ *
+ * Closed positions are appended in pages, each written as a segment file in a directory; a segment
+ * holds its own dictionary of accounts and symbols and its rows sorted by close time with the times
+ * and ids delta encoded. Opening the store reads every segment into columns in memory, indexed by
+ * account, by symbol and by close time, which the aggregate queries scan without creating an object
+ * per row. A position already in the store is never added twice. The working orders are kept apart
+ * and replaced as a whole on every ingestion.
+ *
+ * All the methods are synchronized, pages may be appended by the API callback thread while reports
+ * are run from another thread.
+ *
+ * @author Richard Kichenama
+ */
+public class PositionHistoryStore
+{
+  // identifies the file format, bump the version when the layout changes
+  private static final int MAGIC = 0x46584348;
+  private static final int VERSION = 1;
+  private static final String SEGMENT = "segment-", SUFFIX = ".pos", WORKING = "working.pos";
+  private static final long DAY = 86400000L;
+
+  /**
+   * Rows in columns, used for the store itself and for each page being appended
+   */
+  public static final class Rows
+  {
+    int size;
+    long[] id = new long[64];
+    int[] account = new int[64], symbol = new int[64];
+    boolean[] buy = new boolean[64];
+    double[] quantity = new double[64], openPrice = new double[64], closePrice = new double[64];
+    double[] profit = new double[64];
+    long[] openTime = new long[64], closeTime = new long[64];
+    // the dictionaries the account and symbol columns index into
+    final ArrayList<String> accounts = new ArrayList<String>(), symbols = new ArrayList<String>();
+    final HashMap<String, Integer> accountIndex = new HashMap<String, Integer>();
+    final HashMap<String, Integer> symbolIndex = new HashMap<String, Integer>();
+
+    /**
+     * Add a row
+     *
+     * @param id - the position or order id
+     * @param account - the account of the position
+     * @param symbol - the symbol of the position
+     * @param buy - true for a long position or a buy order
+     * @param quantity - the size of the position
+     * @param openPrice - the rate the position was opened at, or the rate of the order
+     * @param closePrice - the rate the position was closed at, 0 for an order
+     * @param profit - the realized profit of the position, 0 for an order
+     * @param openTime - when the position was opened in milliseconds since the epoch, 0 if unknown
+     * @param closeTime - when the position was closed in milliseconds since the epoch, 0 for an order
+     */
+    public void add(long id, String account, String symbol, boolean buy, double quantity, double openPrice,
+      double closePrice, double profit, long openTime, long closeTime)
+    {
+      put(id, intern(account, accounts, accountIndex), intern(symbol, symbols, symbolIndex), buy, quantity,
+        openPrice, closePrice, profit, openTime, closeTime);
+    }
+
+    /**
+     * Add a row with the account and symbol already in the dictionaries
+     */
+    private void put(long id, int account, int symbol, boolean buy, double quantity, double openPrice,
+      double closePrice, double profit, long openTime, long closeTime)
+    {
+      if(size == this.id.length) grow(size << 1);
+      this.id[size] = id;
+      this.account[size] = account;
+      this.symbol[size] = symbol;
+      this.buy[size] = buy;
+      this.quantity[size] = quantity;
+      this.openPrice[size] = openPrice;
+      this.closePrice[size] = closePrice;
+      this.profit[size] = profit;
+      this.openTime[size] = openTime;
+      this.closeTime[size] = closeTime;
+      size++;
+    }
+
+    /**
+     * Copy a row of other rows to the end of these
+     */
+    void add(Rows from, int row)
+    {
+      add(from.id[row], from.accounts.get(from.account[row]), from.symbols.get(from.symbol[row]), from.buy[row],
+        from.quantity[row], from.openPrice[row], from.closePrice[row], from.profit[row], from.openTime[row],
+        from.closeTime[row]);
+    }
+
+    private static int intern(String value, ArrayList<String> values, HashMap<String, Integer> index)
+    {
+      Integer known = index.get(value);
+      if(known != null) return known;
+      values.add(value);
+      index.put(value, values.size() - 1);
+      return values.size() - 1;
+    }
+
+    private void grow(int capacity)
+    {
+      id = Arrays.copyOf(id, capacity);
+      account = Arrays.copyOf(account, capacity);
+      symbol = Arrays.copyOf(symbol, capacity);
+      buy = Arrays.copyOf(buy, capacity);
+      quantity = Arrays.copyOf(quantity, capacity);
+      openPrice = Arrays.copyOf(openPrice, capacity);
+      closePrice = Arrays.copyOf(closePrice, capacity);
+      profit = Arrays.copyOf(profit, capacity);
+      openTime = Arrays.copyOf(openTime, capacity);
+      closeTime = Arrays.copyOf(closeTime, capacity);
+    }
+
+    public int size() { return size; }
+
+    public void clear()
+    {
+      size = 0;
+      accounts.clear();
+      symbols.clear();
+      accountIndex.clear();
+      symbolIndex.clear();
+    }
+  }
+
+  /**
+   * One line of an aggregate report
+   */
+  public static final class Aggregate
+  {
+    private final long day;
+    private final String account, symbol;
+    private int count;
+    private double volume, profit;
+
+    private Aggregate(long day, String account, String symbol)
+    {
+      this.day = day;
+      this.account = account;
+      this.symbol = symbol;
+    }
+
+    /**
+     * @return the day in days since the epoch, UTC; -1 when not grouped by day
+     */
+    public long getDay() { return day; }
+    public String getAccount() { return account; }
+    public String getSymbol() { return symbol; }
+    public int getCount() { return count; }
+    public double getVolume() { return volume; }
+    public double getProfit() { return profit; }
+
+    @Override public String toString()
+    {
+      return (day < 0 ? "" : LocalDate.ofEpochDay(day) + " ") + (account == null ? "" : account + " ")
+        + (symbol == null ? "" : symbol + " ") + count + " " + volume + " " + profit;
+    }
+  }
+
+  private final File directory;
+  private final Rows closed = new Rows();
+  private final Rows working = new Rows();
+  private final LongSet ids = new LongSet();
+  private int nextSegment;
+
+  // the indexes, rebuilt by the first query after positions were added
+  private boolean indexed;
+  private int[] byCloseTime = new int[0];
+  private int[][] byAccount = new int[0][], bySymbol = new int[0][];
+
+  private PositionHistoryStore(File directory)
+  {
+    this.directory = directory;
+  }
+
+  /**
+   * Open the store in a directory, reading every segment written to it before
+   *
+   * @param directory - the directory of the store, created if it does not exist
+   *
+   * @throws IOException if the directory cannot be created or a segment cannot be read
+   */
+  public static PositionHistoryStore open(File directory)
+    throws IOException
+  {
+    if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("cannot create " + directory);
+    PositionHistoryStore store = new PositionHistoryStore(directory);
+    // read the segments in the order they were written
+    File[] files = directory.listFiles();
+    ArrayList<Integer> numbers = new ArrayList<Integer>();
+    for(File file : files == null ? new File[0] : files)
+    {
+      String name = file.getName();
+      if(name.startsWith(SEGMENT) && name.endsWith(SUFFIX))
+      {
+        try { numbers.add(Integer.parseInt(name.substring(SEGMENT.length(), name.length() - SUFFIX.length()))); }
+        catch(NumberFormatException e) { }
+      }
+    }
+    Collections.sort(numbers);
+    for(int number : numbers)
+    {
+      read(new File(directory, SEGMENT + number + SUFFIX), store.closed, store.ids);
+      store.nextSegment = number + 1;
+    }
+    File workingFile = new File(directory, WORKING);
+    if(workingFile.isFile()) read(workingFile, store.working, null);
+    return store;
+  }
+
+  /**
+   * Append a page of closed positions, writing the positions not already in the store as a new segment
+   *
+   * @return the number of positions added
+   *
+   * @throws IOException if the segment cannot be written, in which case nothing is added
+   */
+  public synchronized int append(Rows page)
+    throws IOException
+  {
+    Rows added = new Rows();
+    LongSet pageIds = new LongSet();
+    for(int row = 0; row < page.size; row++)
+      if(!ids.contains(page.id[row]) && pageIds.add(page.id[row])) added.add(page, row);
+    if(added.size == 0) return 0;
+    write(new File(directory, SEGMENT + nextSegment + SUFFIX), added);
+    nextSegment++;
+    for(int row = 0; row < added.size; row++)
+    {
+      ids.add(added.id[row]);
+      closed.add(added, row);
+    }
+    indexed = false;
+    return added.size;
+  }
+
+  /**
+   * Replace the working orders
+   *
+   * @throws IOException if they cannot be written, in which case the previous ones are kept
+   */
+  public synchronized void replaceWorkingOrders(Rows orders)
+    throws IOException
+  {
+    write(new File(directory, WORKING), orders);
+    working.clear();
+    for(int row = 0; row < orders.size; row++) working.add(orders, row);
+  }
+
+  /**
+   * Rewrite every segment of the store into one
+   *
+   * @throws IOException if the new segment cannot be written, in which case the old ones are kept
+   */
+  public synchronized void compact()
+    throws IOException
+  {
+    int last = nextSegment;
+    if(last <= 1) return;
+    write(new File(directory, SEGMENT + last + SUFFIX), closed);
+    // the new segment holds everything, the old ones can go
+    for(int number = 0; number < last; number++) new File(directory, SEGMENT + number + SUFFIX).delete();
+    nextSegment = last + 1;
+  }
+
+  /**
+   * The profit, volume and count of the closed positions per day of closing and symbol
+   *
+   * @param from - the first close time included, in milliseconds since the epoch
+   * @param to - the first close time excluded
+   *
+   * @return a line per day and symbol with positions, by day then symbol
+   */
+  public synchronized List<Aggregate> profitByDayAndSymbol(long from, long to)
+  {
+    index();
+    int start = firstClosedAt(from), end = firstClosedAt(to);
+    List<Aggregate> lines = new ArrayList<Aggregate>();
+    if(start >= end) return lines;
+    // the rows are in close time order, so each day is a run of rows aggregated per symbol
+    int symbols = closed.symbols.size();
+    int[] count = new int[symbols];
+    double[] volume = new double[symbols], profit = new double[symbols];
+    long day = Math.floorDiv(closed.closeTime[byCloseTime[start]], DAY);
+    for(int i = start; i <= end; i++)
+    {
+      int row = i < end ? byCloseTime[i] : -1;
+      long rowDay = row < 0 ? Long.MAX_VALUE : Math.floorDiv(closed.closeTime[row], DAY);
+      if(rowDay != day)
+      {
+        for(int s = 0; s < symbols; s++)
+        {
+          if(count[s] == 0) continue;
+          Aggregate line = new Aggregate(day, null, closed.symbols.get(s));
+          line.count = count[s];
+          line.volume = volume[s];
+          line.profit = profit[s];
+          lines.add(line);
+          count[s] = 0;
+          volume[s] = profit[s] = 0;
+        }
+        day = rowDay;
+      }
+      if(row < 0) break;
+      int s = closed.symbol[row];
+      count[s]++;
+      volume[s] += closed.quantity[row];
+      profit[s] += closed.profit[row];
+    }
+    sortBySymbolWithinDay(lines);
+    return lines;
+  }
+
+  /**
+   * The volume, profit and count of the closed positions per account
+   *
+   * @param from - the first close time included, in milliseconds since the epoch
+   * @param to - the first close time excluded
+   *
+   * @return a line per account with positions, by account
+   */
+  public synchronized List<Aggregate> volumeByAccount(long from, long to)
+  {
+    index();
+    int start = firstClosedAt(from), end = firstClosedAt(to);
+    int accounts = closed.accounts.size();
+    int[] count = new int[accounts];
+    double[] volume = new double[accounts], profit = new double[accounts];
+    for(int i = start; i < end; i++)
+    {
+      int row = byCloseTime[i], a = closed.account[row];
+      count[a]++;
+      volume[a] += closed.quantity[row];
+      profit[a] += closed.profit[row];
+    }
+    return perAccount(closed, count, volume, profit);
+  }
+
+  /**
+   * The closed positions of an account, optionally in one symbol, over a period
+   *
+   * @param account - the account
+   * @param symbol - the symbol, null for every symbol
+   * @param from - the first close time included, in milliseconds since the epoch
+   * @param to - the first close time excluded
+   *
+   * @return their count, volume and profit
+   */
+  public synchronized Aggregate total(String account, String symbol, long from, long to)
+  {
+    index();
+    Aggregate line = new Aggregate(-1, account, symbol);
+    Integer a = closed.accountIndex.get(account);
+    Integer s = symbol == null ? null : closed.symbolIndex.get(symbol);
+    if(a == null || (symbol != null && s == null)) return line;
+    // walk the shorter of the two row lists
+    int[] rows = s != null && bySymbol[s].length < byAccount[a].length ? bySymbol[s] : byAccount[a];
+    for(int row : rows)
+    {
+      if(closed.account[row] != a || (s != null && closed.symbol[row] != s)) continue;
+      if(closed.closeTime[row] < from || closed.closeTime[row] >= to) continue;
+      line.count++;
+      line.volume += closed.quantity[row];
+      line.profit += closed.profit[row];
+    }
+    return line;
+  }
+
+  /**
+   * The count and volume of the working orders per account
+   */
+  public synchronized List<Aggregate> workingByAccount()
+  {
+    int accounts = working.accounts.size();
+    int[] count = new int[accounts];
+    double[] volume = new double[accounts], profit = new double[accounts];
+    for(int row = 0; row < working.size; row++)
+    {
+      count[working.account[row]]++;
+      volume[working.account[row]] += working.quantity[row];
+    }
+    return perAccount(working, count, volume, profit);
+  }
+
+  public synchronized int size() { return closed.size; }
+
+  public synchronized int getWorkingCount() { return working.size; }
+
+  public synchronized boolean contains(long id) { return ids.contains(id); }
+
+  private static List<Aggregate> perAccount(Rows rows, int[] count, double[] volume, double[] profit)
+  {
+    List<Aggregate> lines = new ArrayList<Aggregate>();
+    for(int a = 0; a < count.length; a++)
+    {
+      if(count[a] == 0) continue;
+      Aggregate line = new Aggregate(-1, rows.accounts.get(a), null);
+      line.count = count[a];
+      line.volume = volume[a];
+      line.profit = profit[a];
+      lines.add(line);
+    }
+    Collections.sort(lines, new Comparator<Aggregate>()
+    {
+      @Override public int compare(Aggregate x, Aggregate y) { return x.account.compareTo(y.account); }
+    });
+    return lines;
+  }
+
+  private static void sortBySymbolWithinDay(List<Aggregate> lines)
+  {
+    Collections.sort(lines, new Comparator<Aggregate>()
+    {
+      @Override public int compare(Aggregate x, Aggregate y)
+      {
+        return x.day != y.day ? Long.compare(x.day, y.day) : x.symbol.compareTo(y.symbol);
+      }
+    });
+  }
+
+  /**
+   * The first position in close time order closed at or after a time
+   */
+  private int firstClosedAt(long time)
+  {
+    int low = 0, high = byCloseTime.length;
+    while(low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if(closed.closeTime[byCloseTime[middle]] < time) low = middle + 1;
+      else high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Rebuild the indexes if positions were added since they were last built
+   */
+  private void index()
+  {
+    if(indexed) return;
+    int size = closed.size;
+    // order the rows by close time, sorting the packed time and row pairs
+    long[] keys = new long[size];
+    boolean packed = true;
+    for(int row = 0; row < size && packed; row++)
+    {
+      // close times before 2039 fit in 41 bits, leaving 22 bits for up to 4 million rows
+      long time = closed.closeTime[row];
+      packed = time >= 0 && time < (1L << 41) && size <= (1 << 22);
+      keys[row] = time << 22 | row;
+    }
+    byCloseTime = new int[size];
+    if(packed)
+    {
+      Arrays.sort(keys);
+      for(int i = 0; i < size; i++) byCloseTime[i] = (int)(keys[i] & ((1 << 22) - 1));
+    }
+    else
+    {
+      Integer[] rows = new Integer[size];
+      for(int row = 0; row < size; row++) rows[row] = row;
+      Arrays.sort(rows, byTime(closed.closeTime));
+      for(int i = 0; i < size; i++) byCloseTime[i] = rows[i];
+    }
+    byAccount = group(closed.account, closed.accounts.size(), size);
+    bySymbol = group(closed.symbol, closed.symbols.size(), size);
+    indexed = true;
+  }
+
+  /**
+   * The rows of each value of a column
+   */
+  private static int[][] group(int[] column, int values, int size)
+  {
+    int[] counts = new int[values];
+    for(int row = 0; row < size; row++) counts[column[row]]++;
+    int[][] groups = new int[values][];
+    for(int v = 0; v < values; v++) groups[v] = new int[counts[v]];
+    Arrays.fill(counts, 0);
+    for(int row = 0; row < size; row++) groups[column[row]][counts[column[row]]++] = row;
+    return groups;
+  }
+
+  /**
+   * Orders rows by a time column
+   */
+  private static Comparator<Integer> byTime(final long[] time)
+  {
+    return new Comparator<Integer>()
+    {
+      @Override public int compare(Integer x, Integer y) { return Long.compare(time[x], time[y]); }
+    };
+  }
+
+  /**
+   * Write rows as a segment, to a temporary file renamed once complete
+   */
+  private static void write(File file, Rows rows)
+    throws IOException
+  {
+    // the rows in close time order, so the times are small positive deltas
+    Integer[] order = new Integer[rows.size];
+    for(int row = 0; row < rows.size; row++) order[row] = row;
+    Arrays.sort(order, byTime(rows.closeTime));
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(rows.accounts.size());
+      for(String account : rows.accounts) out.writeUTF(account);
+      out.writeInt(rows.symbols.size());
+      for(String symbol : rows.symbols) out.writeUTF(symbol);
+      out.writeInt(rows.size);
+      long previousId = 0, previousClose = 0;
+      for(int row : order)
+      {
+        writeVarLong(out, zigzag(rows.id[row] - previousId));
+        writeVarLong(out, zigzag(rows.closeTime[row] - previousClose));
+        writeVarLong(out, zigzag(rows.closeTime[row] - rows.openTime[row]));
+        writeVarLong(out, rows.account[row]);
+        writeVarLong(out, rows.symbol[row]);
+        out.writeBoolean(rows.buy[row]);
+        out.writeDouble(rows.quantity[row]);
+        out.writeDouble(rows.openPrice[row]);
+        out.writeDouble(rows.closePrice[row]);
+        out.writeDouble(rows.profit[row]);
+        previousId = rows.id[row];
+        previousClose = rows.closeTime[row];
+      }
+      out.close();
+      out = null;
+      if((file.exists() && !file.delete()) || !temp.renameTo(file)) throw new IOException("cannot replace " + file);
+    }
+    finally { close(out); }
+  }
+
+  /**
+   * Read a segment into rows
+   *
+   * @param ids - the ids of the rows already read, to skip, null to read every row
+   */
+  private static void read(File file, Rows rows, LongSet ids)
+    throws IOException
+  {
+    // a segment is read whole, the rows are decoded from the buffer without going through a stream
+    byte[] data = Files.readAllBytes(file.toPath());
+    ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+    DataInputStream in = new DataInputStream(bytes);
+    if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a segment " + file);
+    // map the dictionaries of the segment onto those of the rows once
+    int[] accounts = new int[in.readInt()];
+    for(int i = 0; i < accounts.length; i++) accounts[i] = Rows.intern(in.readUTF(), rows.accounts, rows.accountIndex);
+    int[] symbols = new int[in.readInt()];
+    for(int i = 0; i < symbols.length; i++) symbols[i] = Rows.intern(in.readUTF(), rows.symbols, rows.symbolIndex);
+    int count = in.readInt();
+    ByteBuffer buffer = ByteBuffer.wrap(data, data.length - bytes.available(), bytes.available());
+    try
+    {
+      long id = 0, close = 0;
+      for(; count > 0; count--)
+      {
+        id += unzigzag(readVarLong(buffer));
+        close += unzigzag(readVarLong(buffer));
+        long open = close - unzigzag(readVarLong(buffer));
+        int account = accounts[(int)readVarLong(buffer)], symbol = symbols[(int)readVarLong(buffer)];
+        boolean buy = buffer.get() != 0;
+        double quantity = buffer.getDouble(), openPrice = buffer.getDouble(), closePrice = buffer.getDouble();
+        double profit = buffer.getDouble();
+        if(ids == null || ids.add(id))
+          rows.put(id, account, symbol, buy, quantity, openPrice, closePrice, profit, open, close);
+      }
+    }
+    catch(BufferUnderflowException | ArrayIndexOutOfBoundsException e) { throw new IOException("corrupt segment " + file); }
+  }
+
+  private static long zigzag(long value) { return (value << 1) ^ (value >> 63); }
+
+  private static long unzigzag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+  private static void writeVarLong(DataOutputStream out, long value)
+    throws IOException
+  {
+    while((value & ~0x7FL) != 0)
+    {
+      out.writeByte((int)(value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int)value);
+  }
+
+  private static long readVarLong(ByteBuffer in)
+    throws IOException
+  {
+    long value = 0;
+    for(int shift = 0; shift < 64; shift += 7)
+    {
+      int b = in.get();
+      value |= (long)(b & 0x7F) << shift;
+      if((b & 0x80) == 0) return value;
+    }
+    throw new IOException("malformed number");
+  }
+
+  private static void close(Closeable stream)
+  {
+    try { if(stream != null) stream.close(); }
+    catch(IOException e) { }
+  }
+
+  /**
+   * Open addressing set of longs, the ids of the positions in the store
+   */
+  private static final class LongSet
+  {
+    private long[] keys = new long[1024];
+    private boolean[] used = new boolean[1024];
+    private int size;
+
+    boolean contains(long key)
+    {
+      int mask = keys.length - 1;
+      for(int i = hash(key) & mask; used[i]; i = (i + 1) & mask) if(keys[i] == key) return true;
+      return false;
+    }
+
+    boolean add(long key)
+    {
+      if(size * 2 >= keys.length) rehash();
+      int mask = keys.length - 1;
+      int i = hash(key) & mask;
+      for(; used[i]; i = (i + 1) & mask) if(keys[i] == key) return false;
+      keys[i] = key;
+      used[i] = true;
+      size++;
+      return true;
+    }
+
+    private void rehash()
+    {
+      long[] oldKeys = keys;
+      boolean[] oldUsed = used;
+      keys = new long[oldKeys.length << 1];
+      used = new boolean[oldKeys.length << 1];
+      size = 0;
+      for(int i = 0; i < oldKeys.length; i++) if(oldUsed[i]) add(oldKeys[i]);
+    }
+
+    private static int hash(long key)
+    {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h ^ (h >>> 32));
+    }
+  }
+}
@@ -0,0 +1,184 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed size quantile sketch of positive double values, like spreads or times between ticks.
+ *
+ * Each power of two between the lowest and highest exponent is split into 32 buckets taken straight
+ * from the bits of the value, so any quantile is reported within 1.6% of a value recorded and adding
+ * a value is a few shifts and an increment. Values outside of the range are counted in the first or
+ * last bucket, zero and negative values are counted apart. Sketches of the same range merge by
+ * adding their buckets, and may be written to and read from a stream to be merged across sessions.
+ *
+ * Only one thread may add values; any thread may read the quantiles, which then may miss the values
+ * being added.
+ *
+ * @author Richard Kichenama
+ */
+public class QuantileSketch
+{
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final int lowestExponent, highestExponent;
+  private final long[] counts;
+  private long total;
+  private long nonPositive;
+  private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @param lowest - the smallest value told apart from those below it, like 1e-7 for spreads
+   * @param highest - the largest value told apart from those above it
+   */
+  public QuantileSketch(double lowest, double highest)
+  {
+    this(Math.getExponent(lowest), Math.getExponent(highest));
+  }
+
+  private QuantileSketch(int lowestExponent, int highestExponent)
+  {
+    if(highestExponent < lowestExponent) throw new IllegalArgumentException("empty range");
+    this.lowestExponent = lowestExponent;
+    this.highestExponent = highestExponent;
+    counts = new long[(highestExponent - lowestExponent + 1) * SUB_BUCKETS];
+  }
+
+  /**
+   * Count a value
+   */
+  public void add(double value)
+  {
+    if(value > 0)
+    {
+      counts[bucket(value)]++;
+      if(value < min) min = value;
+      if(value > max) max = value;
+    }
+    else nonPositive++;
+    total++;
+  }
+
+  /**
+   * The bucket of a positive value; the exponent and the top bits of the mantissa
+   */
+  private int bucket(double value)
+  {
+    long bits = Double.doubleToRawLongBits(value);
+    int exponent = (int)(bits >>> 52) - 1023;
+    if(exponent < lowestExponent) return 0;
+    if(exponent > highestExponent) return counts.length - 1;
+    return (exponent - lowestExponent) * SUB_BUCKETS + ((int)(bits >>> (52 - SUB_BITS)) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * The middle of a bucket
+   */
+  private double middle(int bucket)
+  {
+    int exponent = bucket / SUB_BUCKETS + lowestExponent;
+    return Math.scalb(1 + (bucket % SUB_BUCKETS + 0.5) / SUB_BUCKETS, exponent);
+  }
+
+  /**
+   * The value below which the given fraction of the values fall
+   *
+   * @param quantile - between 0 and 1, like 0.99
+   * @return the value, 0 if the quantile falls on zero or negative values, NaN if nothing was added
+   */
+  public double getValueAt(double quantile)
+  {
+    long count = total;
+    if(count == 0) return Double.NaN;
+    long rank = Math.max(1, (long)Math.ceil(quantile * count));
+    long seen = nonPositive;
+    if(seen >= rank) return 0;
+    for(int i = 0; i < counts.length; i++)
+    {
+      seen += counts[i];
+      // never report outside of the values actually added
+      if(seen >= rank) return Math.max(min, Math.min(middle(i), max));
+    }
+    return max;
+  }
+
+  /**
+   * Add the counts of another sketch of the same range to this one
+   */
+  public void merge(QuantileSketch other)
+  {
+    if(other.lowestExponent != lowestExponent || other.highestExponent != highestExponent)
+      throw new IllegalArgumentException("sketches of different ranges");
+    for(int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+    nonPositive += other.nonPositive;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    total += other.total;
+  }
+
+  /**
+   * Forget every value added
+   */
+  public void reset()
+  {
+    total = 0;
+    Arrays.fill(counts, 0);
+    nonPositive = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Write the sketch, skipping the empty buckets
+   */
+  public void write(DataOutput out)
+    throws IOException
+  {
+    out.writeInt(lowestExponent);
+    out.writeInt(highestExponent);
+    out.writeLong(nonPositive);
+    out.writeDouble(min);
+    out.writeDouble(max);
+    int used = 0;
+    for(long count : counts) if(count != 0) used++;
+    out.writeInt(used);
+    for(int i = 0; i < counts.length; i++)
+    {
+      if(counts[i] == 0) continue;
+      out.writeShort(i);
+      out.writeLong(counts[i]);
+    }
+  }
+
+  /**
+   * Read a sketch written by write()
+   */
+  public static QuantileSketch read(DataInput in)
+    throws IOException
+  {
+    QuantileSketch sketch = new QuantileSketch(in.readInt(), in.readInt());
+    sketch.nonPositive = in.readLong();
+    sketch.min = in.readDouble();
+    sketch.max = in.readDouble();
+    long total = sketch.nonPositive;
+    for(int used = in.readInt(); used > 0; used--)
+    {
+      int bucket = in.readUnsignedShort();
+      if(bucket >= sketch.counts.length) throw new IOException("bucket out of range " + bucket);
+      sketch.counts[bucket] = in.readLong();
+      total += sketch.counts[bucket];
+    }
+    sketch.total = total;
+    return sketch;
+  }
+
+  /**
+   * A new empty sketch of the same range as this one
+   */
+  public QuantileSketch emptyCopy() { return new QuantileSketch(lowestExponent, highestExponent); }
+
+  public long getCount() { return total; }
+  public double getMin() { return total == nonPositive ? Double.NaN : min; }
+  public double getMax() { return total == nonPositive ? Double.NaN : max; }
+}
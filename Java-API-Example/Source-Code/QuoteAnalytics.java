@@ -0,0 +1,275 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spread and quote quality of every symbol, computed inline on the dealing rate path in a fixed
+ * amount of memory per symbol instead of keeping the rates themselves.
+ *
+ * For each symbol the spreads are counted in a sketch of the current window and of the window before
+ * it, giving rolling percentiles over the last one to two windows, and in a sketch for the whole
+ * session. The time between two rates is counted in a sketch as well; a symbol is stale when no rate
+ * has arrived for several times its 99th percentile time between rates.
+ *
+ * The session sketches can be saved and merged into those of a later session. Rates are counted by a
+ * single thread, the API callback thread; the analytics may be read from any thread at any time.
+ *
+ * @author Richard Kichenama
+ */
+public class QuoteAnalytics
+{
+  // identifies the file format, bump the version when the layout changes; 2 has long bucket counts
+  private static final int MAGIC = 0x46584351;
+  private static final int VERSION = 2;
+
+  // spreads are told apart from 6e-8 to 16384 in price, times between rates from 1 microsecond to 18 minutes
+  private static final double SPREAD_LOWEST = 0x1p-24, SPREAD_HIGHEST = 0x1p14;
+  private static final double GAP_LOWEST = 0x1p10, GAP_HIGHEST = 0x1p40;
+  // the times between rates counted before the staleness threshold is learnt from them
+  private static final int GAPS_LEARNT = 50;
+
+  /**
+   * The analytics of one symbol
+   */
+  private static final class SymbolQuality
+  {
+    QuantileSketch window = new QuantileSketch(SPREAD_LOWEST, SPREAD_HIGHEST);
+    QuantileSketch previous = window.emptyCopy();
+    final QuantileSketch spreads = window.emptyCopy();
+    final QuantileSketch gaps = new QuantileSketch(GAP_LOWEST, GAP_HIGHEST);
+    long windowStart;
+    boolean quoted;
+    volatile long lastNanos;
+    volatile double lastSpread;
+  }
+
+  private final long windowNanos, minStaleNanos;
+  private final double staleFactor;
+  private final ConcurrentHashMap<String, SymbolQuality> symbols = new ConcurrentHashMap<String, SymbolQuality>();
+
+  /**
+   * Creates analytics with one minute windows, stale after 10 times the 99th percentile time between
+   * rates and never before 5 seconds
+   */
+  public QuoteAnalytics()
+  {
+    this(TimeUnit.MINUTES.toNanos(1), 10, TimeUnit.SECONDS.toNanos(5));
+  }
+
+  /**
+   * @param windowNanos - the length of a window of the rolling spread percentiles
+   * @param staleFactor - how many times its 99th percentile time between rates a symbol goes without
+   *        a rate before it is stale
+   * @param minStaleNanos - the time without a rate below which a symbol is never stale, also the
+   *        threshold until the times between rates of the symbol are known
+   */
+  public QuoteAnalytics(long windowNanos, double staleFactor, long minStaleNanos)
+  {
+    this.windowNanos = windowNanos;
+    this.staleFactor = staleFactor;
+    this.minStaleNanos = minStaleNanos;
+  }
+
+  /**
+   * Count a dealing rate; callback thread only
+   *
+   * @param symbol - the symbol of the rate
+   * @param bid - the bid of the rate
+   * @param ask - the ask of the rate
+   * @param nanos - System.nanoTime() when the rate arrived
+   */
+  public void quote(String symbol, double bid, double ask, long nanos)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    if(quality == null)
+    {
+      quality = new SymbolQuality();
+      quality.windowStart = nanos;
+      symbols.put(symbol, quality);
+    }
+    // the time since the previous rate, unless this is the first of the session
+    else if(quality.quoted) quality.gaps.add(nanos - quality.lastNanos);
+    // start a new window once the current one is over, the oldest one is reused
+    if(nanos - quality.windowStart >= windowNanos)
+    {
+      QuantileSketch oldest = quality.previous;
+      oldest.reset();
+      quality.previous = quality.window;
+      quality.window = oldest;
+      quality.windowStart = nanos;
+    }
+    double spread = ask - bid;
+    quality.window.add(spread);
+    quality.spreads.add(spread);
+    quality.lastSpread = spread;
+    quality.lastNanos = nanos;
+    quality.quoted = true;
+  }
+
+  /**
+   * @return the symbols rates were counted for
+   */
+  public Set<String> getSymbols() { return symbols.keySet(); }
+
+  /**
+   * The rolling spread percentile of a symbol, over the current and the previous window
+   *
+   * @param quantile - between 0 and 1, like 0.5 for the median
+   * @return the spread in price, NaN if no rate was counted
+   */
+  public double getSpread(String symbol, double quantile)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    if(quality == null) return Double.NaN;
+    QuantileSketch recent = quality.window.emptyCopy();
+    recent.merge(quality.previous);
+    recent.merge(quality.window);
+    return recent.getValueAt(quantile);
+  }
+
+  /**
+   * The spread percentile of a symbol over the whole session, and the sessions merged into it
+   */
+  public double getSessionSpread(String symbol, double quantile)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    return quality == null ? Double.NaN : quality.spreads.getValueAt(quantile);
+  }
+
+  /**
+   * How much wider the latest spread of a symbol is than its rolling median
+   *
+   * @return the ratio, 1 for a usual spread, NaN if no rate was counted
+   */
+  public double getWidening(String symbol)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    return quality == null ? Double.NaN : quality.lastSpread / getSpread(symbol, 0.5);
+  }
+
+  /**
+   * The percentile of the time between two rates of a symbol over the session
+   *
+   * @return the time in nanoseconds, NaN if fewer than two rates were counted
+   */
+  public double getInterArrival(String symbol, double quantile)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    return quality == null ? Double.NaN : quality.gaps.getValueAt(quantile);
+  }
+
+  /**
+   * The time without a rate after which a symbol is stale
+   */
+  public long getStaleThreshold(String symbol)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    if(quality == null || quality.gaps.getCount() < GAPS_LEARNT) return minStaleNanos;
+    return Math.max(minStaleNanos, (long)(staleFactor * quality.gaps.getValueAt(0.99)));
+  }
+
+  /**
+   * @param nanos - System.nanoTime() now
+   * @return true if the symbol has gone without a rate for longer than its stale threshold
+   */
+  public boolean isStale(String symbol, long nanos)
+  {
+    SymbolQuality quality = symbols.get(symbol);
+    return quality != null && nanos - quality.lastNanos > getStaleThreshold(symbol);
+  }
+
+  /**
+   * @param nanos - System.nanoTime() now
+   * @return the symbols that are stale
+   */
+  public List<String> getStaleSymbols(long nanos)
+  {
+    List<String> stale = new ArrayList<String>();
+    for(String symbol : symbols.keySet()) if(isStale(symbol, nanos)) stale.add(symbol);
+    return stale;
+  }
+
+  /**
+   * Write the session sketches of every symbol, replacing the file only once complete; only while
+   * no rates are being counted, like after logout
+   *
+   * @return true if the file was written, false if not
+   */
+  public boolean save(File file)
+  {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(symbols.size());
+      for(String symbol : symbols.keySet())
+      {
+        SymbolQuality quality = symbols.get(symbol);
+        out.writeUTF(symbol);
+        quality.spreads.write(out);
+        quality.gaps.write(out);
+      }
+      out.close();
+      out = null;
+      return (!file.exists() || file.delete()) && temp.renameTo(file);
+    }
+    catch(IOException e) { e.printStackTrace(); }
+    finally { close(out); }
+    return false;
+  }
+
+  /**
+   * Merge the session sketches saved by a previous session into these; before any rate is counted
+   *
+   * @return true if the file was merged, false if there is none or it is not valid
+   */
+  public boolean merge(File file)
+  {
+    if(!file.isFile()) return false;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+      for(int count = in.readInt(); count > 0; count--)
+      {
+        String symbol = in.readUTF();
+        QuantileSketch spreads = QuantileSketch.read(in), gaps = QuantileSketch.read(in);
+        SymbolQuality quality = symbols.get(symbol);
+        if(quality == null)
+        {
+          quality = new SymbolQuality();
+          symbols.put(symbol, quality);
+        }
+        quality.spreads.merge(spreads);
+        quality.gaps.merge(gaps);
+        // a symbol that has not quoted in this session is not stale before its stale threshold
+        if(quality.lastNanos == 0) quality.lastNanos = quality.windowStart = System.nanoTime();
+      }
+      return true;
+    }
+    catch(IOException | IllegalArgumentException e) { e.printStackTrace(); }
+    finally { close(in); }
+    return false;
+  }
+
+  private static void close(Closeable stream)
+  {
+    try { if(stream != null) stream.close(); }
+    catch(IOException e) { }
+  }
+}
@@ -0,0 +1,198 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import com.fxcm.fix.UTCDate;
+import com.fxcm.fix.pretrade.MarketDataSnapshot;
+
+/**
+ * Republishes the dealing rates of the session into a memory mapped ring file, for the other processes
+ * of the machine to read with a QuoteRingReader, without a session of their own.
+ *
+ * The file starts with a header, then a table of the symbols published and then the ring of records,
+ * all little endian at fixed offsets:
+ *
+ *   header    0 magic, 4 version, 8 capacity in records, 12 record size, 16 symbol slots, 20 symbol slot
+ *             size, 24 epoch, 64 sequence of the next record, on a cache line of its own
+ *   symbol    0 length of the name, set last, 0 while the slot is free; 4 FXCM symbol id; 8 the name in
+ *             UTF-8, up to 24 bytes; the index of the slot is the instrument id of the records
+ *   record    0 stamp, 8 instrument id, 16 time received in milliseconds since the epoch, 24 time
+ *             received by System.nanoTime(), 32 bid open, high, low, close, 64 ask open, high, low, close,
+ *             96 time of the rate on the server in milliseconds since the epoch, 0 if it has none
+ *
+ * Record n lives in slot n modulo the capacity. The stamp of a record is 2n + 1 while it is written and
+ * 2n + 2 once it is complete; a reader takes a record only if the stamp is the same, and complete,
+ * before and after it read the fields, so it never needs a lock and a record overwritten while it was
+ * read is detected. Readers that fall more than the capacity behind lose the records in between.
+ *
+ * There is a single writer, the thread dealing rates arrive on. A new ring replaces the file rather
+ * than writing over it, so readers of the previous ring are never cut off; they notice through the
+ * epoch in the header of the file.
+ *
+ * @author Richard Kichenama
+ */
+public class QuoteRing
+{
+  public static final int MAGIC = 0x46515252; // FQRR
+  public static final int VERSION = 2;
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  // the layout, in bytes
+  public static final int HEADER_SIZE = 128;
+  public static final int CAPACITY_OFFSET = 8, RECORD_SIZE_OFFSET = 12, SYMBOLS_OFFSET = 16;
+  public static final int SYMBOL_SIZE_OFFSET = 20, EPOCH_OFFSET = 24, SEQUENCE_OFFSET = 64;
+  public static final int SYMBOL_SLOTS = 1024, SYMBOL_SIZE = 32, SYMBOL_NAME_SIZE = 24;
+  public static final int RECORD_SIZE = 128;
+  public static final int STAMP = 0, INSTRUMENT = 8, MILLIS = 16, NANOS = 24, BID = 32, ASK = 64, SERVER = 96;
+  public static final int RECORDS_OFFSET = HEADER_SIZE + SYMBOL_SLOTS * SYMBOL_SIZE;
+
+  // ordered access to the stamps and the sequence in the mapped file
+  static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final int capacity, mask;
+  // the instrument id of each symbol published, -1 for the ones the table has no room for; writer thread only
+  private final HashMap<String, Integer> instruments = new HashMap<String, Integer>();
+  private volatile int symbolCount;
+  private volatile long next;
+
+  /**
+   * Create a ring, replacing the file of a previous one; any other file at the path is left alone and
+   * refused
+   *
+   * @param file - the file shared with the readers, best on a memory backed file system like /dev/shm
+   * @param capacity - the records kept for the readers, rounded up to a power of two
+   */
+  public QuoteRing(File file, int capacity) throws IOException
+  {
+    this.file = file;
+    this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.mask = this.capacity - 1;
+    if(file.exists() && !isRing(file)) throw new IOException("Not a quote ring, not replaced: " + file);
+    // readers still mapping the previous file keep it until they let go
+    if(file.exists() && !file.delete()) throw new IOException("Cannot replace " + file);
+    raf = new RandomAccessFile(file, "rw");
+    long size = RECORDS_OFFSET + (long)this.capacity * RECORD_SIZE;
+    raf.setLength(size);
+    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(CAPACITY_OFFSET, this.capacity);
+    buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+    buffer.putInt(SYMBOLS_OFFSET, SYMBOL_SLOTS);
+    buffer.putInt(SYMBOL_SIZE_OFFSET, SYMBOL_SIZE);
+    buffer.putLong(EPOCH_OFFSET, System.currentTimeMillis());
+    LONGS.setRelease(buffer, SEQUENCE_OFFSET, 0L);
+    // the magic last, a reader never sees a header half written
+    INTS.setRelease(buffer, 0, MAGIC);
+  }
+
+  /**
+   * @return true if the file starts with the magic number of a ring
+   */
+  private static boolean isRing(File file) throws IOException
+  {
+    try(RandomAccessFile existing = new RandomAccessFile(file, "r"))
+    {
+      return existing.length() >= 4 && Integer.reverseBytes(existing.readInt()) == MAGIC;
+    }
+  }
+
+  /**
+   * Publish a dealing rate; writer thread only
+   */
+  public void publish(String symbol, MarketDataSnapshot mds)
+  {
+    int instrument = instrument(symbol, mds);
+    if(instrument < 0) return;
+    UTCDate date = mds.getDate();
+    publish(instrument, date == null ? 0 : date.toDate().getTime(), mds.getBidOpen(), mds.getBidHigh(),
+      mds.getBidLow(), mds.getBidClose(), mds.getAskOpen(), mds.getAskHigh(), mds.getAskLow(), mds.getAskClose());
+  }
+
+  /**
+   * Write a record; writer thread only
+   */
+  private void publish(int instrument, long server, double bo, double bh, double bl, double bc,
+    double ao, double ah, double al, double ac)
+  {
+    long n = next++;
+    int at = RECORDS_OFFSET + (int)(n & mask) * RECORD_SIZE;
+    // odd while written, the stores of the fields cannot move before it
+    LONGS.setOpaque(buffer, at + STAMP, 2 * n + 1);
+    VarHandle.storeStoreFence();
+    buffer.putLong(at + INSTRUMENT, instrument);
+    buffer.putLong(at + MILLIS, System.currentTimeMillis());
+    buffer.putLong(at + NANOS, System.nanoTime());
+    buffer.putDouble(at + BID, bo);
+    buffer.putDouble(at + BID + 8, bh);
+    buffer.putDouble(at + BID + 16, bl);
+    buffer.putDouble(at + BID + 24, bc);
+    buffer.putDouble(at + ASK, ao);
+    buffer.putDouble(at + ASK + 8, ah);
+    buffer.putDouble(at + ASK + 16, al);
+    buffer.putDouble(at + ASK + 24, ac);
+    buffer.putLong(at + SERVER, server);
+    // complete, then visible to the readers polling the sequence
+    LONGS.setRelease(buffer, at + STAMP, 2 * n + 2);
+    LONGS.setRelease(buffer, SEQUENCE_OFFSET, n + 1);
+  }
+
+  /**
+   * The instrument id of a symbol, adding it to the symbol table the first time
+   *
+   * @return the id, -1 if the table is full or the name too long
+   */
+  private int instrument(String symbol, MarketDataSnapshot mds)
+  {
+    Integer id = instruments.get(symbol);
+    if(id != null) return id;
+    byte[] name = symbol.getBytes(StandardCharsets.UTF_8);
+    int slot = symbolCount;
+    if(slot >= SYMBOL_SLOTS || name.length == 0 || name.length > SYMBOL_NAME_SIZE)
+    {
+      instruments.put(symbol, -1);
+      return -1;
+    }
+    int at = HEADER_SIZE + slot * SYMBOL_SIZE;
+    buffer.putInt(at + 4, mds.getInstrument() == null ? 0 : mds.getInstrument().getFXCMSymID());
+    for(int i = 0; i < name.length; i++) buffer.put(at + 8 + i, name[i]);
+    // the length last, a reader never sees a name half written
+    INTS.setRelease(buffer, at, name.length);
+    instruments.put(symbol, slot);
+    symbolCount = slot + 1;
+    return slot;
+  }
+
+  /**
+   * Stop publishing; the file stays for the readers until a new ring replaces it
+   */
+  public void close() throws IOException
+  {
+    buffer.force();
+    raf.close();
+  }
+
+  public File getFile() { return file; }
+  public int getCapacity() { return capacity; }
+
+  /**
+   * @return the number of records published
+   */
+  public long getPublished() { return next; }
+
+  /**
+   * @return the number of symbols in the table
+   */
+  public int getInstrumentCount() { return symbolCount; }
+}
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the dealing rates a QuoteRing publishes, from another process of the same machine.
+ *
+ * The reader maps the ring file and reads the records in place; poll() hands every record published
+ * since the last call to a Handler as primitives, checked against the stamp of the record so that a
+ * record overwritten while it was read is never handed over. Nothing is locked and nothing is written
+ * to the file, so any number of readers can follow one ring.
+ *
+ * A reader starts at the newest record by default. When it falls more than the capacity of the ring
+ * behind, it skips to the oldest record still there and counts the ones it lost.
+ *
+ * @author Richard Kichenama
+ */
+public class QuoteRingReader
+{
+  /**
+   * Receives the records read, on the thread calling poll()
+   */
+  public interface Handler
+  {
+    /**
+     * @param instrument - the instrument id, named by getSymbol()
+     * @param millis - the time the rate was published, in milliseconds since the epoch
+     * @param nanos - the time the rate was published by System.nanoTime(), comparable across the
+     *   processes of a machine on most platforms
+     * @param server - the time of the rate on the server, in milliseconds since the epoch, 0 if unknown
+     */
+    void quote(int instrument, long millis, long nanos, long server, double bidOpen, double bidHigh, double bidLow,
+      double bidClose, double askOpen, double askHigh, double askLow, double askClose);
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final int capacity, mask;
+  private final long epoch;
+  private final String[] symbols = new String[QuoteRing.SYMBOL_SLOTS];
+  private long position, lost;
+
+  /**
+   * Map a ring file and start at its newest record
+   */
+  public QuoteRingReader(File file) throws IOException
+  {
+    this.file = file;
+    raf = new RandomAccessFile(file, "r");
+    buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if(raf.length() < QuoteRing.HEADER_SIZE || (int)QuoteRing.INTS.getAcquire(buffer, 0) != QuoteRing.MAGIC)
+    {
+      raf.close();
+      throw new IOException("Not a quote ring: " + file);
+    }
+    if(buffer.getInt(4) != QuoteRing.VERSION || buffer.getInt(QuoteRing.RECORD_SIZE_OFFSET) != QuoteRing.RECORD_SIZE
+      || buffer.getInt(QuoteRing.SYMBOLS_OFFSET) != QuoteRing.SYMBOL_SLOTS)
+    {
+      raf.close();
+      throw new IOException("Unsupported quote ring layout: " + file);
+    }
+    capacity = buffer.getInt(QuoteRing.CAPACITY_OFFSET);
+    mask = capacity - 1;
+    epoch = buffer.getLong(QuoteRing.EPOCH_OFFSET);
+    position = sequence();
+  }
+
+  /**
+   * Read every record published since the last call, up to a limit
+   *
+   * @param handler - receives the records
+   * @param limit - the most records to read in this call
+   *
+   * @return the number of records handed to the handler
+   */
+  public int poll(Handler handler, int limit)
+  {
+    long published = sequence();
+    int read = 0;
+    while(position < published && read < limit)
+    {
+      // lapped, skip to the oldest record still in the ring
+      if(published - position > capacity)
+      {
+        lost += published - capacity - position;
+        position = published - capacity;
+      }
+      long n = position;
+      int at = QuoteRing.RECORDS_OFFSET + (int)(n & mask) * QuoteRing.RECORD_SIZE;
+      long stamp = (long)QuoteRing.LONGS.getAcquire(buffer, at + QuoteRing.STAMP);
+      int instrument = (int)buffer.getLong(at + QuoteRing.INSTRUMENT);
+      long millis = buffer.getLong(at + QuoteRing.MILLIS);
+      long nanos = buffer.getLong(at + QuoteRing.NANOS);
+      long server = buffer.getLong(at + QuoteRing.SERVER);
+      double bo = buffer.getDouble(at + QuoteRing.BID), bh = buffer.getDouble(at + QuoteRing.BID + 8);
+      double bl = buffer.getDouble(at + QuoteRing.BID + 16), bc = buffer.getDouble(at + QuoteRing.BID + 24);
+      double ao = buffer.getDouble(at + QuoteRing.ASK), ah = buffer.getDouble(at + QuoteRing.ASK + 8);
+      double al = buffer.getDouble(at + QuoteRing.ASK + 16), ac = buffer.getDouble(at + QuoteRing.ASK + 24);
+      // the fields are only good if the record was complete and untouched throughout
+      VarHandle.loadLoadFence();
+      if(stamp != 2 * n + 2 || (long)QuoteRing.LONGS.getAcquire(buffer, at + QuoteRing.STAMP) != stamp)
+      {
+        // overwritten by a lap of the writer, go round again from the oldest record
+        published = sequence();
+        if(published - n <= capacity) Thread.onSpinWait();
+        continue;
+      }
+      position = n + 1;
+      read++;
+      handler.quote(instrument, millis, nanos, server, bo, bh, bl, bc, ao, ah, al, ac);
+    }
+    return read;
+  }
+
+  /**
+   * @return the symbol of an instrument id, null if it is not in the table
+   */
+  public String getSymbol(int instrument)
+  {
+    if(instrument < 0 || instrument >= symbols.length) return null;
+    String symbol = symbols[instrument];
+    if(symbol != null) return symbol;
+    int at = QuoteRing.HEADER_SIZE + instrument * QuoteRing.SYMBOL_SIZE;
+    int length = (int)QuoteRing.INTS.getAcquire(buffer, at);
+    if(length <= 0 || length > QuoteRing.SYMBOL_NAME_SIZE) return null;
+    byte[] name = new byte[length];
+    for(int i = 0; i < length; i++) name[i] = buffer.get(at + 8 + i);
+    symbol = new String(name, StandardCharsets.UTF_8);
+    // never changes once written, kept for the next lookups
+    symbols[instrument] = symbol;
+    return symbol;
+  }
+
+  /**
+   * @return the FXCM symbol id of an instrument id, 0 if unknown
+   */
+  public int getSymbolId(int instrument)
+  {
+    if(getSymbol(instrument) == null) return 0;
+    return buffer.getInt(QuoteRing.HEADER_SIZE + instrument * QuoteRing.SYMBOL_SIZE + 4);
+  }
+
+  /**
+   * @return the instrument id of a symbol, -1 if it has not been published
+   */
+  public int getInstrument(String symbol)
+  {
+    for(int i = 0; i < symbols.length; i++)
+    {
+      String name = getSymbol(i);
+      if(name == null) return -1;
+      if(name.equals(symbol)) return i;
+    }
+    return -1;
+  }
+
+  private long sequence()
+  {
+    return (long)QuoteRing.LONGS.getAcquire(buffer, QuoteRing.SEQUENCE_OFFSET);
+  }
+
+  /**
+   * Start again from the oldest record still in the ring
+   */
+  public void rewind()
+  {
+    position = Math.max(0, sequence() - capacity);
+  }
+
+  /**
+   * @return true if a new ring has replaced the one this reader follows, which will get no more records
+   */
+  public boolean isReplaced()
+  {
+    try(RandomAccessFile current = new RandomAccessFile(file, "r"))
+    {
+      if(current.length() < QuoteRing.HEADER_SIZE) return true;
+      current.seek(QuoteRing.EPOCH_OFFSET);
+      return Long.reverseBytes(current.readLong()) != epoch;
+    }
+    catch(IOException e) { return true; }
+  }
+
+  public void close() throws IOException
+  {
+    raf.close();
+  }
+
+  /**
+   * @return the records published but not read yet
+   */
+  public long getLag() { return sequence() - position; }
+
+  /**
+   * @return the records skipped after falling more than the capacity behind
+   */
+  public long getLost() { return lost; }
+
+  public int getCapacity() { return capacity; }
+
+  /**
+   * Follow a ring file and display its rates with the time they took to arrive
+   */
+  public static void main(String[] args) throws Exception
+  {
+    if(args.length < 1)
+    {
+      System.out.println("USAGE: <ring file>");
+      return;
+    }
+    final QuoteRingReader reader = new QuoteRingReader(new File(args[0]));
+    Handler display = new Handler()
+    {
+      @Override public void quote(int instrument, long millis, long nanos, long server, double bidOpen,
+        double bidHigh, double bidLow, double bidClose, double askOpen, double askHigh, double askLow,
+        double askClose)
+      {
+        // the time from the server to the publisher, then from the publisher to here
+        System.out.println(reader.getSymbol(instrument) + "\t" + bidClose + "\t" + askClose + "\t"
+          + (server == 0 ? "?" : String.valueOf(millis - server)) + "ms\t" + (System.nanoTime() - nanos) / 1000 + "us");
+      }
+    };
+    while(!reader.isReplaced())
+    {
+      // poll hot for a while after each rate, then back off
+      for(int idle = 0; idle < 100000; idle++)
+        if(reader.poll(display, 1024) > 0) idle = 0;
+        else Thread.onSpinWait();
+      Thread.sleep(1);
+    }
+    reader.close();
+  }
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+import com.fxcm.messaging.ITransportable;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runtime throughput and queue health of a session, exposed through JMX and as Prometheus text on a
+ * local HTTP endpoint.
+ *
+ * The recording methods are called on the hot path and only add to striped counters (LongAdder), so
+ * the callback thread never contends with the threads reading them. Once a second a sampler thread
+ * turns the counters into per second rates; the registered gauges are read when exported.
+ *
+ * @author Richard Kichenama
+ */
+public class RuntimeMetrics
+  implements RuntimeMetricsMXBean
+{
+  private final ConcurrentHashMap<String, LongAdder> inbound = new ConcurrentHashMap<String, LongAdder>();
+  private final ConcurrentHashMap<String, LongAdder> ticks = new ConcurrentHashMap<String, LongAdder>();
+  private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+  private final ConcurrentHashMap<String, LongSupplier> totals = new ConcurrentHashMap<String, LongSupplier>();
+  private final ConcurrentHashMap<String, String> help = new ConcurrentHashMap<String, String>();
+  private final LongAdder ordersSent = new LongAdder();
+  private final LongAdder ordersRejected = new LongAdder();
+  private final LongAdder callbackBusyNanos = new LongAdder();
+
+  // the rates of the last second, replaced as a whole by the sampler
+  private volatile Map<String, Double> inboundRates = new HashMap<String, Double>();
+  private volatile Map<String, Double> tickRates = new HashMap<String, Double>();
+  private volatile double rejectRate, busyRatio, allocationRate;
+  private volatile long allocatedBytes;
+
+  // totals at the previous sample
+  private final HashMap<String, Long> lastInbound = new HashMap<String, Long>();
+  private final HashMap<String, Long> lastTicks = new HashMap<String, Long>();
+  private long lastSample = System.nanoTime(), lastRejected, lastBusy, lastAllocated = -1;
+  // the bytes of each live thread at the previous sample, and of the threads ended since the start
+  private HashMap<Long, Long> threadBytes = new HashMap<Long, Long>();
+  private long endedBytes;
+
+  private ScheduledExecutorService sampler;
+  private HttpServer server;
+
+  // the counter of each message class, found without a map lookup or building the name
+  private final ClassValue<LongAdder> inboundByType = new ClassValue<LongAdder>()
+  {
+    @Override protected LongAdder computeValue(Class<?> type) { return counter(inbound, type.getSimpleName()); }
+  };
+
+  /**
+   * Count a message received from the gateway, by its type
+   */
+  public void messageReceived(ITransportable message)
+  {
+    inboundByType.get(message.getClass()).increment();
+  }
+
+  /**
+   * Count a dealing rate update for the symbol
+   */
+  public void tickReceived(String symbol)
+  {
+    counter(ticks, symbol).increment();
+  }
+
+  /**
+   * Add the time the callback thread spent handling a message
+   */
+  public void callbackBusy(long nanos)
+  {
+    callbackBusyNanos.add(nanos);
+  }
+
+  public void orderSent() { ordersSent.increment(); }
+  public void orderRejected() { ordersRejected.increment(); }
+
+  /**
+   * Register a value read when the metrics are exported, like the size of a queue or table
+   *
+   * @param name - the metric name, like 'fxcm_working_orders'
+   * @param help - a description of the value
+   * @param value - reads the current value
+   */
+  public void gauge(String name, String help, LongSupplier value)
+  {
+    this.help.put(name, help);
+    gauges.put(name, value);
+  }
+
+  /**
+   * Register a total read when the metrics are exported, one that only ever grows like a count of
+   * events; exported as a counter
+   *
+   * @param name - the metric name, ending in '_total'
+   * @param help - a description of the value
+   * @param value - reads the current total
+   */
+  public void counter(String name, String help, LongSupplier value)
+  {
+    this.help.put(name, help);
+    totals.put(name, value);
+  }
+
+  /**
+   * Get the counter of a key, creating it the first time the key is seen
+   */
+  private static LongAdder counter(ConcurrentHashMap<String, LongAdder> counters, String key)
+  {
+    // a plain get does not lock, the creation is paid once per key
+    LongAdder counter = counters.get(key);
+    if(counter == null)
+    {
+      LongAdder created = new LongAdder();
+      counter = counters.putIfAbsent(key, created);
+      if(counter == null) counter = created;
+    }
+    return counter;
+  }
+
+  /**
+   * Start measuring rates, registering with the platform MBean server
+   */
+  public synchronized void start()
+  {
+    if(sampler != null) return;
+    sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      @Override public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "fxcm-metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sampler.scheduleAtFixedRate(new Runnable()
+    {
+      @Override public void run() { sample(); }
+    }, 1, 1, TimeUnit.SECONDS);
+    try { ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("FXCM:type=RuntimeMetrics")); }
+    catch(Exception e) { e.printStackTrace(); }
+  }
+
+  /**
+   * Serve the metrics in Prometheus text format at http://localhost:port/metrics
+   *
+   * @param port - the local port to listen on
+   */
+  public synchronized void startHttp(int port) throws IOException
+  {
+    start();
+    if(server != null) return;
+    // only listen on the loopback interface, the endpoint is for the local collector
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", new HttpHandler()
+    {
+      @Override public void handle(HttpExchange exchange) throws IOException
+      {
+        byte[] body = getPrometheusText().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Stop the sampler and the HTTP endpoint
+   */
+  public synchronized void stop()
+  {
+    if(server != null) server.stop(0);
+    if(sampler != null) sampler.shutdownNow();
+    try { ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("FXCM:type=RuntimeMetrics")); }
+    catch(Exception e) { }
+    server = null;
+    sampler = null;
+  }
+
+  /**
+   * Turn the counters into rates over the time since the previous sample; sampler thread only
+   */
+  private void sample()
+  {
+    long now = System.nanoTime();
+    double seconds = (now - lastSample) / 1e9;
+    lastSample = now;
+    inboundRates = rates(inbound, lastInbound, seconds);
+    tickRates = rates(ticks, lastTicks, seconds);
+    long rejected = ordersRejected.sum();
+    rejectRate = (rejected - lastRejected) / seconds;
+    lastRejected = rejected;
+    long busy = callbackBusyNanos.sum();
+    busyRatio = (busy - lastBusy) / 1e9 / seconds;
+    lastBusy = busy;
+    long allocated = allocatedBytes();
+    if(allocated >= 0)
+    {
+      if(lastAllocated >= 0) allocationRate = Math.max(0, allocated - lastAllocated) / seconds;
+      lastAllocated = allocated;
+      allocatedBytes = allocated;
+    }
+  }
+
+  /**
+   * The rate of each counter since the previous sample
+   */
+  private static Map<String, Double> rates(ConcurrentHashMap<String, LongAdder> counters,
+    HashMap<String, Long> last, double seconds)
+  {
+    HashMap<String, Double> rates = new HashMap<String, Double>();
+    for(Map.Entry<String, LongAdder> entry : counters.entrySet())
+    {
+      long total = entry.getValue().sum();
+      Long previous = last.put(entry.getKey(), total);
+      rates.put(entry.getKey(), (total - (previous == null ? 0 : previous)) / seconds);
+    }
+    return rates;
+  }
+
+  /**
+   * The bytes allocated by the threads of the process so far, -1 if the JVM cannot measure it. A thread
+   * that ended counts with what it had allocated at the last sample it was seen in, so the total never
+   * goes down; one that started and ended between two samples is missed. Sampler thread only
+   */
+  private long allocatedBytes()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean)threads;
+    if(!allocation.isThreadAllocatedMemoryEnabled()) return -1;
+    long[] ids = threads.getAllThreadIds();
+    long[] bytes = allocation.getThreadAllocatedBytes(ids);
+    HashMap<Long, Long> live = new HashMap<Long, Long>();
+    long total = 0;
+    for(int i = 0; i < ids.length; i++)
+    {
+      if(bytes[i] < 0) continue;
+      live.put(ids[i], bytes[i]);
+      total += bytes[i];
+    }
+    for(Map.Entry<Long, Long> entry : threadBytes.entrySet())
+      if(!live.containsKey(entry.getKey())) endedBytes += entry.getValue();
+    threadBytes = live;
+    return endedBytes + total;
+  }
+
+  @Override public Map<String, Double> getInboundMessagesPerSecond() { return new TreeMap<String, Double>(inboundRates); }
+  @Override public Map<String, Double> getTicksPerSecond() { return new TreeMap<String, Double>(tickRates); }
+  @Override public long getOrdersSent() { return ordersSent.sum(); }
+  @Override public long getOrdersRejected() { return ordersRejected.sum(); }
+  @Override public double getOrderRejectsPerSecond() { return rejectRate; }
+  @Override public double getCallbackBusyRatio() { return busyRatio; }
+  @Override public double getAllocatedBytesPerSecond() { return allocationRate; }
+
+  @Override public Map<String, Long> getGauges()
+  {
+    TreeMap<String, Long> values = new TreeMap<String, Long>();
+    for(Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+      values.put(entry.getKey(), entry.getValue().getAsLong());
+    return values;
+  }
+
+  @Override public Map<String, Long> getCounters()
+  {
+    TreeMap<String, Long> values = new TreeMap<String, Long>();
+    for(Map.Entry<String, LongSupplier> entry : totals.entrySet())
+      values.put(entry.getKey(), entry.getValue().getAsLong());
+    return values;
+  }
+
+  /**
+   * Every metric in the Prometheus text exposition format
+   */
+  @Override public String getPrometheusText()
+  {
+    StringBuilder text = new StringBuilder(4096);
+    header(text, "fxcm_inbound_messages_total", "counter", "Messages received from the gateway by type");
+    for(Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(inbound).entrySet())
+      line(text, "fxcm_inbound_messages_total", "type", entry.getKey(), entry.getValue().sum());
+    header(text, "fxcm_inbound_messages_per_second", "gauge", "Messages received over the last second by type");
+    for(Map.Entry<String, Double> entry : getInboundMessagesPerSecond().entrySet())
+      line(text, "fxcm_inbound_messages_per_second", "type", entry.getKey(), entry.getValue());
+    header(text, "fxcm_ticks_total", "counter", "Dealing rate updates by symbol");
+    for(Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(ticks).entrySet())
+      line(text, "fxcm_ticks_total", "symbol", entry.getKey(), entry.getValue().sum());
+    header(text, "fxcm_ticks_per_second", "gauge", "Dealing rate updates over the last second by symbol");
+    for(Map.Entry<String, Double> entry : getTicksPerSecond().entrySet())
+      line(text, "fxcm_ticks_per_second", "symbol", entry.getKey(), entry.getValue());
+    header(text, "fxcm_orders_sent_total", "counter", "Orders sent to the gateway");
+    line(text, "fxcm_orders_sent_total", null, null, ordersSent.sum());
+    header(text, "fxcm_orders_rejected_total", "counter", "Orders answered with a negative status");
+    line(text, "fxcm_orders_rejected_total", null, null, ordersRejected.sum());
+    header(text, "fxcm_order_rejects_per_second", "gauge", "Order rejects over the last second");
+    line(text, "fxcm_order_rejects_per_second", null, null, rejectRate);
+    header(text, "fxcm_callback_busy_seconds_total", "counter", "Time the callback thread spent handling messages");
+    line(text, "fxcm_callback_busy_seconds_total", null, null, callbackBusyNanos.sum() / 1e9);
+    header(text, "fxcm_callback_busy_ratio", "gauge", "Fraction of the last second the callback thread was busy");
+    line(text, "fxcm_callback_busy_ratio", null, null, busyRatio);
+    header(text, "fxcm_allocated_bytes_total", "counter", "Bytes allocated so far by the threads of the process, ended ones included");
+    line(text, "fxcm_allocated_bytes_total", null, null, allocatedBytes);
+    header(text, "fxcm_allocated_bytes_per_second", "gauge", "Allocation rate over the last second");
+    line(text, "fxcm_allocated_bytes_per_second", null, null, allocationRate);
+    for(Map.Entry<String, Long> entry : getCounters().entrySet())
+    {
+      header(text, entry.getKey(), "counter", help.get(entry.getKey()));
+      line(text, entry.getKey(), null, null, entry.getValue());
+    }
+    for(Map.Entry<String, Long> entry : getGauges().entrySet())
+    {
+      header(text, entry.getKey(), "gauge", help.get(entry.getKey()));
+      line(text, entry.getKey(), null, null, entry.getValue());
+    }
+    return text.toString();
+  }
+
+  private static void header(StringBuilder text, String name, String type, String help)
+  {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void line(StringBuilder text, String name, String label, String value, double sample)
+  {
+    text.append(name);
+    if(label != null)
+    {
+      text.append('{').append(label).append("=\"");
+      // escape the characters the format reserves in label values
+      for(int i = 0; i < value.length(); i++)
+      {
+        char c = value.charAt(i);
+        if(c == '\\' || c == '"') text.append('\\').append(c);
+        else if(c == '\n') text.append("\\n");
+        else text.append(c);
+      }
+      text.append("\"}");
+    }
+    text.append(' ');
+    if(sample == Math.rint(sample) && Math.abs(sample) < 1e15) text.append((long)sample);
+    else text.append(sample);
+    text.append('\n');
+  }
+}
@@ -0,0 +1,21 @@
+import java.util.Map;
+
+/**
+ * Management interface of RuntimeMetrics, registered with the platform MBean server as
+ * 'FXCM:type=RuntimeMetrics'. The rates are measured over the last second.
+ *
+ * @author Richard Kichenama
+ */
+public interface RuntimeMetricsMXBean
+{
+  public Map<String, Double> getInboundMessagesPerSecond();
+  public Map<String, Double> getTicksPerSecond();
+  public Map<String, Long> getGauges();
+  public Map<String, Long> getCounters();
+  public long getOrdersSent();
+  public long getOrdersRejected();
+  public double getOrderRejectsPerSecond();
+  public double getCallbackBusyRatio();
+  public double getAllocatedBytesPerSecond();
+  public String getPrometheusText();
+}
@@ -0,0 +1,183 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fxcm.external.api.transport.listeners.IGenericMessageListener;
+import com.fxcm.messaging.ITransportable;
+
+/**
+ * A single thread owning the state of a session.
+ *
+ * The messages from the API callback thread and the commands from the threads of the application are
+ * put in one bounded lock-free queue, many producers and one consumer, and run by the loop thread in
+ * the order they were put; the state is then only ever touched by that thread and needs no lock. A
+ * message is handed to the listener, a command is a Runnable, or a Callable through call() when the
+ * caller needs its result.
+ *
+ * When the queue is empty the loop either spins, keeping a CPU busy for the lowest latency, or backs
+ * off to yielding then parking.
+ *
+ * @author Richard Kichenama
+ */
+public class SessionEventLoop
+{
+  // the idle rounds spent spinning then yielding before parking, when not spinning only
+  private static final int SPINS = 1000, YIELDS = 100;
+  private static final long PARK_NANOS = 50000;
+
+  private final IGenericMessageListener listener;
+  private final boolean spin;
+  private final Thread thread;
+  private final AtomicReferenceArray<Object> slots;
+  private final int mask;
+  // the next slot to claim by the producers, and the next slot to run by the loop
+  private final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+  private volatile boolean running = true, parked;
+
+  /**
+   * @param name - the name of the loop thread
+   * @param listener - receives the messages on the loop thread
+   * @param capacity - how many messages and commands may wait, rounded up to a power of two
+   * @param spin - true to spin when idle, false to back off
+   */
+  public SessionEventLoop(String name, IGenericMessageListener listener, int capacity, boolean spin)
+  {
+    this.listener = listener;
+    this.spin = spin;
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    slots = new AtomicReferenceArray<Object>(size);
+    mask = size - 1;
+    thread = new Thread(new Runnable()
+    {
+      @Override public void run() { loop(); }
+    }, name);
+    thread.setDaemon(true);
+  }
+
+  public void start() { thread.start(); }
+
+  /**
+   * @return true if called from the loop thread
+   */
+  public boolean inLoop() { return Thread.currentThread() == thread; }
+
+  /**
+   * Hand a message to the listener on the loop thread
+   */
+  public void offer(ITransportable message) { put(message); }
+
+  /**
+   * Run a command on the loop thread, after everything already queued
+   */
+  public void execute(Runnable command) { put(command); }
+
+  /**
+   * Run a command on the loop thread and wait for its result; run in place when called from the loop
+   */
+  public <T> T call(Callable<T> command) throws Exception
+  {
+    if(inLoop()) return command.call();
+    FutureTask<T> task = new FutureTask<T>(command);
+    put(task);
+    try { return task.get(); }
+    catch(ExecutionException e)
+    {
+      if(e.getCause() instanceof Exception) throw (Exception)e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Claim the next slot and fill it, waiting for the loop to free one when the queue is full
+   */
+  private void put(Object item)
+  {
+    long slot;
+    while(true)
+    {
+      slot = tail.get();
+      if(slot - head.get() > mask)
+      {
+        // full, the loop may be running the command putting this item; run it in place then
+        if(inLoop()) { run(item); return; }
+        Thread.yield();
+      }
+      else if(tail.compareAndSet(slot, slot + 1)) break;
+    }
+    // a volatile write, so that it is ordered before the read of parked as the loop orders its
+    // write of parked before the read of the slot
+    slots.set((int)slot & mask, item);
+    if(parked) LockSupport.unpark(thread);
+  }
+
+  private void loop()
+  {
+    long next = head.get();
+    int idle = 0;
+    while(running)
+    {
+      int index = (int)next & mask;
+      Object item = slots.get(index);
+      if(item == null)
+      {
+        // empty, or a producer claimed the slot and is about to fill it
+        idle = idle(idle);
+        continue;
+      }
+      idle = 0;
+      slots.lazySet(index, null);
+      head.lazySet(++next);
+      run(item);
+    }
+  }
+
+  private void run(Object item)
+  {
+    try
+    {
+      if(item instanceof ITransportable) listener.messageArrived((ITransportable)item);
+      else ((Runnable)item).run();
+    }
+    // a failing message or command must not stop the loop
+    catch(RuntimeException e) { e.printStackTrace(); }
+  }
+
+  /**
+   * Wait for work according to the idle strategy
+   *
+   * @return the number of idle rounds so far
+   */
+  private int idle(int rounds)
+  {
+    if(spin || rounds < SPINS) Thread.onSpinWait();
+    else if(rounds < SPINS + YIELDS) Thread.yield();
+    else
+    {
+      parked = true;
+      // checked again once parked is visible, so a producer either sees it or its item is seen here
+      if(slots.get((int)head.get() & mask) == null && running) LockSupport.parkNanos(this, PARK_NANOS);
+      parked = false;
+      return rounds;
+    }
+    return rounds + 1;
+  }
+
+  /**
+   * Stop the loop once the session is over, dropping whatever is still queued
+   */
+  public void stop()
+  {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * @return the number of messages and commands waiting
+   */
+  public int getBacklog() { return (int)(tail.get() - head.get()); }
+
+  public String getName() { return thread.getName(); }
+}
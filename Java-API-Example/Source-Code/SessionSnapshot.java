@@ -0,0 +1,213 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.fxcm.fix.TradingSecurity;
+import com.fxcm.fix.posttrade.CollateralReport;
+
+/**
+ * Local copy of the session metadata that is otherwise requested from the server on every login;
+ * the account list and the tradable instruments with the properties needed to build orders.
+ *
+ * A snapshot is captured from the live session and written to disk at shutdown, then loaded at the
+ * next start so that orders can be built before the trading session status and the collateral
+ * reports have been received. Once the live session has been retrieved in the background, the
+ * snapshot is reconciled against it with difference().
+ *
+ * @author Richard Kichenama
+ */
+public class SessionSnapshot
+{
+  // identifies the file format, bump the version when the layout changes
+  private static final int MAGIC = 0x46584353;
+  private static final int VERSION = 1;
+  // the most accounts and instruments a snapshot is taken to hold, anything beyond is a corrupt file
+  private static final int MAX_ACCOUNTS = 4096, MAX_INSTRUMENTS = 65536;
+
+  private final long capturedAt;
+  private final String[] accounts;
+  private final String[] symbols;
+  private final double[] minQuantity;
+  private final double[] pointSize;
+  private final boolean[] forex;
+
+  private SessionSnapshot(long capturedAt, String[] accounts, String[] symbols, double[] minQuantity,
+    double[] pointSize, boolean[] forex)
+  {
+    this.capturedAt = capturedAt;
+    this.accounts = accounts;
+    this.symbols = symbols;
+    this.minQuantity = minQuantity;
+    this.pointSize = pointSize;
+    this.forex = forex;
+  }
+
+  /**
+   * Capture the metadata of a live session
+   *
+   * @param accounts - the collateral reports of the accounts under the login
+   * @param instruments - the securities of the trading session status
+   *
+   * @return the snapshot, or null if any of the securities could not be read
+   */
+  public static SessionSnapshot capture(List<CollateralReport> accounts, List<TradingSecurity> instruments)
+  {
+    try
+    {
+      String[] ids = new String[accounts.size()];
+      for(int i = 0; i < ids.length; i++) ids[i] = accounts.get(i).getAccount();
+      int count = instruments.size();
+      String[] symbols = new String[count];
+      double[] minQuantity = new double[count], pointSize = new double[count];
+      boolean[] forex = new boolean[count];
+      for(int i = 0; i < count; i++)
+      {
+        TradingSecurity security = instruments.get(i);
+        symbols[i] = security.getSymbol();
+        minQuantity[i] = security.getFXCMMinQuantity();
+        pointSize[i] = security.getFXCMSymPointSize();
+        forex[i] = security.isForex();
+      }
+      return new SessionSnapshot(System.currentTimeMillis(), ids, symbols, minQuantity, pointSize, forex);
+    }
+    catch(Exception e) { e.printStackTrace(); }
+    return null;
+  }
+
+  /**
+   * Read a snapshot previously written with save()
+   *
+   * @param file - the snapshot file
+   *
+   * @return the snapshot, or null if the file does not exist, is not a snapshot of this version or is
+   *   corrupt
+   */
+  public static SessionSnapshot load(File file)
+  {
+    if(!file.isFile()) return null;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      // refuse files written by another application or another layout
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+      long capturedAt = in.readLong();
+      int accountCount = in.readInt();
+      if(accountCount < 0 || accountCount > MAX_ACCOUNTS) throw new IOException("Corrupt session snapshot " + file);
+      String[] accounts = new String[accountCount];
+      for(int i = 0; i < accounts.length; i++) accounts[i] = in.readUTF();
+      int count = in.readInt();
+      if(count < 0 || count > MAX_INSTRUMENTS) throw new IOException("Corrupt session snapshot " + file);
+      String[] symbols = new String[count];
+      double[] minQuantity = new double[count], pointSize = new double[count];
+      boolean[] forex = new boolean[count];
+      for(int i = 0; i < count; i++)
+      {
+        symbols[i] = in.readUTF();
+        minQuantity[i] = in.readDouble();
+        pointSize[i] = in.readDouble();
+        forex[i] = in.readBoolean();
+      }
+      return new SessionSnapshot(capturedAt, accounts, symbols, minQuantity, pointSize, forex);
+    }
+    catch(IOException e) { e.printStackTrace(); }
+    finally { close(in); }
+    return null;
+  }
+
+  /**
+   * Write the snapshot to disk, replacing any previous snapshot only once the new one is complete
+   *
+   * @param file - the snapshot file
+   *
+   * @return true if the snapshot was written, false if not
+   */
+  public boolean save(File file)
+  {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(capturedAt);
+      out.writeInt(accounts.length);
+      for(String account : accounts) out.writeUTF(account);
+      out.writeInt(symbols.length);
+      for(int i = 0; i < symbols.length; i++)
+      {
+        out.writeUTF(symbols[i]);
+        out.writeDouble(minQuantity[i]);
+        out.writeDouble(pointSize[i]);
+        out.writeBoolean(forex[i]);
+      }
+      out.close();
+      out = null;
+      // swap the completed file in, a crash while writing leaves the old snapshot usable
+      return (!file.exists() || file.delete()) && temp.renameTo(file);
+    }
+    catch(IOException e) { e.printStackTrace(); }
+    finally { close(out); }
+    return false;
+  }
+
+  /**
+   * Describe the differences between this snapshot and a newer one, normally captured from the live
+   * session after a warm start
+   *
+   * @param live - the newer snapshot
+   *
+   * @return a line per added, removed or changed account or instrument; empty if they match
+   */
+  public List<String> difference(SessionSnapshot live)
+  {
+    List<String> changes = new ArrayList<String>();
+    // compare the accounts by id
+    HashMap<String, Integer> known = new HashMap<String, Integer>();
+    for(int i = 0; i < accounts.length; i++) known.put(accounts[i], i);
+    for(String account : live.accounts)
+      if(known.remove(account) == null) changes.add("account added " + account);
+    for(String account : known.keySet()) changes.add("account removed " + account);
+    // compare the instruments by symbol, then their properties
+    known.clear();
+    for(int i = 0; i < symbols.length; i++) known.put(symbols[i], i);
+    for(int i = 0; i < live.symbols.length; i++)
+    {
+      Integer old = known.remove(live.symbols[i]);
+      if(old == null) changes.add("instrument added " + live.symbols[i]);
+      else if(minQuantity[old] != live.minQuantity[i] || pointSize[old] != live.pointSize[i] ||
+        forex[old] != live.forex[i])
+        changes.add("instrument changed " + live.symbols[i]);
+    }
+    for(String symbol : known.keySet()) changes.add("instrument removed " + symbol);
+    return changes;
+  }
+
+  public long getCapturedAt() { return capturedAt; }
+  public int getAccountCount() { return accounts.length; }
+  public String getAccount(int index) { return accounts[index]; }
+  public int getInstrumentCount() { return symbols.length; }
+  public String getSymbol(int index) { return symbols[index]; }
+  public double getMinQuantity(int index) { return minQuantity[index]; }
+  public double getPointSize(int index) { return pointSize[index]; }
+  public boolean isForex(int index) { return forex[index]; }
+
+  /**
+   * Close a stream, ignoring any error
+   */
+  private static void close(Closeable stream)
+  {
+    try { if(stream != null) stream.close(); }
+    catch(IOException e) { }
+  }
+}
@@ -0,0 +1,509 @@
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fxcm.fix.posttrade.PositionReport;
+import com.fxcm.fix.pretrade.MarketDataSnapshot;
+import com.fxcm.fix.trade.ExecutionReport;
+import com.fxcm.messaging.ITransportable;
+
+/**
+ * Runs many strategies in one process over the session and the dealing rates of a single trader.
+ *
+ * Each strategy runs on a thread of its own and is only ever called on it, so its state needs no lock
+ * and a slow or failing strategy holds up neither the others nor the API callback thread. A strategy
+ * subscribes to the symbols it trades and is handed their dealing rates; when it falls behind, only
+ * the latest rate of each symbol waits for it, so its backlog never grows past one rate per symbol.
+ *
+ * The orders of a strategy carry its name at the start of their custom text, as built by
+ * Context.text(); the execution and position reports echo the custom text back, and the owner of the
+ * session routes them here with received() to be handed to the strategy that placed the order.
+ *
+ * The rates, reports, orders, errors, busy time, CPU time and allocation of every strategy are
+ * counted and read through getUsage().
+ *
+ * @author Richard Kichenama
+ */
+public class StrategyHost
+{
+  // the separator between the name of the strategy and the rest of the custom text of an order
+  public static final char TAG = ':';
+
+  /**
+   * A trading strategy; every method is called on the thread of the strategy
+   */
+  public interface Strategy
+  {
+    /**
+     * Subscribe to the symbols and set up the state of the strategy
+     */
+    void start(Context context);
+
+    /**
+     * The latest dealing rate of a subscribed symbol
+     */
+    void quote(MarketDataSnapshot mds);
+
+    /**
+     * A report on an order placed by the strategy
+     */
+    void executed(ExecutionReport er);
+
+    /**
+     * A report on a position opened or closed by an order of the strategy
+     */
+    void position(PositionReport pr);
+
+    /**
+     * The host is stopping, release anything held
+     */
+    void stop();
+  }
+
+  /**
+   * Implemented by the owner of the session
+   */
+  public interface Session
+  {
+    /**
+     * Wait for the turn of an order to be sent, while the session is down or under the outbound rate
+     * limits
+     *
+     * @param priority - OutboundThrottler.RISK_REDUCING, AMEND or NEW_ORDER
+     *
+     * @return true to send the order now, false if it is rejected or superseded
+     */
+    boolean admit(ITransportable order, int priority);
+
+    /**
+     * Send an order admitted by admit() without waiting for its answer
+     *
+     * @return the request id of the order, null if it was not sent
+     */
+    String send(ITransportable order);
+
+    /**
+     * @return the account the strategies trade on
+     */
+    String getAccount();
+
+    /**
+     * @return the latest dealing rate of a symbol, null if none has arrived
+     */
+    MarketDataSnapshot getRate(String symbol);
+  }
+
+  /**
+   * What a strategy sees of the host
+   */
+  public final class Context
+  {
+    private final Slot slot;
+
+    private Context(Slot slot) { this.slot = slot; }
+
+    public String getName() { return slot.name; }
+
+    /**
+     * Receive the dealing rates of a symbol from now on
+     */
+    public void subscribe(String symbol)
+    {
+      synchronized(StrategyHost.this)
+      {
+        // copied on write, the callback thread reads the subscribers without a lock
+        HashMap<String, Slot[]> copy = new HashMap<String, Slot[]>(subscribers);
+        Slot[] slots = copy.get(symbol);
+        if(slots == null) slots = new Slot[0];
+        for(Slot s : slots)
+          if(s == slot) return;
+        Slot[] grown = new Slot[slots.length + 1];
+        System.arraycopy(slots, 0, grown, 0, slots.length);
+        grown[slots.length] = slot;
+        copy.put(symbol, grown);
+        subscribers = copy;
+      }
+    }
+
+    /**
+     * @return the custom text for an order of the strategy, attributing its reports to it
+     */
+    public String text(String note)
+    {
+      return slot.name + TAG + (note == null ? "" : note);
+    }
+
+    /**
+     * Send an order built with a custom text from text(), without waiting for its answer, with the
+     * priority of its type
+     *
+     * @return the request id of the order, null if it was not sent
+     */
+    public String send(ITransportable order)
+    {
+      return send(order, OutboundThrottler.classify(order));
+    }
+
+    /**
+     * Send an order built with a custom text from text(), without waiting for its answer
+     *
+     * @param priority - OutboundThrottler.RISK_REDUCING for an order closing a position, AMEND or NEW_ORDER
+     *
+     * @return the request id of the order, null if it was not sent
+     */
+    public String send(ITransportable order, int priority)
+    {
+      // the wait for its turn is not under the lock, the reports of the other orders are not held up
+      if(!session.admit(order, priority)) return null;
+      // the first answer may not carry the custom text, its request id is registered before it is matched
+      registering.lock();
+      sending = true;
+      try
+      {
+        String requestId = session.send(order);
+        if(requestId == null) return null;
+        slot.orders.increment();
+        requests.put(requestId, slot);
+        return requestId;
+      }
+      finally
+      {
+        sending = false;
+        registering.unlock();
+      }
+    }
+
+    public String getAccount() { return session.getAccount(); }
+
+    public MarketDataSnapshot getRate(String symbol) { return session.getRate(symbol); }
+
+    public PrintWriter getOutput() { return output; }
+  }
+
+  /**
+   * The resources used by a strategy so far
+   */
+  public static final class Usage
+  {
+    private final String name;
+    private final long quotes, conflated, reports, orders, rejects, errors, busyNanos, cpuNanos, allocatedBytes;
+    private final int backlog;
+
+    private Usage(String name, long quotes, long conflated, long reports, long orders, long rejects,
+      long errors, long busyNanos, long cpuNanos, long allocatedBytes, int backlog)
+    {
+      this.name = name;
+      this.quotes = quotes;
+      this.conflated = conflated;
+      this.reports = reports;
+      this.orders = orders;
+      this.rejects = rejects;
+      this.errors = errors;
+      this.busyNanos = busyNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.backlog = backlog;
+    }
+
+    public String getName() { return name; }
+    // the rates handed to the strategy, and the ones replaced by a later rate before it got to them
+    public long getQuotes() { return quotes; }
+    public long getConflated() { return conflated; }
+    public long getReports() { return reports; }
+    public long getOrders() { return orders; }
+    public long getRejects() { return rejects; }
+    // the exceptions thrown by the strategy
+    public long getErrors() { return errors; }
+    // the time spent in the strategy, and the CPU time and bytes allocated by its thread, -1 if unknown
+    public long getBusyNanos() { return busyNanos; }
+    public long getCpuNanos() { return cpuNanos; }
+    public long getAllocatedBytes() { return allocatedBytes; }
+    // the symbols with a rate waiting for the strategy
+    public int getBacklog() { return backlog; }
+
+    @Override public String toString()
+    {
+      return name + " quotes " + quotes + " (" + conflated + " conflated), reports " + reports + ", orders "
+        + orders + " (" + rejects + " rejected), errors " + errors + ", busy " + busyNanos / 1000000 + "ms, cpu "
+        + cpuNanos / 1000000 + "ms, allocated " + allocatedBytes / 1024 + "KB";
+    }
+  }
+
+  /**
+   * A strategy, its thread and its counters
+   */
+  private final class Slot
+  {
+    final String name;
+    final Strategy strategy;
+    final ExecutorService executor;
+    volatile long threadId = -1;
+    // the latest rate of each symbol waiting for the strategy, and whether a delivery is queued
+    final ConcurrentHashMap<String, MarketDataSnapshot> pending = new ConcurrentHashMap<String, MarketDataSnapshot>();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final LongAdder quotes = new LongAdder(), conflated = new LongAdder(), reports = new LongAdder();
+    final LongAdder orders = new LongAdder(), rejects = new LongAdder(), errors = new LongAdder();
+    final LongAdder busyNanos = new LongAdder();
+    // delivers the waiting rates, each at most once
+    final Runnable deliver = new Runnable()
+    {
+      @Override public void run()
+      {
+        scheduled.set(false);
+        Iterator<String> it = pending.keySet().iterator();
+        while(it.hasNext())
+        {
+          // the rate removed is the one delivered, a later rate put meanwhile is not lost
+          MarketDataSnapshot mds = pending.remove(it.next());
+          if(mds == null) continue;
+          quotes.increment();
+          long start = System.nanoTime();
+          try { strategy.quote(mds); }
+          catch(RuntimeException e) { failed(e); }
+          finally { busyNanos.add(System.nanoTime() - start); }
+        }
+      }
+    };
+
+    Slot(final String name, Strategy strategy)
+    {
+      this.name = name;
+      this.strategy = strategy;
+      // a single daemon thread per strategy, its state is confined to it
+      this.executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+      {
+        @Override public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "fxcm-strategy-" + name);
+          thread.setDaemon(true);
+          threadId = thread.getId();
+          return thread;
+        }
+      });
+    }
+
+    void quote(String symbol, MarketDataSnapshot mds)
+    {
+      if(pending.put(symbol, mds) != null) conflated.increment();
+      if(scheduled.compareAndSet(false, true)) run(deliver);
+    }
+
+    /**
+     * Run a call to the strategy on its thread, counting the time spent in it
+     */
+    void call(final Runnable call)
+    {
+      run(new Runnable()
+      {
+        @Override public void run()
+        {
+          long start = System.nanoTime();
+          try { call.run(); }
+          catch(RuntimeException e) { failed(e); }
+          finally { busyNanos.add(System.nanoTime() - start); }
+        }
+      });
+    }
+
+    private void run(Runnable task)
+    {
+      // nothing more reaches a strategy once it is stopping
+      try { executor.execute(task); }
+      catch(RejectedExecutionException e) { }
+    }
+
+    void failed(RuntimeException e)
+    {
+      errors.increment();
+      output.println("Strategy " + name + " failed: " + e);
+      e.printStackTrace(output);
+    }
+  }
+
+  private final Session session;
+  private final PrintWriter output;
+  private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<String, Slot>();
+  // the strategies subscribed to each symbol, replaced on every subscription
+  private volatile HashMap<String, Slot[]> subscribers = new HashMap<String, Slot[]>();
+  // the strategy of each order sent, until its first answer
+  private final ConcurrentHashMap<String, Slot> requests = new ConcurrentHashMap<String, Slot>();
+  // held while an order is sent and its request id registered, an answer can beat the id back
+  private final ReentrantLock registering = new ReentrantLock();
+  private volatile boolean sending;
+  private volatile Slot[] all = new Slot[0];
+
+  /**
+   * @param session - sends the orders of the strategies and reads the session state for them
+   * @param output - where to display the failures of the strategies
+   */
+  public StrategyHost(Session session, PrintWriter output)
+  {
+    this.session = session;
+    this.output = output;
+  }
+
+  /**
+   * Start a strategy on a thread of its own
+   *
+   * @param name - a name unique in the host, without the TAG character, put at the start of the custom
+   *   text of its orders
+   */
+  public synchronized void add(String name, final Strategy strategy)
+  {
+    if(name.indexOf(TAG) >= 0) throw new IllegalArgumentException("A strategy name cannot contain " + TAG + ": " + name);
+    if(slots.containsKey(name)) throw new IllegalArgumentException("Strategy already running: " + name);
+    final Slot slot = new Slot(name, strategy);
+    slots.put(name, slot);
+    all = slots.values().toArray(new Slot[slots.size()]);
+    final Context context = new Context(slot);
+    slot.call(new Runnable()
+    {
+      @Override public void run() { strategy.start(context); }
+    });
+  }
+
+  /**
+   * Hand a dealing rate to the strategies subscribed to its symbol; callback thread only
+   */
+  public void quote(String symbol, MarketDataSnapshot mds)
+  {
+    Slot[] slots = subscribers.get(symbol);
+    if(slots == null) return;
+    for(Slot slot : slots) slot.quote(symbol, mds);
+  }
+
+  /**
+   * Hand an execution report to the strategy that placed the order
+   *
+   * @return true if the report is for an order of a strategy
+   */
+  public boolean received(final ExecutionReport er, boolean rejected)
+  {
+    final Slot slot = owner(er.getRequestID(), er.getSecondaryClOrdID());
+    if(slot == null) return false;
+    slot.reports.increment();
+    if(rejected) slot.rejects.increment();
+    slot.call(new Runnable()
+    {
+      @Override public void run() { slot.strategy.executed(er); }
+    });
+    return true;
+  }
+
+  /**
+   * Hand a position report to the strategy whose order opened or closed the position
+   *
+   * @return true if the report is for a position of a strategy
+   */
+  public boolean received(final PositionReport pr)
+  {
+    final Slot slot = owner(null, pr.getSecondaryClOrdID());
+    if(slot == null) return false;
+    slot.reports.increment();
+    slot.call(new Runnable()
+    {
+      @Override public void run() { slot.strategy.position(pr); }
+    });
+    return true;
+  }
+
+  /**
+   * The strategy of a report, by the order it answers or else by the name its custom text starts with
+   */
+  private Slot owner(String requestId, String text)
+  {
+    if(requestId != null && sending)
+    {
+      // wait for the request id of the order being sent
+      registering.lock();
+      registering.unlock();
+    }
+    Slot slot = requestId == null ? null : requests.remove(requestId);
+    if(slot != null || text == null) return slot;
+    int tag = text.indexOf(TAG);
+    if(tag <= 0) return null;
+    Slot[] running = all;
+    for(Slot s : running)
+      if(s.name.length() == tag && text.startsWith(s.name)) return s;
+    return null;
+  }
+
+  /**
+   * Stop every strategy, waiting for each to finish what it was doing
+   */
+  public synchronized void stop(long timeoutMillis) throws InterruptedException
+  {
+    for(final Slot slot : slots.values())
+    {
+      slot.call(new Runnable()
+      {
+        @Override public void run() { slot.strategy.stop(); }
+      });
+      slot.executor.shutdown();
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    for(Slot slot : slots.values())
+      slot.executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    slots.clear();
+    all = new Slot[0];
+    subscribers = new HashMap<String, Slot[]>();
+    requests.clear();
+  }
+
+  /**
+   * @return the resources used by each strategy so far, in the order they were added
+   */
+  public List<Usage> getUsage()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocation = threads instanceof com.sun.management.ThreadMXBean
+      ? (com.sun.management.ThreadMXBean)threads : null;
+    ArrayList<Usage> usage = new ArrayList<Usage>();
+    for(Slot slot : all)
+    {
+      long id = slot.threadId;
+      long cpu = id < 0 || !threads.isThreadCpuTimeSupported() ? -1 : threads.getThreadCpuTime(id);
+      long allocated = id < 0 || allocation == null || !allocation.isThreadAllocatedMemoryEnabled() ? -1
+        : allocation.getThreadAllocatedBytes(id);
+      usage.add(new Usage(slot.name, slot.quotes.sum(), slot.conflated.sum(), slot.reports.sum(),
+        slot.orders.sum(), slot.rejects.sum(), slot.errors.sum(), slot.busyNanos.sum(), cpu, allocated,
+        slot.pending.size()));
+    }
+    return Collections.unmodifiableList(usage);
+  }
+
+  /**
+   * @return the number of strategies running
+   */
+  public int size() { return all.length; }
+
+  /**
+   * @return the orders sent by the strategies and waiting for their first report
+   */
+  public int outstanding() { return requests.size(); }
+
+  /**
+   * @return the symbols with a rate waiting for a strategy, over every strategy
+   */
+  public int getBacklog()
+  {
+    int backlog = 0;
+    for(Slot slot : all) backlog += slot.pending.size();
+    return backlog;
+  }
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.fxcm.fix.Instrument;
+import com.fxcm.fix.UTCDate;
+import com.fxcm.fix.pretrade.MarketDataSnapshot;
+
+/**
+ * Rates of the crosses and baskets the server does not quote, derived from the symbols it does.
+ *
+ * A synthetic symbol is a product of quoted or earlier synthetic legs, each raised to an exponent, times
+ * a constant factor; a cross is one leg over another, a geometric basket has one leg per constituent
+ * with its weight as exponent. The legs a synthetic depends on, directly or through other synthetics,
+ * form a graph; for every symbol the synthetics affected by it are kept in dependency order, so a
+ * dealing rate only recomputes those, whatever the number of symbols and synthetics.
+ *
+ * The bid of a synthetic takes the bid of the legs it multiplies and the ask of the legs it divides,
+ * the ask the other way round, so a synthetic rate is always one that can be dealt through its legs.
+ * Every updated synthetic rate is handed to the listener as a MarketDataSnapshot of its own, stamped
+ * with the server time of the dealing rate that moved it, to be published with the dealing rates of
+ * the server. Synthetic symbols are not dealt by the server; orders on them are to be rejected by the
+ * owner with isSynthetic().
+ *
+ * The rates are updated by a single writer, the API callback thread; synthetics may be defined from
+ * any thread, each definition publishing a new copy of the graph.
+ *
+ * @author Richard Kichenama
+ */
+public class SyntheticRates
+{
+  /**
+   * Receives the synthetic rates updated by a dealing rate, on the writer thread
+   */
+  public interface Listener
+  {
+    void quoted(MarketDataSnapshot quote);
+  }
+
+  /**
+   * The symbols, the definitions of the synthetics and what each symbol affects; never changed once
+   * published
+   */
+  private static final class Graph
+  {
+    final HashMap<String, Integer> ids;
+    final String[] symbols;
+    // null for a quoted symbol
+    final int[][] legs;
+    final double[][] exponents;
+    final double[] factors;
+    final Instrument[] instruments;
+    // the synthetics to recompute when each symbol moves, in dependency order
+    final int[][] affected;
+
+    Graph(HashMap<String, Integer> ids, String[] symbols, int[][] legs, double[][] exponents, double[] factors,
+      Instrument[] instruments)
+    {
+      this.ids = ids;
+      this.symbols = symbols;
+      this.legs = legs;
+      this.exponents = exponents;
+      this.factors = factors;
+      this.instruments = instruments;
+      int count = symbols.length;
+      // the synthetics using each symbol directly
+      ArrayList<ArrayList<Integer>> dependents = new ArrayList<ArrayList<Integer>>();
+      for(int i = 0; i < count; i++) dependents.add(new ArrayList<Integer>());
+      for(int s = 0; s < count; s++)
+        if(legs[s] != null)
+          for(int leg : legs[s]) dependents.get(leg).add(s);
+      // a synthetic only uses symbols known before it, so ascending ids are a dependency order
+      affected = new int[count][];
+      boolean[] seen = new boolean[count];
+      int[] stack = new int[count];
+      for(int i = 0; i < count; i++)
+      {
+        Arrays.fill(seen, false);
+        int found = 0, top = 0;
+        stack[top++] = i;
+        int[] closure = new int[count];
+        while(top > 0)
+        {
+          for(int s : dependents.get(stack[--top]))
+          {
+            if(seen[s]) continue;
+            seen[s] = true;
+            closure[found++] = s;
+            stack[top++] = s;
+          }
+        }
+        affected[i] = Arrays.copyOf(closure, found);
+        Arrays.sort(affected[i]);
+      }
+    }
+
+    int size() { return symbols.length; }
+  }
+
+  private final Listener listener;
+  private volatile Graph graph = new Graph(new HashMap<String, Integer>(), new String[0], new int[0][],
+    new double[0][], new double[0], new Instrument[0]);
+  // the latest rates by symbol id, zero until quoted; writer thread only
+  private double[] bid = new double[64], ask = new double[64];
+
+  /**
+   * @param listener - receives every synthetic rate updated
+   */
+  public SyntheticRates(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Define a synthetic symbol as the product of its legs raised to their exponents, times a factor
+   *
+   * @param symbol - the name of the synthetic, not used yet as a symbol or a leg
+   * @param legs - the quoted or already defined synthetic symbols it is made of
+   * @param exponents - the power of each leg, 1 to multiply by it, -1 to divide by it
+   * @param factor - a positive constant the product is multiplied by, 1 for a cross
+   * @param pointSize - the size of a pip of the synthetic, like 0.0001
+   */
+  public synchronized void define(String symbol, String[] legs, double[] exponents, double factor,
+    double pointSize)
+  {
+    if(legs.length == 0 || legs.length != exponents.length)
+      throw new IllegalArgumentException("A synthetic needs one exponent per leg: " + symbol);
+    if(!(factor > 0)) throw new IllegalArgumentException("The factor of a synthetic must be positive: " + symbol);
+    Graph old = graph;
+    if(old.ids.containsKey(symbol)) throw new IllegalArgumentException("Symbol already in use: " + symbol);
+    HashMap<String, Integer> ids = new HashMap<String, Integer>(old.ids);
+    ArrayList<String> symbols = new ArrayList<String>(Arrays.asList(old.symbols));
+    // the legs first, so the synthetic comes after everything it uses
+    int[] legIds = new int[legs.length];
+    for(int i = 0; i < legs.length; i++)
+    {
+      Integer id = ids.get(legs[i]);
+      if(id == null)
+      {
+        id = symbols.size();
+        ids.put(legs[i], id);
+        symbols.add(legs[i]);
+      }
+      legIds[i] = id;
+    }
+    int id = symbols.size();
+    ids.put(symbol, id);
+    symbols.add(symbol);
+    int count = symbols.size();
+    int[][] legTable = Arrays.copyOf(old.legs, count);
+    double[][] exponentTable = Arrays.copyOf(old.exponents, count);
+    double[] factors = Arrays.copyOf(old.factors, count);
+    Instrument[] instruments = Arrays.copyOf(old.instruments, count);
+    legTable[id] = legIds;
+    exponentTable[id] = exponents.clone();
+    factors[id] = factor;
+    instruments[id] = new SyntheticInstrument(symbol, pointSize);
+    graph = new Graph(ids, symbols.toArray(new String[count]), legTable, exponentTable, factors, instruments);
+  }
+
+  /**
+   * Define a cross as the ratio of two quoted symbols, like EUR/GBP as EUR/USD over GBP/USD
+   */
+  public void defineRatio(String symbol, String numerator, String denominator, double pointSize)
+  {
+    define(symbol, new String[] { numerator, denominator }, new double[] { 1, -1 }, 1, pointSize);
+  }
+
+  /**
+   * Define a cross as the product of two quoted symbols, like EUR/JPY as EUR/USD times USD/JPY
+   */
+  public void defineProduct(String symbol, String first, String second, double pointSize)
+  {
+    define(symbol, new String[] { first, second }, new double[] { 1, 1 }, 1, pointSize);
+  }
+
+  /**
+   * Take a dealing rate and publish the synthetics depending on it; writer thread only
+   *
+   * @param date - the server time of the dealing rate, given to the synthetic rates it moves
+   *
+   * @return the number of synthetic rates published
+   */
+  public int quote(String symbol, double bidPrice, double askPrice, UTCDate date)
+  {
+    Graph g = graph;
+    Integer id = g.ids.get(symbol);
+    if(id == null) return 0;
+    int s = id;
+    // a synthetic was already published along with the legs it depends on
+    if(g.legs[s] != null) return 0;
+    if(bid.length < g.size())
+    {
+      int size = Math.max(g.size(), bid.length * 2);
+      bid = Arrays.copyOf(bid, size);
+      ask = Arrays.copyOf(ask, size);
+    }
+    bid[s] = bidPrice;
+    ask[s] = askPrice;
+    int published = 0;
+    for(int synthetic : g.affected[s])
+    {
+      if(!price(g, synthetic)) continue;
+      listener.quoted(new Quote(g.instruments[synthetic], bid[synthetic], ask[synthetic], date));
+      published++;
+    }
+    return published;
+  }
+
+  /**
+   * Recompute the rate of a synthetic from its legs
+   *
+   * @return false if a leg has no rate yet
+   */
+  private boolean price(Graph g, int s)
+  {
+    int[] legs = g.legs[s];
+    double[] exponents = g.exponents[s];
+    double b = g.factors[s], a = b;
+    for(int i = 0; i < legs.length; i++)
+    {
+      double legBid = bid[legs[i]], legAsk = ask[legs[i]], e = exponents[i];
+      if(!(legBid > 0 && legAsk > 0))
+      {
+        // not quoted yet, and neither is anything using this synthetic
+        bid[s] = ask[s] = 0;
+        return false;
+      }
+      // multiplying sells at the bid of the leg, dividing buys it at its ask
+      if(e == 1) { b *= legBid; a *= legAsk; }
+      else if(e == -1) { b /= legAsk; a /= legBid; }
+      else if(e > 0) { b *= Math.pow(legBid, e); a *= Math.pow(legAsk, e); }
+      else { b *= Math.pow(legAsk, e); a *= Math.pow(legBid, e); }
+    }
+    bid[s] = b;
+    ask[s] = a;
+    return true;
+  }
+
+  /**
+   * @return true if the symbol is a synthetic defined here
+   */
+  public boolean isSynthetic(String symbol)
+  {
+    Graph g = graph;
+    Integer id = g.ids.get(symbol);
+    return id != null && g.legs[id] != null;
+  }
+
+  /**
+   * @return the number of synthetics a dealing rate of the symbol updates
+   */
+  public int getAffectedCount(String symbol)
+  {
+    Graph g = graph;
+    Integer id = g.ids.get(symbol);
+    return id == null ? 0 : g.affected[id].length;
+  }
+
+  /**
+   * @return the number of synthetics defined
+   */
+  public int getSyntheticCount()
+  {
+    Graph g = graph;
+    int count = 0;
+    for(int[] legs : g.legs)
+      if(legs != null) count++;
+    return count;
+  }
+
+  /**
+   * The instrument of a synthetic, a forex symbol of its own point size
+   */
+  private static final class SyntheticInstrument extends Instrument
+  {
+    private final String symbol;
+    private final double pointSize;
+
+    SyntheticInstrument(String symbol, double pointSize)
+    {
+      this.symbol = symbol;
+      this.pointSize = pointSize;
+    }
+
+    @Override public String getSymbol() { return symbol; }
+    @Override public double getFXCMSymPointSize() { return pointSize; }
+    @Override public boolean isForex() { return true; }
+  }
+
+  /**
+   * A synthetic dealing rate, read like the dealing rates of the server; only the close is known, so
+   * the open, high and low are the close too
+   */
+  private static final class Quote extends MarketDataSnapshot
+  {
+    private final Instrument instrument;
+    private final double bid, ask;
+    private final UTCDate date;
+
+    Quote(Instrument instrument, double bid, double ask, UTCDate date)
+    {
+      this.instrument = instrument;
+      this.bid = bid;
+      this.ask = ask;
+      this.date = date;
+    }
+
+    @Override public Instrument getInstrument() { return instrument; }
+    @Override public UTCDate getDate() { return date; }
+    @Override public double getBidOpen() { return bid; }
+    @Override public double getBidHigh() { return bid; }
+    @Override public double getBidLow() { return bid; }
+    @Override public double getBidClose() { return bid; }
+    @Override public double getAskOpen() { return ask; }
+    @Override public double getAskHigh() { return ask; }
+    @Override public double getAskLow() { return ask; }
+    @Override public double getAskClose() { return ask; }
+  }
+}
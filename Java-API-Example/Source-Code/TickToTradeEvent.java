@@ -0,0 +1,47 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event emitted by LatencyTracer for each traced order; the time spent in every
+ * stage from the dealing rate arriving to the order having been handed to the gateway.
+ *
+ * Enable it in a recording with 'fxcm.TickToTrade#enabled=true'.
+ *
+ * @author Richard Kichenama
+ */
+@Name("fxcm.TickToTrade")
+@Label("Tick to Trade")
+@Category({ "FXCM", "Latency" })
+@Description("Stages of the reaction to a dealing rate, from the tick arriving to the order being sent")
+@StackTrace(false)
+public class TickToTradeEvent
+  extends Event
+{
+  @Label("Symbol")
+  public String symbol;
+
+  @Label("Tick to Decision")
+  @Description("From the dealing rate entering messageArrived to the strategy deciding")
+  @Timespan(Timespan.NANOSECONDS)
+  public long tickToDecision;
+
+  @Label("Decision to Order")
+  @Description("From the strategy deciding to the order having been built")
+  @Timespan(Timespan.NANOSECONDS)
+  public long decisionToOrder;
+
+  @Label("Order to Sent")
+  @Description("From the order having been built to the gateway returning from sendMessage")
+  @Timespan(Timespan.NANOSECONDS)
+  public long orderToSent;
+
+  @Label("Tick to Trade")
+  @Description("From the dealing rate entering messageArrived to the gateway returning from sendMessage")
+  @Timespan(Timespan.NANOSECONDS)
+  public long tickToTrade;
+}
@@ -0,0 +1,204 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The batch forms of Indicators on the incubating Vector API, taken by Indicators when the JVM runs
+ * with --add-modules jdk.incubator.vector and -Dfxcm.vector=true; never loaded otherwise.
+ *
+ * A moving window sum is the running sum of what each value adds to the window, the value less the
+ * one falling out. The additions are taken a vector at a time and summed within the vector in one
+ * shift and add per power of two of the lanes, so that a single add per vector is carried from one
+ * vector to the next instead of one per value. The smoothing recurrences of the EMA, ATR and RSI
+ * depend on every value before them and stay scalar, only the work around them is vectorized.
+ *
+ * @author Richard Kichenama
+ */
+final class VectorIndicators
+{
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+  private static final int LANES = SPECIES.length();
+  // values per block of the RSI, small enough for its passes over a block to stay in the cache
+  private static final int BLOCK = 1024;
+
+  // the lane shifts of the running sum within a vector, and the lanes each shift leaves empty
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final VectorShuffle<Double>[] SHIFTS = new VectorShuffle[Integer.numberOfTrailingZeros(LANES)];
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final VectorMask<Double>[] EMPTY = new VectorMask[SHIFTS.length];
+  static
+  {
+    for(int s = 0; s < SHIFTS.length; s++)
+    {
+      int[] from = new int[LANES];
+      boolean[] empty = new boolean[LANES];
+      for(int lane = 0; lane < LANES; lane++)
+      {
+        from[lane] = Math.max(lane - (1 << s), 0);
+        empty[lane] = lane < 1 << s;
+      }
+      SHIFTS[s] = VectorShuffle.fromArray(SPECIES, from, 0);
+      EMPTY[s] = VectorMask.fromArray(SPECIES, empty, 0);
+    }
+  }
+
+  private VectorIndicators() { }
+
+  /**
+   * Every lane added to the lanes after it
+   */
+  private static DoubleVector runningSum(DoubleVector v)
+  {
+    for(int s = 0; s < SHIFTS.length; s++) v = v.add(v.rearrange(SHIFTS[s]).blend(0, EMPTY[s]));
+    return v;
+  }
+
+  static void sma(double[] in, int length, int period, double[] out)
+  {
+    double sum = 0;
+    int i = 0;
+    // the first window fills without anything falling out of it
+    for(; i < Math.min(period, length); i++)
+    {
+      sum += in[i];
+      out[i] = i >= period - 1 ? sum / period : Double.NaN;
+    }
+    for(; i <= length - LANES; i += LANES)
+    {
+      DoubleVector added = DoubleVector.fromArray(SPECIES, in, i).sub(DoubleVector.fromArray(SPECIES, in, i - period));
+      DoubleVector sums = runningSum(added).add(sum);
+      sum = sums.lane(LANES - 1);
+      sums.div(period).intoArray(out, i);
+    }
+    for(; i < length; i++)
+    {
+      sum += in[i] - in[i - period];
+      out[i] = sum / period;
+    }
+  }
+
+  static void bollinger(double[] in, int length, int period, double width,
+    double[] middle, double[] upper, double[] lower)
+  {
+    double sum = 0, sumOfSquares = 0;
+    int i = 0;
+    for(; i < Math.min(period, length); i++)
+    {
+      sum += in[i];
+      sumOfSquares += in[i] * in[i];
+      band(i, i >= period - 1, sum / period, sumOfSquares / period, width, middle, upper, lower);
+    }
+    for(; i <= length - LANES; i += LANES)
+    {
+      DoubleVector value = DoubleVector.fromArray(SPECIES, in, i), old = DoubleVector.fromArray(SPECIES, in, i - period);
+      DoubleVector sums = runningSum(value.sub(old)).add(sum);
+      DoubleVector squares = runningSum(value.mul(value).sub(old.mul(old))).add(sumOfSquares);
+      sum = sums.lane(LANES - 1);
+      sumOfSquares = squares.lane(LANES - 1);
+      DoubleVector mean = sums.div(period);
+      DoubleVector band = squares.div(period).sub(mean.mul(mean)).max(0).sqrt().mul(width);
+      if(middle != null) mean.intoArray(middle, i);
+      if(upper != null) mean.add(band).intoArray(upper, i);
+      if(lower != null) mean.sub(band).intoArray(lower, i);
+    }
+    for(; i < length; i++)
+    {
+      double old = in[i - period];
+      sum += in[i] - old;
+      sumOfSquares += in[i] * in[i] - old * old;
+      band(i, true, sum / period, sumOfSquares / period, width, middle, upper, lower);
+    }
+  }
+
+  /**
+   * Write the bands of one value, NaN while the window is filling
+   */
+  private static void band(int i, boolean ready, double mean, double meanOfSquares, double width,
+    double[] middle, double[] upper, double[] lower)
+  {
+    double band = ready ? width * Math.sqrt(Math.max(0, meanOfSquares - mean * mean)) : Double.NaN;
+    if(!ready) mean = Double.NaN;
+    if(middle != null) middle[i] = mean;
+    if(upper != null) upper[i] = mean + band;
+    if(lower != null) lower[i] = mean - band;
+  }
+
+  /**
+   * The true range of every bar after the first
+   */
+  static void trueRanges(double[] high, double[] low, double[] close, int length, double[] out)
+  {
+    int i = 1;
+    for(; i <= length - LANES; i += LANES)
+    {
+      DoubleVector previous = DoubleVector.fromArray(SPECIES, close, i - 1);
+      DoubleVector.fromArray(SPECIES, high, i).max(previous)
+        .sub(DoubleVector.fromArray(SPECIES, low, i).min(previous)).intoArray(out, i);
+    }
+    for(; i < length; i++) out[i] = Math.max(high[i], close[i - 1]) - Math.min(low[i], close[i - 1]);
+  }
+
+  static void rsi(double[] in, int length, int period, double[] out)
+  {
+    if(length == 0) return;
+    out[0] = Double.NaN;
+    double[] gain = new double[BLOCK], loss = new double[BLOCK];
+    DoubleVector hundred = DoubleVector.broadcast(SPECIES, 100);
+    double averageGain = 0, averageLoss = 0;
+    for(int from = 1; from < length; from += BLOCK)
+    {
+      int count = Math.min(BLOCK, length - from), j = 0;
+      // the gain and loss of every change
+      for(; j <= count - LANES; j += LANES)
+      {
+        DoubleVector change = DoubleVector.fromArray(SPECIES, in, from + j)
+          .sub(DoubleVector.fromArray(SPECIES, in, from + j - 1));
+        change.max(0).intoArray(gain, j);
+        change.neg().max(0).intoArray(loss, j);
+      }
+      for(; j < count; j++)
+      {
+        double change = in[from + j] - in[from + j - 1];
+        gain[j] = change > 0 ? change : 0;
+        loss[j] = change < 0 ? -change : 0;
+      }
+      // smoothed in place, the scalar part
+      for(j = 0; j < count; j++)
+      {
+        int n = from + j - 1;
+        if(n < period)
+        {
+          averageGain = (averageGain * n + gain[j]) / (n + 1);
+          averageLoss = (averageLoss * n + loss[j]) / (n + 1);
+        }
+        else
+        {
+          averageGain += (gain[j] - averageGain) / period;
+          averageLoss += (loss[j] - averageLoss) / period;
+        }
+        gain[j] = averageGain;
+        loss[j] = averageLoss;
+      }
+      // converted into the index, as Indicators.rsi(gain, loss) does
+      for(j = 0; j <= count - LANES; j += LANES)
+      {
+        DoubleVector g = DoubleVector.fromArray(SPECIES, gain, j), l = DoubleVector.fromArray(SPECIES, loss, j);
+        VectorMask<Double> noLoss = l.eq(0);
+        hundred.sub(hundred.div(g.div(l).add(1))).blend(100, noLoss).blend(50, noLoss.and(g.eq(0)))
+          .intoArray(out, from + j);
+      }
+      for(; j < count; j++) out[from + j] = Indicators.rsi(gain[j], loss[j]);
+    }
+    // NaN until a full period of changes has been smoothed
+    for(int i = 1; i < Math.min(period, length); i++) out[i] = Double.NaN;
+  }
+
+  static void midClose(double[] bid, double[] ask, int length, double[] out)
+  {
+    int i = 0;
+    for(; i <= length - LANES; i += LANES)
+      DoubleVector.fromArray(SPECIES, bid, i).add(DoubleVector.fromArray(SPECIES, ask, i)).mul(0.5).intoArray(out, i);
+    for(; i < length; i++) out[i] = (bid[i] + ask[i]) * 0.5;
+  }
+}